@@ -0,0 +1,9 @@
+precision mediump float;
+varying vec2 vTextureCoord;
+uniform sampler2D sTexture;
+uniform sampler2D sAlpha;
+
+void main() {
+	vec4 colour = texture2D(sTexture, vTextureCoord);
+	gl_FragColor = vec4(colour.rgb, colour.a * texture2D(sAlpha, vTextureCoord).g);
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.xyz.tools;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.ZebraRender;
+
+/**
+ * The HotPathBenchmark cases under JMH, one operation per invocation and the same
+ * sizes, -p picks others. The render cases need the assets directory, relative to
+ * where the forks start:
+ *
+ *		java -jar benchmarks/target/benchmarks.jar -p assets=assets
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class HotPathBenchmarks {
+	
+	@State(Scope.Thread)
+	public static class Load {
+		@Param({ "10", "100", "1000" })
+		public int meshes;
+		
+		BenchmarkRunner.Case mCase;
+		
+		@Setup
+		public void setup() throws Exception {
+			ZebraLog.useStandardError();
+			mCase = HotPathBenchmark.loadCase(meshes);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Parse {
+		@Param({ "1000", "100000" })
+		public int values;
+		
+		BenchmarkRunner.Case mFloats;
+		BenchmarkRunner.Case mShorts;
+		
+		@Setup
+		public void setup() throws Exception {
+			ZebraLog.useStandardError();
+			mFloats = HotPathBenchmark.parseCase("Vertices", values);
+			mShorts = HotPathBenchmark.parseCase("Indices", values);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Compose {
+		@Param({ "100", "1000", "10000" })
+		public int instances;
+		
+		BenchmarkRunner.Case mMoved;
+		BenchmarkRunner.Case mCamera;
+		BenchmarkRunner.Case mStore;
+		
+		@Setup
+		public void setup() {
+			ZebraLog.useStandardError();
+			mMoved = HotPathBenchmark.composeMovedCase(instances);
+			mCamera = HotPathBenchmark.composeCameraCase(instances);
+			mStore = HotPathBenchmark.composeStoreCase(instances);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Render {
+		@Param({ "100", "1000", "10000" })
+		public int instances;
+		
+		@Param({ "../assets" })
+		public String assets;
+		
+		BenchmarkRunner.Case mUpdate;
+		BenchmarkRunner.Case mSubmit;
+		
+		@Setup
+		public void setup() {
+			ZebraLog.useStandardError();
+			ZebraRender renderer = HotPathBenchmark.renderer(new File(assets), instances);
+			mUpdate = HotPathBenchmark.updateCase(renderer);
+			mSubmit = HotPathBenchmark.submitCase(renderer);
+		}
+	}
+	
+	@Benchmark
+	public long load(Load state) throws Exception {
+		return state.mCase.run(1);
+	}
+	
+	@Benchmark
+	public long parseFloats(Parse state) throws Exception {
+		return state.mFloats.run(1);
+	}
+	
+	@Benchmark
+	public long parseShorts(Parse state) throws Exception {
+		return state.mShorts.run(1);
+	}
+	
+	@Benchmark
+	public long composeMoved(Compose state) throws Exception {
+		return state.mMoved.run(1);
+	}
+	
+	@Benchmark
+	public long composeCamera(Compose state) throws Exception {
+		return state.mCamera.run(1);
+	}
+	
+	@Benchmark
+	public long composeStore(Compose state) throws Exception {
+		return state.mStore.run(1);
+	}
+	
+	@Benchmark
+	public long update(Render state) throws Exception {
+		return state.mUpdate.run(1);
+	}
+	
+	@Benchmark
+	public long submit(Render state) throws Exception {
+		return state.mSubmit.run(1);
+	}
+}
@@ -0,0 +1,77 @@
+package com.xyz.graphics;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * MatrixKernel on the jdk.incubator.vector API, for the desktop tools. Not part of the
+ * Android build: compile it separately and MatrixMath.getKernel picks it up when it is
+ * on the class path and the module is added.
+ *
+ *   javac --add-modules jdk.incubator.vector -cp bin/classes -d bin/desktop \
+ *       desktop/src/com/xyz/graphics/VectorMatrixKernel.java
+ *   java --add-modules jdk.incubator.vector -cp bin/classes:bin/desktop ...
+ *
+ * Everything works one matrix column per 4 lane vector, in the same order as the scalar
+ * code so products give the same bits. Lanes across instances would need strided
+ * gathers and scatters, which JDK 17 doesn't run reliably. Composing is bound by its
+ * sine and cosine, which the incubator API doesn't compute any faster, so it stays
+ * on the scalar code.
+ */
+final class VectorMatrixKernel implements MatrixKernel {
+	
+	private static final VectorSpecies<Float> QUAD = FloatVector.SPECIES_128;
+	
+	private static final VectorMask<Float> AXES = VectorMask.fromLong(QUAD, 0x7);
+	
+	private final ScalarMatrixKernel mScalar;
+	
+	VectorMatrixKernel() {
+		mScalar = new ScalarMatrixKernel();
+	}
+	
+	public void composeTRS(float[] transforms, int transformOffset, float[] out, int outOffset, int count) {
+		mScalar.composeTRS(transforms, transformOffset, out, outOffset, count);
+	}
+	
+	public void multiplyMM(float[] out, int outOffset, float[] lhs, int lhsOffset, float[] matrices,
+			int matricesOffset, int count) {
+		
+		FloatVector c0 = FloatVector.fromArray(QUAD, lhs, lhsOffset);
+		FloatVector c1 = FloatVector.fromArray(QUAD, lhs, lhsOffset + 4);
+		FloatVector c2 = FloatVector.fromArray(QUAD, lhs, lhsOffset + 8);
+		FloatVector c3 = FloatVector.fromArray(QUAD, lhs, lhsOffset + 12);
+		int end = matricesOffset + count * 16;
+		for (int m = matricesOffset, o = outOffset; m < end; m += 4, o += 4) {
+			float x = matrices[m], y = matrices[m + 1], z = matrices[m + 2], w = matrices[m + 3];
+			c0.mul(x).add(c1.mul(y)).add(c2.mul(z)).add(c3.mul(w)).intoArray(out, o);
+		}
+	}
+	
+	public void transformSpheres(float[] sphere, float[] matrices, int matricesOffset, float[] out, int outOffset,
+			int count) {
+		
+		float x = sphere[0], y = sphere[1], z = sphere[2], radius = sphere[3];
+		for (int i = 0; i < count; i++) {
+			int m = matricesOffset + i * 16;
+			int o = outOffset + i * 4;
+			FloatVector c0 = FloatVector.fromArray(QUAD, matrices, m);
+			FloatVector c1 = FloatVector.fromArray(QUAD, matrices, m + 4);
+			FloatVector c2 = FloatVector.fromArray(QUAD, matrices, m + 8);
+			FloatVector c3 = FloatVector.fromArray(QUAD, matrices, m + 12);
+			c0.mul(x).add(c1.mul(y)).add(c2.mul(z)).add(c3).intoArray(out, o);
+			
+			// The fourth lane of the centre is overwritten, the radius only uses the upper 3x3
+			float xx = c0.mul(c0).reduceLanes(VectorOperators.ADD, AXES);
+			float yy = c1.mul(c1).reduceLanes(VectorOperators.ADD, AXES);
+			float zz = c2.mul(c2).reduceLanes(VectorOperators.ADD, AXES);
+			out[o + 3] = radius * (float)Math.sqrt(Math.max(xx, Math.max(yy, zz)));
+		}
+	}
+	
+	public String getName() {
+		return "vector" + QUAD.length();
+	}
+}
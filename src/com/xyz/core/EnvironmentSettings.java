@@ -7,4 +7,10 @@ public final class EnvironmentSettings {
 	 */
 	
 	public static final boolean DEBUG = false;
+	
+	// Frame metrics, the recording code is compiled out when false
+	public static final boolean PROFILE = false;
+	
+	// Models store quantized vertex attributes unless told otherwise, see Model.setQuantized
+	public static final boolean QUANTIZE_VERTICES = true;
 }
@@ -0,0 +1,78 @@
+package com.xyz.core;
+
+import android.util.Log;
+
+/**
+ * Logging for code that also runs off device. Goes to android.util.Log unless the
+ * tools call useStandardError first, the android.jar stubs throw on a plain JVM.
+ */
+public final class ZebraLog {
+	
+	// Same values as the android.util.Log priorities
+	public static final int	DEBUG	= 3;
+	public static final int	INFO	= 4;
+	public static final int	WARN	= 5;
+	public static final int	ERROR	= 6;
+	
+	public interface Sink {
+		public void log(int level, String tag, String message, Throwable error);
+	}
+	
+	private static final Sink ANDROID = new Sink() {
+		@Override
+		public void log(int level, String tag, String message, Throwable error) {
+			if (error != null)
+				message += '\n' + Log.getStackTraceString(error);
+			Log.println(level, tag, message);
+		}
+	};
+	
+	private static final Sink STANDARD_ERROR = new Sink() {
+		@Override
+		public void log(int level, String tag, String message, Throwable error) {
+			System.err.println("DIWE".charAt(level - DEBUG) + "/" + tag + ": " + message);
+			if (error != null)
+				error.printStackTrace();
+		}
+	};
+	
+	private static volatile Sink sSink = ANDROID;
+	
+	private ZebraLog() {
+	}
+	
+	public static void setSink(Sink sink) {
+		sSink = sink != null ? sink : ANDROID;
+	}
+	
+	/**
+	 * For the headless tools, no android.util.Log calls from here on.
+	 */
+	public static void useStandardError() {
+		sSink = STANDARD_ERROR;
+	}
+	
+	public static void d(String tag, String message) {
+		sSink.log(DEBUG, tag, message, null);
+	}
+	
+	public static void i(String tag, String message) {
+		sSink.log(INFO, tag, message, null);
+	}
+	
+	public static void w(String tag, String message) {
+		sSink.log(WARN, tag, message, null);
+	}
+	
+	public static void w(String tag, String message, Throwable error) {
+		sSink.log(WARN, tag, message, error);
+	}
+	
+	public static void e(String tag, String message) {
+		sSink.log(ERROR, tag, message, null);
+	}
+	
+	public static void e(String tag, String message, Throwable error) {
+		sSink.log(ERROR, tag, message, error);
+	}
+}
@@ -0,0 +1,221 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+import com.xyz.core.ZebraLog;
+
+/**
+ * Per frame timings and counters kept in a preallocated ring of the last frames, with
+ * percentiles over that window. Nothing is allocated while recording.
+ *
+ * Recording happens on the GL thread; the update thread's phase times travel with its
+ * command list. A metric only gets a sample in frames that record it, so a command list
+ * drawn twice doesn't add update times of 0. Query from the GL thread too, GLSurfaceView.queueEvent gets there.
+ * The renderer only records with EnvironmentSettings.PROFILE, otherwise the calls are
+ * compiled out.
+ */
+public final class FrameMetrics {
+	
+	// Times in nanoseconds
+	public static final int FRAME_TIME		= 0;	// GL thread, the whole frame
+	public static final int UPDATE_TIME		= 1;	// Update thread, simulation
+	public static final int CULL_TIME		= 2;	// Update thread
+	public static final int SORT_TIME		= 3;	// Update thread
+	public static final int BUILD_TIME		= 4;	// Update thread, writing the command list
+	public static final int UPLOAD_TIME		= 5;	// GL thread, effects, textures and buffers
+	public static final int SUBMIT_TIME		= 6;	// GL thread, replaying the commands
+	public static final int FINISH_TIME		= 7;	// GL thread, waiting for the GPU, see setMeasureGpu
+	public static final int RASTER_TIME		= 8;	// Occlusion culler thread, during the cull
+	
+	// Counts per frame
+	public static final int DRAW_CALLS		= 9;
+	public static final int INDICES			= 10;
+	public static final int TEXTURE_BINDS	= 11;
+	public static final int PROGRAM_BINDS	= 12;
+	public static final int STATE_CHANGES	= 13;
+	public static final int UPLOADED_BYTES	= 14;
+	public static final int CULLED			= 15;
+	public static final int OCCLUDED		= 16;
+	
+	public static final int METRIC_COUNT	= 17;
+	
+	private static final int TIME_COUNT		= 9;
+	private static final String[] NAMES = {
+		"frame", "update", "cull", "sort", "build", "upload", "submit", "finish", "raster",
+		"draws", "indices", "texture binds", "program binds", "state changes", "uploaded", "culled", "occluded"
+	};
+	
+	private final int		mCapacity;
+	private final long[]	mHistory; // Metric major, mCapacity samples each
+	private final long[]	mCurrent;
+	private final long[]	mScratch;
+	private final int[]		mHeads;
+	private final int[]		mSizes;
+	private int				mRecorded; // Bit per metric set or added this frame
+	private int				mSize;
+	private long			mFrames;
+	private int				mLogInterval;
+	private boolean			mMeasureGpu;
+	private final StringBuilder mLogText;
+	
+	public FrameMetrics(int capacity) {
+		mCapacity	= Math.max(capacity, 1);
+		mHistory	= new long[METRIC_COUNT * mCapacity];
+		mCurrent	= new long[METRIC_COUNT];
+		mScratch	= new long[mCapacity];
+		mHeads		= new int[METRIC_COUNT];
+		mSizes		= new int[METRIC_COUNT];
+		mLogText	= new StringBuilder(1024);
+	}
+	
+	public static String getName(int metric) {
+		return NAMES[metric];
+	}
+	
+	public static boolean isTime(int metric) {
+		return metric < TIME_COUNT;
+	}
+	
+	public void set(int metric, long value) {
+		mCurrent[metric] = value;
+		mRecorded |= 1 << metric;
+	}
+	
+	public void add(int metric, long value) {
+		mCurrent[metric] += value;
+		mRecorded |= 1 << metric;
+	}
+	
+	/**
+	 * Stores the values recorded since the last call as one frame, metrics that were
+	 * not recorded keep their samples from earlier frames.
+	 */
+	public void endFrame() {
+		for (int m = 0; m < METRIC_COUNT; m++) {
+			if ((mRecorded & (1 << m)) == 0)
+				continue;
+			mHistory[m * mCapacity + mHeads[m]] = mCurrent[m];
+			mCurrent[m] = 0;
+			mHeads[m] = (mHeads[m] + 1) % mCapacity;
+			mSizes[m] = Math.min(mSizes[m] + 1, mCapacity);
+		}
+		mRecorded = 0;
+		mSize = Math.min(mSize + 1, mCapacity);
+		++mFrames;
+		
+		if (mLogInterval > 0 && mFrames % mLogInterval == 0)
+			ZebraLog.i("metrics", dump());
+	}
+	
+	/**
+	 * Frames in the window, at most the capacity.
+	 */
+	public int getFrameCount() {
+		return mSize;
+	}
+	
+	public long getTotalFrames() {
+		return mFrames;
+	}
+	
+	/**
+	 * Samples of the metric in the window, frames that didn't record it have none.
+	 */
+	public int getSampleCount(int metric) {
+		return mSizes[metric];
+	}
+	
+	/**
+	 * Newest sample, 0 before the first one.
+	 */
+	public long getLast(int metric) {
+		return mSizes[metric] == 0 ? 0 : mHistory[metric * mCapacity + (mHeads[metric] + mCapacity - 1) % mCapacity];
+	}
+	
+	public double getAverage(int metric) {
+		int size = mSizes[metric];
+		if (size == 0)
+			return 0;
+		long sum = 0;
+		int base = metric * mCapacity;
+		for (int i = 0; i < size; i++)
+			sum += mHistory[base + i];
+		return (double)sum / size;
+	}
+	
+	/**
+	 * Nearest rank percentile over the window, percentile from 0 to 100.
+	 */
+	public long getPercentile(int metric, int percentile) {
+		int size = mSizes[metric];
+		if (size == 0)
+			return 0;
+		System.arraycopy(mHistory, metric * mCapacity, mScratch, 0, size);
+		Arrays.sort(mScratch, 0, size);
+		int rank = (int)Math.ceil(percentile / 100.0 * size);
+		return mScratch[Math.max(0, Math.min(rank, size) - 1)];
+	}
+	
+	/**
+	 * Logs the percentiles every so many frames, 0 stops logging.
+	 */
+	public void setLogInterval(int frames) {
+		mLogInterval = frames;
+	}
+	
+	/**
+	 * Waits for the GPU at the end of each frame to time it. GLES20 has no timer
+	 * queries, so this is the only GPU figure available, and it costs the overlap
+	 * between CPU and GPU while enabled.
+	 */
+	public void setMeasureGpu(boolean measure) {
+		mMeasureGpu = measure;
+	}
+	
+	public boolean isMeasuringGpu() {
+		return mMeasureGpu;
+	}
+	
+	/**
+	 * p50, p95 and p99 of every metric over the window, times in milliseconds.
+	 */
+	public String dump() {
+		StringBuilder text = mLogText;
+		text.setLength(0);
+		text.append(mSize).append(" frames");
+		for (int m = 0; m < METRIC_COUNT; m++) {
+			if (m == FINISH_TIME && !mMeasureGpu)
+				continue;
+			
+			text.append("\n  ").append(NAMES[m]).append(": ");
+			appendValue(text, m, getPercentile(m, 50));
+			text.append(" / ");
+			appendValue(text, m, getPercentile(m, 95));
+			text.append(" / ");
+			appendValue(text, m, getPercentile(m, 99));
+		}
+		return text.toString();
+	}
+	
+	private static void appendValue(StringBuilder text, int metric, long value) {
+		if (isTime(metric)) {
+			// Hundredths of a millisecond without going through String.format
+			long hundredths = (value + 5000) / 10000;
+			text.append(hundredths / 100).append('.');
+			long fraction = hundredths % 100;
+			if (fraction < 10)
+				text.append('0');
+			text.append(fraction).append("ms");
+		}
+		else
+			text.append(value);
+	}
+	
+	public void reset() {
+		Arrays.fill(mCurrent, 0);
+		Arrays.fill(mHeads, 0);
+		Arrays.fill(mSizes, 0);
+		mRecorded = 0;
+		mSize = 0;
+	}
+}
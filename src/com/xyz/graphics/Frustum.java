@@ -0,0 +1,88 @@
+package com.xyz.graphics;
+
+/**
+ * View frustum planes taken from a projection-view matrix (column major, as
+ * android.opengl.Matrix builds them). Planes point inwards and are normalised so
+ * sphere tests can compare distances directly.
+ */
+public final class Frustum {
+	
+	public static final int PLANE_COUNT = 6;
+	
+	public static final int OUTSIDE		= 0;
+	public static final int INTERSECTS	= 1;
+	public static final int INSIDE		= 2;
+	
+	// a, b, c, d per plane
+	private final float[] mPlanes = new float[PLANE_COUNT * 4];
+	
+	public void set(float[] viewProjection) {
+		float[] m = viewProjection;
+		// Rows of the matrix, row 3 +/- rows 0, 1 and 2 give left/right, bottom/top and near/far
+		for (int axis = 0; axis < 3; axis++) {
+			for (int side = 0; side < 2; side++) {
+				float sign = side == 0 ? 1.0f : -1.0f;
+				int plane = (axis * 2 + side) * 4;
+				mPlanes[plane]		= m[3] + sign * m[axis];
+				mPlanes[plane + 1]	= m[7] + sign * m[4 + axis];
+				mPlanes[plane + 2]	= m[11] + sign * m[8 + axis];
+				mPlanes[plane + 3]	= m[15] + sign * m[12 + axis];
+				
+				float length = (float)Math.sqrt(mPlanes[plane] * mPlanes[plane] +
+						mPlanes[plane + 1] * mPlanes[plane + 1] + mPlanes[plane + 2] * mPlanes[plane + 2]);
+				for (int i = 0; i < 4; i++)
+					mPlanes[plane + i] /= length;
+			}
+		}
+	}
+	
+	public float[] getPlanes() {
+		return mPlanes;
+	}
+	
+	public boolean intersectsSphere(float x, float y, float z, float radius) {
+		for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+			if (mPlanes[plane] * x + mPlanes[plane + 1] * y + mPlanes[plane + 2] * z + mPlanes[plane + 3] < -radius)
+				return false;
+		}
+		return true;
+	}
+	
+	public boolean intersectsSphere(float[] sphere) {
+		return intersectsSphere(sphere[0], sphere[1], sphere[2], sphere[3]);
+	}
+	
+	/**
+	 * Conservative box test, only the corner furthest along each plane normal is checked.
+	 */
+	public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+			float a = mPlanes[plane];
+			float b = mPlanes[plane + 1];
+			float c = mPlanes[plane + 2];
+			if (a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY) + c * (c >= 0 ? maxZ : minZ) +
+					mPlanes[plane + 3] < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Like intersectsBox but also tells when the box is completely inside, so
+	 * hierarchies can accept whole subtrees without testing them.
+	 */
+	public int classifyBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		int result = INSIDE;
+		for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+			float a = mPlanes[plane];
+			float b = mPlanes[plane + 1];
+			float c = mPlanes[plane + 2];
+			float d = mPlanes[plane + 3];
+			if (a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY) + c * (c >= 0 ? maxZ : minZ) + d < 0)
+				return OUTSIDE;
+			if (a * (a >= 0 ? minX : maxX) + b * (b >= 0 ? minY : maxY) + c * (c >= 0 ? minZ : maxZ) + d < 0)
+				result = INTERSECTS;
+		}
+		return result;
+	}
+}
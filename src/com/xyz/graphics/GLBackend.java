@@ -0,0 +1,84 @@
+package com.xyz.graphics;
+
+import java.nio.Buffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Every GL call of the renderer and the resource managers goes through one of these,
+ * so the same code runs on a device with GLES20Backend or off device with
+ * RecordingBackend. Methods follow android.opengl.GLES20 and take its constants.
+ */
+public interface GLBackend {
+	
+	// State
+	public void glViewport(int x, int y, int width, int height);
+	public void glClearColor(float red, float green, float blue, float alpha);
+	public void glClear(int mask);
+	public void glFinish();
+	public int glGetError();
+	public void glGetIntegerv(int name, int[] params, int offset);
+	public String glGetString(int name);
+	public void glEnable(int capability);
+	public void glDisable(int capability);
+	public void glBlendFunc(int source, int destination);
+	
+	// Buffers
+	public void glGenBuffers(int n, int[] buffers, int offset);
+	public void glDeleteBuffers(int n, int[] buffers, int offset);
+	public void glBindBuffer(int target, int buffer);
+	public void glBufferData(int target, int size, Buffer data, int usage);
+	public void glBufferSubData(int target, int offset, int size, Buffer data);
+	
+	// Textures
+	public void glActiveTexture(int texture);
+	public void glGenTextures(int n, int[] textures, int offset);
+	public void glDeleteTextures(int n, int[] textures, int offset);
+	public void glBindTexture(int target, int texture);
+	public void glTexParameterf(int target, int name, float param);
+	public void glTexImage2D(int target, int level, int internalFormat, int width, int height, int border,
+			int format, int type, Buffer pixels);
+	public void glCompressedTexImage2D(int target, int level, int internalFormat, int width, int height,
+			int border, int imageSize, Buffer data);
+	public void glGenerateMipmap(int target);
+	/**
+	 * GLUtils.texImage2D, the bitmap's own format and type.
+	 */
+	public void texImage2D(int target, int level, Bitmap bitmap, int border);
+	
+	// Shaders and programs
+	public int glCreateShader(int type);
+	public void glShaderSource(int shader, String source);
+	public void glCompileShader(int shader);
+	public void glGetShaderiv(int shader, int name, int[] params, int offset);
+	public String glGetShaderInfoLog(int shader);
+	public void glDeleteShader(int shader);
+	public int glCreateProgram();
+	public void glAttachShader(int program, int shader);
+	public void glBindAttribLocation(int program, int index, String name);
+	public void glLinkProgram(int program);
+	public void glGetProgramiv(int program, int name, int[] params, int offset);
+	public String glGetProgramInfoLog(int program);
+	public void glDeleteProgram(int program);
+	public int glGetAttribLocation(int program, String name);
+	public int glGetUniformLocation(int program, String name);
+	public void glUseProgram(int program);
+	public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+	public void glUniform1i(int location, int value);
+	
+	// Drawing
+	public void glEnableVertexAttribArray(int index);
+	public void glDisableVertexAttribArray(int index);
+	/**
+	 * Value of a disabled attribute array.
+	 */
+	public void glVertexAttrib4f(int index, float x, float y, float z, float w);
+	/**
+	 * Reads from the bound array buffer at offset.
+	 */
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset);
+	/**
+	 * Reads from the bound element buffer at offset.
+	 */
+	public void glDrawElements(int mode, int count, int type, int offset);
+}
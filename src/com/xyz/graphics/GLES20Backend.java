@@ -0,0 +1,203 @@
+package com.xyz.graphics;
+
+import java.nio.Buffer;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+/**
+ * The device backend, straight calls to GLES20 on the current context.
+ */
+public final class GLES20Backend implements GLBackend {
+	
+	public void glViewport(int x, int y, int width, int height) {
+		GLES20.glViewport(x, y, width, height);
+	}
+	
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+	
+	public void glClear(int mask) {
+		GLES20.glClear(mask);
+	}
+	
+	public void glFinish() {
+		GLES20.glFinish();
+	}
+	
+	public int glGetError() {
+		return GLES20.glGetError();
+	}
+	
+	public void glGetIntegerv(int name, int[] params, int offset) {
+		GLES20.glGetIntegerv(name, params, offset);
+	}
+	
+	public String glGetString(int name) {
+		return GLES20.glGetString(name);
+	}
+	
+	public void glEnable(int capability) {
+		GLES20.glEnable(capability);
+	}
+	
+	public void glDisable(int capability) {
+		GLES20.glDisable(capability);
+	}
+	
+	public void glBlendFunc(int source, int destination) {
+		GLES20.glBlendFunc(source, destination);
+	}
+	
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		GLES20.glGenBuffers(n, buffers, offset);
+	}
+	
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		GLES20.glDeleteBuffers(n, buffers, offset);
+	}
+	
+	public void glBindBuffer(int target, int buffer) {
+		GLES20.glBindBuffer(target, buffer);
+	}
+	
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		GLES20.glBufferData(target, size, data, usage);
+	}
+	
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		GLES20.glBufferSubData(target, offset, size, data);
+	}
+	
+	public void glActiveTexture(int texture) {
+		GLES20.glActiveTexture(texture);
+	}
+	
+	public void glGenTextures(int n, int[] textures, int offset) {
+		GLES20.glGenTextures(n, textures, offset);
+	}
+	
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		GLES20.glDeleteTextures(n, textures, offset);
+	}
+	
+	public void glBindTexture(int target, int texture) {
+		GLES20.glBindTexture(target, texture);
+	}
+	
+	public void glTexParameterf(int target, int name, float param) {
+		GLES20.glTexParameterf(target, name, param);
+	}
+	
+	public void glTexImage2D(int target, int level, int internalFormat, int width, int height, int border,
+			int format, int type, Buffer pixels) {
+		GLES20.glTexImage2D(target, level, internalFormat, width, height, border, format, type, pixels);
+	}
+	
+	public void glCompressedTexImage2D(int target, int level, int internalFormat, int width, int height,
+			int border, int imageSize, Buffer data) {
+		GLES20.glCompressedTexImage2D(target, level, internalFormat, width, height, border, imageSize, data);
+	}
+	
+	public void glGenerateMipmap(int target) {
+		GLES20.glGenerateMipmap(target);
+	}
+	
+	public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+		GLUtils.texImage2D(target, level, bitmap, border);
+	}
+	
+	public int glCreateShader(int type) {
+		return GLES20.glCreateShader(type);
+	}
+	
+	public void glShaderSource(int shader, String source) {
+		GLES20.glShaderSource(shader, source);
+	}
+	
+	public void glCompileShader(int shader) {
+		GLES20.glCompileShader(shader);
+	}
+	
+	public void glGetShaderiv(int shader, int name, int[] params, int offset) {
+		GLES20.glGetShaderiv(shader, name, params, offset);
+	}
+	
+	public String glGetShaderInfoLog(int shader) {
+		return GLES20.glGetShaderInfoLog(shader);
+	}
+	
+	public void glDeleteShader(int shader) {
+		GLES20.glDeleteShader(shader);
+	}
+	
+	public int glCreateProgram() {
+		return GLES20.glCreateProgram();
+	}
+	
+	public void glAttachShader(int program, int shader) {
+		GLES20.glAttachShader(program, shader);
+	}
+	
+	public void glBindAttribLocation(int program, int index, String name) {
+		GLES20.glBindAttribLocation(program, index, name);
+	}
+	
+	public void glLinkProgram(int program) {
+		GLES20.glLinkProgram(program);
+	}
+	
+	public void glGetProgramiv(int program, int name, int[] params, int offset) {
+		GLES20.glGetProgramiv(program, name, params, offset);
+	}
+	
+	public String glGetProgramInfoLog(int program) {
+		return GLES20.glGetProgramInfoLog(program);
+	}
+	
+	public void glDeleteProgram(int program) {
+		GLES20.glDeleteProgram(program);
+	}
+	
+	public int glGetAttribLocation(int program, String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+	
+	public int glGetUniformLocation(int program, String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+	
+	public void glUseProgram(int program) {
+		GLES20.glUseProgram(program);
+	}
+	
+	public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+		GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+	}
+	
+	public void glUniform1i(int location, int value) {
+		GLES20.glUniform1i(location, value);
+	}
+	
+	public void glEnableVertexAttribArray(int index) {
+		GLES20.glEnableVertexAttribArray(index);
+	}
+	
+	public void glDisableVertexAttribArray(int index) {
+		GLES20.glDisableVertexAttribArray(index);
+	}
+	
+	public void glVertexAttrib4f(int index, float x, float y, float z, float w) {
+		GLES20.glVertexAttrib4f(index, x, y, z, w);
+	}
+	
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+	
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		GLES20.glDrawElements(mode, count, type, offset);
+	}
+}
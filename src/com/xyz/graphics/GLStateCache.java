@@ -0,0 +1,167 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * Remembers the bound GL state and drops calls that wouldn't change it.
+ * Anything that touches this state behind its back (uploads, other renderers) must be
+ * followed by invalidate, as must a new GL context.
+ */
+final class GLStateCache {
+	
+	private static final int MAX_ATTRIBUTES = 16;
+	private static final int TEXTURE_UNITS	= 2;
+	
+	private int		mProgram;
+	private int		mActiveUnit;
+	private final int[] mTextures; // Per unit
+	private int		mBlending; // 1 on, 0 off, -1 unknown
+	private int		mArrayBuffer;
+	private int		mElementBuffer;
+	private int		mEnabledAttributes; // Bit mask of enabled attribute arrays
+	
+	private final GLBackend mGL;
+	
+	private int		mStateChanges;
+	private int		mSkippedChanges;
+	private int		mProgramChanges;
+	private int		mTextureChanges;
+	
+	public GLStateCache(GLBackend gl) {
+		mGL = gl;
+		mTextures = new int[TEXTURE_UNITS];
+		invalidate();
+	}
+	
+	public void invalidate() {
+		mProgram		= -1;
+		mActiveUnit		= -1;
+		mBlending		= -1;
+		Arrays.fill(mTextures, -1);
+		mArrayBuffer	= -1;
+		mElementBuffer	= -1;
+		
+		// Unknown, so disable everything the first time a mask is set
+		mEnabledAttributes = (1 << MAX_ATTRIBUTES) - 1;
+	}
+	
+	public void useProgram(int program) {
+		if (program == mProgram) {
+			++mSkippedChanges;
+			return;
+		}
+		mGL.glUseProgram(program);
+		mProgram = program;
+		++mStateChanges;
+		++mProgramChanges;
+	}
+	
+	/**
+	 * Binds to texture unit 0, the colour of every effect.
+	 */
+	public void bindTexture(int texture) {
+		bindTexture(0, texture);
+	}
+	
+	public void bindTexture(int unit, int texture) {
+		if (texture == mTextures[unit]) {
+			++mSkippedChanges;
+			return;
+		}
+		if (unit != mActiveUnit) {
+			mGL.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+			mActiveUnit = unit;
+		}
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		mTextures[unit] = texture;
+		++mStateChanges;
+		++mTextureChanges;
+	}
+	
+	public void setBlending(boolean blending) {
+		if ((blending ? 1 : 0) == mBlending) {
+			++mSkippedChanges;
+			return;
+		}
+		if (blending)
+			mGL.glEnable(GLES20.GL_BLEND);
+		else
+			mGL.glDisable(GLES20.GL_BLEND);
+		mBlending = blending ? 1 : 0;
+		++mStateChanges;
+	}
+	
+	public void bindArrayBuffer(int buffer) {
+		if (buffer == mArrayBuffer) {
+			++mSkippedChanges;
+			return;
+		}
+		mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+		mArrayBuffer = buffer;
+		++mStateChanges;
+	}
+	
+	public void bindElementBuffer(int buffer) {
+		if (buffer == mElementBuffer) {
+			++mSkippedChanges;
+			return;
+		}
+		mGL.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffer);
+		mElementBuffer = buffer;
+		++mStateChanges;
+	}
+	
+	/**
+	 * Enables exactly the attribute arrays in mask (bit n for location n).
+	 */
+	public void setEnabledAttributes(int mask) {
+		int changed = mask ^ mEnabledAttributes;
+		if (changed == 0) {
+			++mSkippedChanges;
+			return;
+		}
+		for (int i = 0; i < MAX_ATTRIBUTES; i++) {
+			int bit = 1 << i;
+			if ((changed & bit) == 0)
+				continue;
+			if ((mask & bit) != 0)
+				mGL.glEnableVertexAttribArray(i);
+			else
+				mGL.glDisableVertexAttribArray(i);
+		}
+		mEnabledAttributes = mask;
+		++mStateChanges;
+	}
+	
+	/**
+	 * Number of state changes issued and skipped since the last call.
+	 */
+	public int takeStateChanges() {
+		int changes = mStateChanges;
+		mStateChanges = 0;
+		return changes;
+	}
+	
+	public int takeSkippedChanges() {
+		int skipped = mSkippedChanges;
+		mSkippedChanges = 0;
+		return skipped;
+	}
+	
+	/**
+	 * Programs and textures bound since the last call, part of the state changes.
+	 */
+	public int takeProgramChanges() {
+		int changes = mProgramChanges;
+		mProgramChanges = 0;
+		return changes;
+	}
+	
+	public int takeTextureChanges() {
+		int changes = mTextureChanges;
+		mTextureChanges = 0;
+		return changes;
+	}
+}
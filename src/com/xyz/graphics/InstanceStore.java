@@ -0,0 +1,369 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Instances of one model kept as a structure of arrays, for scenes of 100k and more
+ * where an object per instance costs too much memory and too many cache misses.
+ *
+ * Every live instance has a slot, slots are packed from 0 to size() - 1 and all the
+ * per instance data sits in parallel arrays indexed by them: transforms, texture and
+ * effect ids, cached model and MVP matrices and world bounding spheres. Removing an
+ * instance moves the last one into its slot, so callers hold on to handles instead,
+ * which stay valid until removed and are reused afterwards.
+ *
+ * Same threading rules as Model.Instance: once the model is in a running scene only
+ * touch the store from the Simulation callback.
+ */
+public final class InstanceStore {
+	
+	// Floats per slot in mTransforms: translation, rotation (degrees) then scale
+	public static final int TRANSFORM_STRIDE	= 9;
+	public static final int TRANSLATION			= 0;
+	public static final int ROTATION			= 3;
+	public static final int SCALE				= 6;
+	
+	/**
+	 * Handle based access to one instance, for code that prefers the Model.Instance
+	 * style. Getters copy into arrays owned by the view, so a view allocates nothing
+	 * after it is created and can be pointed at other handles with setHandle.
+	 */
+	public static final class View {
+		private final InstanceStore	mStore;
+		private int					mHandle;
+		private final float[]		mValue;
+		
+		public View(InstanceStore store, int handle) {
+			mStore	= store;
+			mHandle	= handle;
+			mValue	= new float[3];
+		}
+		
+		public int getHandle() {
+			return mHandle;
+		}
+		
+		public void setHandle(int handle) {
+			mHandle = handle;
+		}
+		
+		/**
+		 * The returned array is reused by the next getter.
+		 */
+		public float[] getTranslation() {
+			return get(TRANSLATION);
+		}
+		
+		public float[] getRotation() {
+			return get(ROTATION);
+		}
+		
+		public float[] getScale() {
+			return get(SCALE);
+		}
+		
+		public void setTranslation(float x, float y, float z) {
+			mStore.setTranslation(mHandle, x, y, z);
+		}
+		
+		public void setRotation(float x, float y, float z) {
+			mStore.setRotation(mHandle, x, y, z);
+		}
+		
+		public void setScale(float x, float y, float z) {
+			mStore.setScale(mHandle, x, y, z);
+		}
+		
+		public int getTextureId() {
+			return mStore.getTextureId(mHandle);
+		}
+		
+		public int getEffectId() {
+			return mStore.getEffectId(mHandle);
+		}
+		
+		private float[] get(int field) {
+			int start = mStore.getSlot(mHandle) * TRANSFORM_STRIDE + field;
+			System.arraycopy(mStore.mTransforms, start, mValue, 0, 3);
+			return mValue;
+		}
+	}
+	
+	private final Model	mModel;
+	private int			mSize;
+	
+	// Per slot
+	private float[]		mTransforms;
+	private int[]		mTextures;
+	private int[]		mEffects;
+	private float[]		mModelMatrices; // 16 per slot
+	private float[]		mMVPMatrices;
+	private float[]		mSpheres; // x, y, z, radius
+	private boolean[]	mDirty;
+	private int[]		mHandles;
+	private int			mDirtyCount; // Upper bound, reset by update
+	
+	// Per handle, slot of a live handle or the next free handle, ~0 ends the free list
+	private int[]		mSlots;
+	private boolean[]	mLive;
+	private int			mFreeHandle;
+	private int			mHandleCount;
+	
+	private int			mViewProjectionVersion;
+	private final MatrixKernel mKernel;
+	
+	InstanceStore(Model model, int capacity) {
+		capacity		= Math.max(capacity, 16);
+		mModel			= model;
+		mTransforms		= new float[capacity * TRANSFORM_STRIDE];
+		mTextures		= new int[capacity];
+		mEffects		= new int[capacity];
+		mModelMatrices	= new float[capacity * 16];
+		mMVPMatrices	= new float[capacity * 16];
+		mSpheres		= new float[capacity * 4];
+		mDirty			= new boolean[capacity];
+		mHandles		= new int[capacity];
+		mSlots			= new int[capacity];
+		mLive			= new boolean[capacity];
+		mFreeHandle		= ~0;
+		mViewProjectionVersion = -1;
+		mKernel			= MatrixMath.getKernel();
+	}
+	
+	public Model getModel() {
+		return mModel;
+	}
+	
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Grows every array to hold capacity instances, to avoid regrowing while filling.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= mTextures.length)
+			return;
+		
+		mTransforms		= Arrays.copyOf(mTransforms, capacity * TRANSFORM_STRIDE);
+		mTextures		= Arrays.copyOf(mTextures, capacity);
+		mEffects		= Arrays.copyOf(mEffects, capacity);
+		mModelMatrices	= Arrays.copyOf(mModelMatrices, capacity * 16);
+		mMVPMatrices	= Arrays.copyOf(mMVPMatrices, capacity * 16);
+		mSpheres		= Arrays.copyOf(mSpheres, capacity * 4);
+		mDirty			= Arrays.copyOf(mDirty, capacity);
+		mHandles		= Arrays.copyOf(mHandles, capacity);
+		mSlots			= Arrays.copyOf(mSlots, capacity);
+		mLive			= Arrays.copyOf(mLive, capacity);
+	}
+	
+	/**
+	 * Returns the handle of the new instance. Null transforms mean identity, the arrays
+	 * are copied.
+	 */
+	public int add(int textureId, int effectId, float[] translation, float[] rotation, float[] scale) {
+		assert textureId >= -1;
+		assert effectId >= -1;
+		
+		if (mSize == mTextures.length)
+			ensureCapacity(mSize * 2);
+		
+		int handle;
+		if (mFreeHandle != ~0) {
+			handle = mFreeHandle;
+			mFreeHandle = mSlots[handle];
+		}
+		else
+			handle = mHandleCount++;
+		
+		int slot = mSize++;
+		mSlots[handle]		= slot;
+		mLive[handle]		= true;
+		mHandles[slot]		= handle;
+		mTextures[slot]		= textureId;
+		mEffects[slot]		= effectId;
+		
+		int t = slot * TRANSFORM_STRIDE;
+		for (int i = 0; i < 3; i++) {
+			mTransforms[t + TRANSLATION + i]	= translation != null ? translation[i] : 0.0f;
+			mTransforms[t + ROTATION + i]		= rotation != null ? rotation[i] : 0.0f;
+			mTransforms[t + SCALE + i]			= scale != null ? scale[i] : 1.0f;
+		}
+		markDirty(slot);
+		return handle;
+	}
+	
+	/**
+	 * The last instance takes the removed one's slot, the handle is freed for reuse.
+	 */
+	public void remove(int handle) {
+		int slot = getSlot(handle);
+		int last = --mSize;
+		if (slot != last) {
+			System.arraycopy(mTransforms, last * TRANSFORM_STRIDE, mTransforms, slot * TRANSFORM_STRIDE,
+					TRANSFORM_STRIDE);
+			System.arraycopy(mModelMatrices, last * 16, mModelMatrices, slot * 16, 16);
+			System.arraycopy(mMVPMatrices, last * 16, mMVPMatrices, slot * 16, 16);
+			System.arraycopy(mSpheres, last * 4, mSpheres, slot * 4, 4);
+			mTextures[slot]	= mTextures[last];
+			mEffects[slot]	= mEffects[last];
+			mDirty[slot]	= mDirty[last];
+			
+			int moved = mHandles[last];
+			mHandles[slot] = moved;
+			mSlots[moved] = slot;
+		}
+		mDirty[last] = false;
+		
+		mLive[handle] = false;
+		mSlots[handle] = mFreeHandle;
+		mFreeHandle = handle;
+	}
+	
+	public boolean contains(int handle) {
+		return handle >= 0 && handle < mHandleCount && mLive[handle];
+	}
+	
+	/**
+	 * Slot of a live handle, only valid until the next remove.
+	 */
+	public int getSlot(int handle) {
+		assert contains(handle);
+		return mSlots[handle];
+	}
+	
+	public int getHandle(int slot) {
+		return mHandles[slot];
+	}
+	
+	public void setTranslation(int handle, float x, float y, float z) {
+		set(getSlot(handle), TRANSLATION, x, y, z);
+	}
+	
+	public void setRotation(int handle, float x, float y, float z) {
+		set(getSlot(handle), ROTATION, x, y, z);
+	}
+	
+	public void setScale(int handle, float x, float y, float z) {
+		set(getSlot(handle), SCALE, x, y, z);
+	}
+	
+	public int getTextureId(int handle) {
+		return mTextures[getSlot(handle)];
+	}
+	
+	public int getEffectId(int handle) {
+		return mEffects[getSlot(handle)];
+	}
+	
+	/**
+	 * TRANSFORM_STRIDE floats per slot. Loops over every instance can change them in
+	 * place without going through handles, then call markDirty for the slots touched.
+	 */
+	public float[] getTransforms() {
+		return mTransforms;
+	}
+	
+	public void markDirty(int slot) {
+		if (!mDirty[slot]) {
+			mDirty[slot] = true;
+			++mDirtyCount;
+		}
+	}
+	
+	public void markAllDirty() {
+		Arrays.fill(mDirty, 0, mSize, true);
+		mDirtyCount = mSize;
+	}
+	
+	/**
+	 * Rebuilds the model matrices and spheres of moved instances and the MVP matrices
+	 * of those or of everyone when version says viewProjection changed, see
+	 * Model.Instance.getMVPMatrix. Runs of moved slots go through the MatrixKernel
+	 * in one call each.
+	 */
+	public void update(float[] viewProjection, int version) {
+		boolean camera = version != mViewProjectionVersion;
+		if (!camera && mDirtyCount == 0)
+			return;
+		
+		MatrixKernel kernel = mKernel;
+		float[] sphere = mModel.getBoundingSphere();
+		int slot = 0;
+		int remaining = mDirtyCount;
+		while (remaining > 0 && slot < mSize) {
+			if (!mDirty[slot]) {
+				++slot;
+				continue;
+			}
+			int start = slot;
+			while (slot < mSize && mDirty[slot])
+				mDirty[slot++] = false;
+			
+			int count = slot - start;
+			remaining -= count;
+			kernel.composeTRS(mTransforms, start * TRANSFORM_STRIDE, mModelMatrices, start * 16, count);
+			kernel.transformSpheres(sphere, mModelMatrices, start * 16, mSpheres, start * 4, count);
+			if (!camera)
+				updateMVPMatrices(kernel, viewProjection, start, count);
+		}
+		if (camera)
+			updateMVPMatrices(kernel, viewProjection, 0, mSize);
+		mDirtyCount = 0;
+		mViewProjectionVersion = version;
+	}
+	
+	private void updateMVPMatrices(MatrixKernel kernel, float[] viewProjection, int start, int count) {
+		kernel.multiplyMM(mMVPMatrices, start * 16, viewProjection, 0, mModelMatrices, start * 16, count);
+		if (mModel.getVertexFormat().isQuantized(VertexFormat.POSITION)) {
+			for (int slot = start; slot < start + count; slot++)
+				mModel.decodePositions(mMVPMatrices, slot * 16);
+		}
+	}
+	
+	/**
+	 * Writes the slots whose world sphere touches the frustum to visible, in slot order,
+	 * and returns how many there are. Needs update first.
+	 */
+	public int cull(Frustum frustum, int[] visible) {
+		float[] spheres = mSpheres;
+		int count = 0;
+		for (int slot = 0; slot < mSize; slot++) {
+			int s = slot * 4;
+			if (frustum.intersectsSphere(spheres[s], spheres[s + 1], spheres[s + 2], spheres[s + 3]))
+				visible[count++] = slot;
+		}
+		return count;
+	}
+	
+	/**
+	 * 16 floats per slot, valid after update.
+	 */
+	public float[] getMVPMatrices() {
+		return mMVPMatrices;
+	}
+	
+	public float[] getModelMatrices() {
+		return mModelMatrices;
+	}
+	
+	public float[] getWorldSpheres() {
+		return mSpheres;
+	}
+	
+	int getSlotTexture(int slot) {
+		return mTextures[slot];
+	}
+	
+	int getSlotEffect(int slot) {
+		return mEffects[slot];
+	}
+	
+	private void set(int slot, int field, float x, float y, float z) {
+		int t = slot * TRANSFORM_STRIDE + field;
+		mTransforms[t]		= x;
+		mTransforms[t + 1]	= y;
+		mTransforms[t + 2]	= z;
+		markDirty(slot);
+	}
+}
@@ -0,0 +1,31 @@
+package com.xyz.graphics;
+
+/**
+ * Matrix operations over many matrices at once, laid out back to back in float arrays
+ * (16 floats each, column major), so loops over thousands of instances make one call
+ * instead of one per instance. See MatrixMath.getKernel for the implementation in use.
+ */
+public interface MatrixKernel {
+	
+	/**
+	 * out = T * Rz * Ry * Rx * S for count transforms of InstanceStore.TRANSFORM_STRIDE
+	 * floats each, rotations in degrees.
+	 */
+	public void composeTRS(float[] transforms, int transformOffset, float[] out, int outOffset, int count);
+	
+	/**
+	 * out = lhs * matrices for count matrices and a shared lhs. out may be matrices
+	 * itself but must not overlap lhs.
+	 */
+	public void multiplyMM(float[] out, int outOffset, float[] lhs, int lhsOffset, float[] matrices,
+			int matricesOffset, int count);
+	
+	/**
+	 * Moves sphere (x, y, z, radius) by count matrices into 4 floats each of out, the
+	 * radius grows with the largest axis scale.
+	 */
+	public void transformSpheres(float[] sphere, float[] matrices, int matricesOffset, float[] out, int outOffset,
+			int count);
+	
+	public String getName();
+}
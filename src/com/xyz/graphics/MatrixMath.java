@@ -0,0 +1,182 @@
+package com.xyz.graphics;
+
+/**
+ * The android.opengl.Matrix operations the renderer uses, in plain Java so they also
+ * run off device. Same column major layout, same arguments and results.
+ */
+public final class MatrixMath {
+	
+	// Built from desktop/src, only present in desktop builds
+	private static final String VECTOR_KERNEL = "com.xyz.graphics.VectorMatrixKernel";
+	
+	private static MatrixKernel sKernel;
+	
+	private MatrixMath() {
+	}
+	
+	/**
+	 * Batch kernel for this runtime: the jdk.incubator.vector one on desktop JVMs that
+	 * have it (run with --add-modules jdk.incubator.vector), ScalarMatrixKernel otherwise.
+	 */
+	public static synchronized MatrixKernel getKernel() {
+		if (sKernel == null) {
+			MatrixKernel vector = loadVectorKernel();
+			sKernel = vector != null ? vector : new ScalarMatrixKernel();
+		}
+		return sKernel;
+	}
+	
+	/**
+	 * Null when the class or the module isn't there.
+	 */
+	public static MatrixKernel loadVectorKernel() {
+		try {
+			return (MatrixKernel)Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// Not ReflectiveOperationException, it needs API 19
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+	
+	public static void setIdentityM(float[] m, int offset) {
+		for (int i = 0; i < 16; i++)
+			m[offset + i] = (i % 5 == 0) ? 1.0f : 0.0f;
+	}
+	
+	/**
+	 * result = lhs * rhs, result must not overlap either of them.
+	 */
+	public static void multiplyMM(float[] result, int resultOffset, float[] lhs, int lhsOffset, float[] rhs,
+			int rhsOffset) {
+		
+		float l0 = lhs[lhsOffset], l1 = lhs[lhsOffset + 1], l2 = lhs[lhsOffset + 2], l3 = lhs[lhsOffset + 3];
+		float l4 = lhs[lhsOffset + 4], l5 = lhs[lhsOffset + 5], l6 = lhs[lhsOffset + 6], l7 = lhs[lhsOffset + 7];
+		float l8 = lhs[lhsOffset + 8], l9 = lhs[lhsOffset + 9], l10 = lhs[lhsOffset + 10], l11 = lhs[lhsOffset + 11];
+		float l12 = lhs[lhsOffset + 12], l13 = lhs[lhsOffset + 13], l14 = lhs[lhsOffset + 14], l15 = lhs[lhsOffset + 15];
+		for (int column = 0; column < 16; column += 4) {
+			float x = rhs[rhsOffset + column];
+			float y = rhs[rhsOffset + column + 1];
+			float z = rhs[rhsOffset + column + 2];
+			float w = rhs[rhsOffset + column + 3];
+			result[resultOffset + column]		= l0 * x + l4 * y + l8 * z + l12 * w;
+			result[resultOffset + column + 1]	= l1 * x + l5 * y + l9 * z + l13 * w;
+			result[resultOffset + column + 2]	= l2 * x + l6 * y + l10 * z + l14 * w;
+			result[resultOffset + column + 3]	= l3 * x + l7 * y + l11 * z + l15 * w;
+		}
+	}
+	
+	/**
+	 * m = m * T(x, y, z)
+	 */
+	public static void translateM(float[] m, int offset, float x, float y, float z) {
+		for (int i = 0; i < 4; i++) {
+			int row = offset + i;
+			m[row + 12] += m[row] * x + m[row + 4] * y + m[row + 8] * z;
+		}
+	}
+	
+	/**
+	 * m = m * S(x, y, z)
+	 */
+	public static void scaleM(float[] m, int offset, float x, float y, float z) {
+		for (int i = 0; i < 4; i++) {
+			int row = offset + i;
+			m[row]		*= x;
+			m[row + 4]	*= y;
+			m[row + 8]	*= z;
+		}
+	}
+	
+	/**
+	 * m = m * R, a rotation of angle degrees around the axis (x, y, z).
+	 */
+	public static void rotateM(float[] m, int offset, float angle, float x, float y, float z) {
+		float length = (float)Math.sqrt(x * x + y * y + z * z);
+		if (length != 1.0f) {
+			x /= length;
+			y /= length;
+			z /= length;
+		}
+		double radians = Math.toRadians(angle);
+		float s = (float)Math.sin(radians);
+		float c = (float)Math.cos(radians);
+		float nc = 1.0f - c;
+		
+		// Columns of the rotation
+		float r0 = x * x * nc + c,		r1 = x * y * nc + z * s,	r2 = z * x * nc - y * s;
+		float r4 = x * y * nc - z * s,	r5 = y * y * nc + c,		r6 = y * z * nc + x * s;
+		float r8 = z * x * nc + y * s,	r9 = y * z * nc - x * s,	r10 = z * z * nc + c;
+		
+		for (int i = 0; i < 4; i++) {
+			int row = offset + i;
+			float a = m[row], b = m[row + 4], d = m[row + 8];
+			m[row]		= a * r0 + b * r1 + d * r2;
+			m[row + 4]	= a * r4 + b * r5 + d * r6;
+			m[row + 8]	= a * r8 + b * r9 + d * r10;
+		}
+	}
+	
+	public static void frustumM(float[] m, int offset, float left, float right, float bottom, float top,
+			float near, float far) {
+		
+		float width = 1.0f / (right - left);
+		float height = 1.0f / (top - bottom);
+		float depth = 1.0f / (near - far);
+		for (int i = 0; i < 16; i++)
+			m[offset + i] = 0.0f;
+		m[offset]		= 2.0f * near * width;
+		m[offset + 5]	= 2.0f * near * height;
+		m[offset + 8]	= (right + left) * width;
+		m[offset + 9]	= (top + bottom) * height;
+		m[offset + 10]	= (far + near) * depth;
+		m[offset + 11]	= -1.0f;
+		m[offset + 14]	= 2.0f * far * near * depth;
+	}
+	
+	public static void setLookAtM(float[] m, int offset, float eyeX, float eyeY, float eyeZ, float centerX,
+			float centerY, float centerZ, float upX, float upY, float upZ) {
+		
+		// Forward
+		float fx = centerX - eyeX;
+		float fy = centerY - eyeY;
+		float fz = centerZ - eyeZ;
+		float length = 1.0f / (float)Math.sqrt(fx * fx + fy * fy + fz * fz);
+		fx *= length;
+		fy *= length;
+		fz *= length;
+		
+		// Side = forward x up
+		float sx = fy * upZ - fz * upY;
+		float sy = fz * upX - fx * upZ;
+		float sz = fx * upY - fy * upX;
+		length = 1.0f / (float)Math.sqrt(sx * sx + sy * sy + sz * sz);
+		sx *= length;
+		sy *= length;
+		sz *= length;
+		
+		// Up = side x forward
+		float ux = sy * fz - sz * fy;
+		float uy = sz * fx - sx * fz;
+		float uz = sx * fy - sy * fx;
+		
+		m[offset]		= sx;
+		m[offset + 1]	= ux;
+		m[offset + 2]	= -fx;
+		m[offset + 3]	= 0.0f;
+		m[offset + 4]	= sy;
+		m[offset + 5]	= uy;
+		m[offset + 6]	= -fy;
+		m[offset + 7]	= 0.0f;
+		m[offset + 8]	= sz;
+		m[offset + 9]	= uz;
+		m[offset + 10]	= -fz;
+		m[offset + 11]	= 0.0f;
+		m[offset + 12]	= 0.0f;
+		m[offset + 13]	= 0.0f;
+		m[offset + 14]	= 0.0f;
+		m[offset + 15]	= 1.0f;
+		translateM(m, offset, -eyeX, -eyeY, -eyeZ);
+	}
+}
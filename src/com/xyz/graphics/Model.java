@@ -1,43 +1,98 @@
 package com.xyz.graphics;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import android.opengl.GLES20;
+
+import com.xyz.core.EnvironmentSettings;
+
 public final class Model {
 	
+	public static final int USAGE_STATIC	= GLES20.GL_STATIC_DRAW;
+	public static final int USAGE_DYNAMIC	= GLES20.GL_DYNAMIC_DRAW;
+	
+	// Every vertex attribute interleaved in one buffer, see getVertexFormat
+	public static final int BUFFER_VERTICES	= 0;
+	public static final int BUFFER_INDICES	= 1;
+	// Geometry replicated for pseudo-instancing, see setBatchCopies
+	public static final int BUFFER_BATCH_VERTICES	= 2;
+	public static final int BUFFER_BATCH_INDICES	= 3;
+	public static final int BUFFER_COUNT			= 4;
+	
+	// Vertices a part of a split mesh can address with unsigned short indices
+	public static final int MAX_PART_VERTICES		= 0x10000;
+	
+	// Batch vertices interleave position, uv and the copy index
+	public static final int BATCH_STRIDE			= 6 * 4;
+	public static final int BATCH_UV_OFFSET			= 3 * 4;
+	public static final int BATCH_INSTANCE_OFFSET	= 5 * 4;
+	
+	/**
+	 * Told the first time an instance moves after the listener last handled it.
+	 */
+	public interface TransformListener {
+		public void onTransformChanged(Instance instance);
+	}
+	
 	public final class Instance {
+		private String		mName;
 		protected float[]	mTranslation;
-		protected float[]	mRotation;
+		protected float[]	mRotation; // Euler angles in degrees, applied x, y then z
 		protected float[]	mScale;
 		private int 		mTextureId;
 		private int			mEffectId;
 		
+		// Cached transforms, rebuilt only when the instance or the camera changes
+		private float[]		mModelMatrix;
+		private float[]		mMVPMatrix;
+		private boolean		mDirty;
+		private int			mViewProjectionVersion;
+		private float[]		mWorldSphere; // x, y, z, radius
+		private boolean		mMoved;
+		private int			mHandle;
+		private SceneGraph	mGraph;
+		private int			mNode;
+		
 		protected Instance() {
-			mTranslation	= new float[3];
-			mRotation		= new float[3];
-			mScale			= new float[3];
-			mTextureId		= -1;
-			mEffectId		= -1;
+			this(null, -1, -1, null, null, null);
 		}
 		
-		protected Instance(int textureId, int effectId, float[] translation, float[] rotation, float[] scale) {
+		protected Instance(String name, int textureId, int effectId, float[] translation, float[] rotation,
+				float[] scale) {
+			
 			assert textureId >= -1;
 			assert effectId >= -1;
-			assert translation != null && translation.length == 3;
-			assert rotation != null && rotation.length == 3;
-			assert scale != null && scale.length == 3;
+			assert translation == null || translation.length == 3;
+			assert rotation == null || rotation.length == 3;
+			assert scale == null || scale.length == 3;
 			
+			mName			= name;
 			mTextureId		= textureId;
 			mEffectId		= effectId;
-			mTranslation	= translation;
-			mRotation		= rotation;
-			mScale			= scale;
+			mTranslation	= translation != null ? translation : new float[] { 0.0f, 0.0f, 0.0f };
+			mRotation		= rotation != null ? rotation : new float[] { 0.0f, 0.0f, 0.0f };
+			mScale			= scale != null ? scale : new float[] { 1.0f, 1.0f, 1.0f };
+			
+			mModelMatrix			= new float[16];
+			mMVPMatrix				= new float[16];
+			mWorldSphere			= new float[4];
+			mMoved					= false;
+			mHandle					= -1;
+			mNode					= -1;
+			mDirty					= true;
+			mViewProjectionVersion	= -1;
 		}
 		
+		public String getName() {
+			return mName;
+		}
 		
 		public int getTextureId() {
 			return mTextureId;
@@ -47,6 +102,9 @@ public final class Model {
 			return mEffectId;
 		}
 		
+		/**
+		 * Call markDirty after changing the returned array in place.
+		 */
 		public float[] getTranslation() {
 			return mTranslation;
 		}
@@ -58,6 +116,135 @@ public final class Model {
 		public float[] getScale() {
 			return mScale;
 		}
+		
+		public void setTranslation(float x, float y, float z) {
+			mTranslation[0] = x;
+			mTranslation[1] = y;
+			mTranslation[2] = z;
+			markDirty();
+		}
+		
+		public void setRotation(float x, float y, float z) {
+			mRotation[0] = x;
+			mRotation[1] = y;
+			mRotation[2] = z;
+			markDirty();
+		}
+		
+		public void setScale(float x, float y, float z) {
+			mScale[0] = x;
+			mScale[1] = y;
+			mScale[2] = z;
+			markDirty();
+		}
+		
+		public void markDirty() {
+			mDirty = true;
+			if (mGraph != null)
+				mGraph.markDirty(mNode);
+			notifyMoved();
+		}
+		
+		private void notifyMoved() {
+			if (!mMoved && mTransformListener != null) {
+				mMoved = true;
+				mTransformListener.onTransformChanged(this);
+			}
+		}
+		
+		/**
+		 * Lets the instance report its next move.
+		 */
+		public void clearMoved() {
+			mMoved = false;
+		}
+		
+		/**
+		 * Slot of the instance in the renderer's scene index, -1 when not indexed.
+		 */
+		public int getHandle() {
+			return mHandle;
+		}
+		
+		public void setHandle(int handle) {
+			mHandle = handle;
+		}
+		
+		public Model getModel() {
+			return Model.this;
+		}
+		
+		/**
+		 * Graph the instance is a node of, its transform is then relative to the parent
+		 * node. Null when the instance stands alone.
+		 */
+		public SceneGraph getSceneGraph() {
+			return mGraph;
+		}
+		
+		public int getNode() {
+			return mNode;
+		}
+		
+		void attach(SceneGraph graph, int node) {
+			mGraph	= graph;
+			mNode	= node;
+			markDirty();
+		}
+		
+		/**
+		 * Called by the graph with the new world matrix whenever the instance or one of
+		 * its ancestors moved.
+		 */
+		void setWorldMatrix(float[] matrix, int offset) {
+			System.arraycopy(matrix, offset, mModelMatrix, 0, 16);
+			transformSphere(mModelMatrix, 0, mWorldSphere, 0);
+			mDirty = false;
+			mViewProjectionVersion = -1;
+			notifyMoved();
+		}
+		
+		/**
+		 * Model bounding sphere moved into world space.
+		 */
+		public float[] getWorldSphere() {
+			if (mDirty)
+				updateModelMatrix();
+			return mWorldSphere;
+		}
+		
+		public float[] getModelMatrix() {
+			if (mDirty)
+				updateModelMatrix();
+			return mModelMatrix;
+		}
+		
+		/**
+		 * Returns the cached model-view-projection matrix. version identifies
+		 * viewProjection, the product is only redone when either side changed.
+		 * It includes the decoding of quantized positions, so it is meant for the
+		 * vertex buffers rather than for model space.
+		 */
+		public float[] getMVPMatrix(float[] viewProjection, int version) {
+			if (mDirty || version != mViewProjectionVersion) {
+				MatrixMath.multiplyMM(mMVPMatrix, 0, viewProjection, 0, getModelMatrix(), 0);
+				decodePositions(mMVPMatrix, 0);
+				mViewProjectionVersion = version;
+			}
+			return mMVPMatrix;
+		}
+		
+		private void updateModelMatrix() {
+			if (mGraph != null) {
+				// Calls back setWorldMatrix
+				mGraph.update();
+				return;
+			}
+			composeModelMatrix(mModelMatrix, 0, mTranslation[0], mTranslation[1], mTranslation[2],
+					mRotation[0], mRotation[1], mRotation[2], mScale[0], mScale[1], mScale[2]);
+			mDirty = false;
+			transformSphere(mModelMatrix, 0, mWorldSphere, 0);
+		}
 	}
 	
 	private String		mName;
@@ -65,69 +252,275 @@ public final class Model {
 	private FloatBuffer	mNormalBuffer;
 	private FloatBuffer mColourBuffer;
 	private FloatBuffer mUVBuffer;
-	private ShortBuffer	mIndexBuffer;
+	private Buffer		mIndexBuffer; // ShortBuffer, or IntBuffer past MAX_PART_VERTICES
+	private int			mVertexCount;
+	private int			mIndexCount;
+	
+	// Local bounds, computed once from the vertices
+	private float[]		mBoundsMin;
+	private float[]		mBoundsMax;
+	private float[]		mSphere; // x, y, z, radius
+	
+	// Quantized positions are stored as (position - offset) / scale
+	private float[]		mPositionOffset;
+	private float[]		mPositionScale;
+	private boolean		mQuantize;
+	private boolean		mUVsNormalized;
+	private VertexFormat mVertexFormat;
+	
+	// GPU copies, 0 when missing or not uploaded
+	private int[]		mBufferIds;
+	private int			mUsage;
+	private boolean		mReleaseClientData;
+	private volatile int mBatchCopies; // Set by the update thread
+	private int			mUploadedBatchCopies;
+	private boolean		mOccluder;
+	private int			mIndexType;
+	private boolean		mUintIndices;
+	// Parts after the first of a mesh split for 16 bit indices, vertex and index
+	// buffer pairs, and the index counts of every part. null when not split.
+	private int[]		mPartBufferIds;
+	private int[]		mPartIndexCounts;
 	
 	private ArrayList<Instance> mInstances;
+	private InstanceStore mInstanceStore;
+	private TransformListener mTransformListener;
 	
 	
 	public Model(String name, float[] vertices, float[] normals, float[] colours, float[] uvCoords, short[] indices) {
+		this(name, toBuffer(vertices), toBuffer(normals), toBuffer(colours), toBuffer(uvCoords), toBuffer(indices));
+	}
+	
+	public Model(String name, float[] vertices, float[] normals, float[] colours, float[] uvCoords, int[] indices) {
+		this(name, toBuffer(vertices), toBuffer(normals), toBuffer(colours), toBuffer(uvCoords), toBuffer(indices));
+	}
+	
+	/**
+	 * Indices are unsigned, so up to 65536 vertices.
+	 */
+	public Model(String name, FloatBuffer vertices, FloatBuffer normals, FloatBuffer colours, FloatBuffer uvCoords,
+			ShortBuffer indices) {
+		
+		this(name, vertices, normals, colours, uvCoords, (Buffer)indices);
+	}
+	
+	/**
+	 * For meshes of any size, the indices are kept as shorts when they fit.
+	 */
+	public Model(String name, FloatBuffer vertices, FloatBuffer normals, FloatBuffer colours, FloatBuffer uvCoords,
+			IntBuffer indices) {
+		
+		this(name, vertices, normals, colours, uvCoords, narrow(indices));
+	}
+	
+	private Model(String name, FloatBuffer vertices, FloatBuffer normals, FloatBuffer colours, FloatBuffer uvCoords,
+			Buffer indices) {
 		
 		assert name != null && !name.isEmpty();
-		assert vertices != null && vertices.length > 0;
-		assert normals == null || normals.length > 0;
-		assert colours == null || colours.length > 0;
-		assert uvCoords == null || uvCoords.length > 0;
-		assert indices != null && indices.length > 0;
-		assert indices.length % 3 == 0;
+		assert vertices != null && vertices.limit() > 0;
+		assert normals == null || normals.limit() > 0;
+		assert colours == null || colours.limit() > 0;
+		assert uvCoords == null || uvCoords.limit() > 0;
+		assert indices != null && indices.limit() > 0;
+		assert indices.limit() % 3 == 0;
 		
 		mName		= name;
 		mInstances	= new ArrayList<Instance>();
 		
-		// Set vertices
-		ByteBuffer buffer = ByteBuffer.allocateDirect(vertices.length * 4);
+		mVertexBuffer	= vertices;
+		mNormalBuffer	= normals;
+		mUVBuffer		= uvCoords;
+		mIndexBuffer	= indices;
+		mVertexCount	= vertices.limit() / 3;
+		mIndexCount		= indices.limit();
+		computeBounds();
+		
+		mBufferIds			= new int[BUFFER_COUNT];
+		mUsage				= USAGE_STATIC;
+		mReleaseClientData	= false;
+		mBatchCopies		= 1;
+		mUploadedBatchCopies = 1;
+		
+		// Missing colours are a constant white attribute, not a stream
+		mColourBuffer = colours;
+		
+		mUVsNormalized = uvCoords != null;
+		for (int i = 0; uvCoords != null && i < uvCoords.limit(); i++) {
+			float uv = uvCoords.get(i);
+			if (uv < 0.0f || uv > 1.0f) {
+				mUVsNormalized = false;
+				break;
+			}
+		}
+		mQuantize = EnvironmentSettings.QUANTIZE_VERTICES;
+		updateVertexFormat();
+	}
+	
+	private void computeBounds() {
+		mBoundsMin	= new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		mBoundsMax	= new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		mSphere		= new float[4];
+		
+		FloatBuffer vertices = mVertexBuffer;
+		int length = mVertexCount * 3;
+		for (int i = 0; i < length; i++) {
+			float value = vertices.get(i);
+			int axis = i % 3;
+			if (value < mBoundsMin[axis])
+				mBoundsMin[axis] = value;
+			if (value > mBoundsMax[axis])
+				mBoundsMax[axis] = value;
+		}
+		
+		// Sphere around the box centre, tighter than half the box diagonal
+		for (int axis = 0; axis < 3; axis++)
+			mSphere[axis] = (mBoundsMin[axis] + mBoundsMax[axis]) * 0.5f;
+		float radius = 0.0f;
+		for (int i = 0; i < length; i += 3) {
+			float dx = vertices.get(i) - mSphere[0];
+			float dy = vertices.get(i + 1) - mSphere[1];
+			float dz = vertices.get(i + 2) - mSphere[2];
+			radius = Math.max(radius, dx * dx + dy * dy + dz * dz);
+		}
+		mSphere[3] = (float)Math.sqrt(radius);
+		
+		// Quantized positions span the bounds, flat axes keep a unit scale
+		mPositionOffset	= new float[3];
+		mPositionScale	= new float[3];
+		for (int axis = 0; axis < 3; axis++) {
+			float extent = (mBoundsMax[axis] - mBoundsMin[axis]) * 0.5f;
+			mPositionOffset[axis]	= mSphere[axis];
+			mPositionScale[axis]	= extent > 0.0f ? extent : 1.0f;
+		}
+	}
+	
+	/**
+	 * M = T * Rz * Ry * Rx * S, rotations are Euler angles in degrees.
+	 */
+	static void composeModelMatrix(float[] m, int offset, float tx, float ty, float tz, float rx, float ry,
+			float rz, float sx, float sy, float sz) {
+		
+		ScalarMatrixKernel.compose(m, offset, tx, ty, tz, rx, ry, rz, sx, sy, sz);
+	}
+	
+	/**
+	 * The bounding sphere moved by a model matrix.
+	 */
+	void transformSphere(float[] m, int offset, float[] sphere, int sphereOffset) {
+		ScalarMatrixKernel.transformSphere(mSphere, m, offset, sphere, sphereOffset);
+	}
+	
+	/**
+	 * Appends the decoding of quantized positions to an MVP matrix.
+	 */
+	void decodePositions(float[] mvp, int offset) {
+		if (mVertexFormat.isQuantized(VertexFormat.POSITION)) {
+			MatrixMath.translateM(mvp, offset, mPositionOffset[0], mPositionOffset[1], mPositionOffset[2]);
+			MatrixMath.scaleM(mvp, offset, mPositionScale[0], mPositionScale[1], mPositionScale[2]);
+		}
+	}
+	
+	private void updateVertexFormat() {
+		int attributes = 1 << VertexFormat.POSITION;
+		if (mNormalBuffer != null)
+			attributes |= 1 << VertexFormat.NORMAL;
+		if (mColourBuffer != null)
+			attributes |= 1 << VertexFormat.COLOUR;
+		if (mUVBuffer != null)
+			attributes |= 1 << VertexFormat.UV;
+		
+		int quantized = 0;
+		if (mQuantize) {
+			quantized = attributes & ((1 << VertexFormat.NORMAL) | (1 << VertexFormat.COLOUR));
+			// Dynamic positions could leave the bounds they are quantized against, and
+			// 16 bits across the bounds of dense meshes like scans would merge vertices
+			if (mUsage == USAGE_STATIC && mVertexCount <= MAX_PART_VERTICES)
+				quantized |= 1 << VertexFormat.POSITION;
+			if (mUVsNormalized)
+				quantized |= 1 << VertexFormat.UV;
+		}
+		mVertexFormat = new VertexFormat(attributes, quantized);
+	}
+	
+	public float[] getBoundsMin() {
+		return mBoundsMin;
+	}
+	
+	public float[] getBoundsMax() {
+		return mBoundsMax;
+	}
+	
+	public float[] getBoundingSphere() {
+		return mSphere;
+	}
+	
+	public float[] getPositionOffset() {
+		return mPositionOffset;
+	}
+	
+	public float[] getPositionScale() {
+		return mPositionScale;
+	}
+	
+	public static FloatBuffer newFloatBuffer(int size) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size * 4);
 		buffer.order(ByteOrder.nativeOrder());
-		mVertexBuffer = buffer.asFloatBuffer();
-		mVertexBuffer.put(vertices);
-		mVertexBuffer.position(0);
-		
-		// Set normals
-		if (normals != null) {
-			buffer = ByteBuffer.allocateDirect(normals.length * 4);
-			buffer.order(ByteOrder.nativeOrder());
-			mNormalBuffer = buffer.asFloatBuffer();
-			mNormalBuffer.put(normals);
-			mNormalBuffer.position(0);
-		}
-		else
-			mNormalBuffer = null;
-		
-		// Set colours
-		if (colours == null) {
-			// If colours doesn't exist, create all white
-			int numOfVerts = vertices.length / 3;
-			colours = new float[numOfVerts * 4];
-			Arrays.fill(colours, 1.0f);
-		}
-		
-		buffer = ByteBuffer.allocateDirect(colours.length * 4);
+		return buffer.asFloatBuffer();
+	}
+	
+	public static ShortBuffer newShortBuffer(int size) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size * 2);
 		buffer.order(ByteOrder.nativeOrder());
-		mColourBuffer = buffer.asFloatBuffer();
-		mColourBuffer.put(colours);
-		mColourBuffer.position(0);
+		return buffer.asShortBuffer();
+	}
+	
+	private static FloatBuffer toBuffer(float[] values) {
+		if (values == null)
+			return null;
 		
-		// Set UVs
-		buffer = ByteBuffer.allocateDirect(uvCoords.length * 4);
+		FloatBuffer buffer = newFloatBuffer(values.length);
+		buffer.put(values);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	public static IntBuffer newIntBuffer(int size) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size * 4);
 		buffer.order(ByteOrder.nativeOrder());
-		mUVBuffer = buffer.asFloatBuffer();
-		mUVBuffer.put(uvCoords);
-		mUVBuffer.position(0);
+		return buffer.asIntBuffer();
+	}
+	
+	private static Buffer narrow(IntBuffer indices) {
+		for (int i = 0; i < indices.limit(); i++) {
+			if ((indices.get(i) & 0xFFFFFFFFL) >= MAX_PART_VERTICES)
+				return indices;
+		}
 		
-		// Set indices
-		buffer = ByteBuffer.allocateDirect(indices.length * 2);
-		buffer.order(ByteOrder.nativeOrder());
-		mIndexBuffer = buffer.asShortBuffer();
-		mIndexBuffer.put(indices);
-		mIndexBuffer.position(0);
+		ShortBuffer buffer = newShortBuffer(indices.limit());
+		for (int i = 0; i < indices.limit(); i++)
+			buffer.put((short)indices.get(i));
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private static IntBuffer toBuffer(int[] values) {
+		if (values == null)
+			return null;
+		
+		IntBuffer buffer = newIntBuffer(values.length);
+		buffer.put(values);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private static ShortBuffer toBuffer(short[] values) {
+		if (values == null)
+			return null;
+		
+		ShortBuffer buffer = newShortBuffer(values.length);
+		buffer.put(values);
+		buffer.position(0);
+		return buffer;
 	}
 	
 	public String getName() {
@@ -150,21 +543,471 @@ public final class Model {
 		return mUVBuffer;
 	}
 	
-	public ShortBuffer getIndexBuffer() {
+	/**
+	 * A ShortBuffer of unsigned indices, or an IntBuffer for meshes of more than
+	 * MAX_PART_VERTICES vertices.
+	 */
+	public Buffer getIndexBuffer() {
 		return mIndexBuffer;
 	}
 	
+	public boolean hasIntIndices() {
+		return mIndexBuffer instanceof IntBuffer;
+	}
+	
+	public int getIndex(int i) {
+		if (mIndexBuffer instanceof IntBuffer)
+			return ((IntBuffer)mIndexBuffer).get(i);
+		return ((ShortBuffer)mIndexBuffer).get(i) & 0xFFFF;
+	}
 	
-	public void createInstance(final String instanceName, int textureId, int effectId,
+	public int getVertexCount() {
+		return mVertexCount;
+	}
+	
+	public int getIndexCount() {
+		return mIndexCount;
+	}
+	
+	/**
+	 * Usage hint for the GPU buffers, USAGE_STATIC or USAGE_DYNAMIC.
+	 * Only takes effect on the next upload.
+	 */
+	public void setUsage(int usage) {
+		assert usage == USAGE_STATIC || usage == USAGE_DYNAMIC;
+		mUsage = usage;
+		// The buffers on the GPU keep the layout they were packed with
+		if (!isResident())
+			updateVertexFormat();
+	}
+	
+	public int getUsage() {
+		return mUsage;
+	}
+	
+	/**
+	 * Stores normals, colours, in range uvs and, for static models up to
+	 * MAX_PART_VERTICES vertices, positions as normalized integers. Defaults to
+	 * EnvironmentSettings.QUANTIZE_VERTICES, call before the model is added to a scene.
+	 * A resident model keeps its layout until it is uploaded again.
+	 */
+	public void setQuantized(boolean quantize) {
+		mQuantize = quantize;
+		if (!isResident())
+			updateVertexFormat();
+	}
+	
+	/**
+	 * Layout of the interleaved vertex buffer, the one on the GPU while resident.
+	 */
+	public VertexFormat getVertexFormat() {
+		return mVertexFormat;
+	}
+	
+	/**
+	 * Bytes of the interleaved vertex buffer.
+	 */
+	public int getVertexBytes() {
+		return mVertexCount * mVertexFormat.getStride();
+	}
+	
+	/**
+	 * Bytes the same vertices took as separate float streams, missing colours
+	 * included as they used to be filled with white.
+	 */
+	public int getUnpackedVertexBytes() {
+		int size = mVertexFormat.getUnpackedSize();
+		if (!mVertexFormat.has(VertexFormat.COLOUR))
+			size += 4 * 4;
+		return mVertexCount * size;
+	}
+	
+	/**
+	 * Drops the client side buffers once they are on the GPU. Such a model can't be
+	 * uploaded again after the GL context is lost. Dynamic models keep them, updates
+	 * repack whole vertices.
+	 */
+	public void setReleaseClientData(boolean release) {
+		mReleaseClientData = release;
+	}
+	
+	/**
+	 * Number of copies of the geometry packed into the batch buffers, each copy
+	 * tagged with its index so one draw can place up to this many instances.
+	 * Only takes effect on the next upload, 1 disables batching.
+	 */
+	public void setBatchCopies(int copies) {
+		// Batched indices must still fit in unsigned shorts
+		mBatchCopies = Math.max(1, Math.min(copies, 0x10000 / mVertexCount));
+	}
+	
+	public int getBatchCopies() {
+		return mBatchCopies;
+	}
+	
+	/**
+	 * Copies in the batch buffers, what draws may place at once. Can lag behind
+	 * getBatchCopies until the model is uploaded again, GL thread only.
+	 */
+	public int getUploadedBatchCopies() {
+		return mUploadedBatchCopies;
+	}
+	
+	/**
+	 * Draws the instances into the OcclusionCuller depth buffer, for big opaque meshes
+	 * like walls and terrain. The geometry is copied when the model joins the scene, so
+	 * set it before then.
+	 */
+	public void setOccluder(boolean occluder) {
+		mOccluder = occluder;
+	}
+	
+	public boolean isOccluder() {
+		return mOccluder;
+	}
+	
+	public boolean isBatched() {
+		return mBufferIds[BUFFER_BATCH_VERTICES] != 0;
+	}
+	
+	public boolean isResident() {
+		return mBufferIds[BUFFER_VERTICES] != 0;
+	}
+	
+	public int getBufferId(int buffer) {
+		return mBufferIds[buffer];
+	}
+	
+	/**
+	 * Parts drawn separately, more than one when the mesh was split to fit 16 bit
+	 * indices. Each has its own vertex and index buffer.
+	 */
+	public int getPartCount() {
+		return mPartIndexCounts != null ? mPartIndexCounts.length : 1;
+	}
+	
+	/**
+	 * buffer is BUFFER_VERTICES or BUFFER_INDICES, the first part uses the model's.
+	 */
+	public int getPartBufferId(int part, int buffer) {
+		assert buffer == BUFFER_VERTICES || buffer == BUFFER_INDICES;
+		return part == 0 ? mBufferIds[buffer] : mPartBufferIds[(part - 1) * 2 + buffer];
+	}
+	
+	public int getPartIndexCount(int part) {
+		return mPartIndexCounts != null ? mPartIndexCounts[part] : mIndexCount;
+	}
+	
+	/**
+	 * Type of the uploaded indices, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT.
+	 */
+	public int getIndexType() {
+		return mIndexType;
+	}
+	
+	/**
+	 * Bytes that upload sends to GL, used to spread uploads over several frames.
+	 */
+	public int getUploadSize() {
+		int size = 0;
+		if (mVertexBuffer != null)
+			size += getVertexBytes();
+		if (mIndexBuffer != null)
+			size += mIndexBuffer.limit() * (hasIntIndices() ? 4 : 2);
+		if (mBatchCopies > 1)
+			size += mBatchCopies * (mVertexCount * BATCH_STRIDE + mIndexCount * 2);
+		return size;
+	}
+	
+	/**
+	 * Copies the geometry into GL buffer objects, needs a current GL context.
+	 * Meshes with int indices use them when uintIndices says the device has
+	 * OES_element_index_uint, otherwise they are split into parts.
+	 */
+	public boolean upload(GLBackend gl, boolean uintIndices) {
+		if (isResident())
+			return true;
+		if (mVertexBuffer == null)
+			return false;
+		
+		updateVertexFormat();
+		mUintIndices = uintIndices;
+		mIndexType = GLES20.GL_UNSIGNED_SHORT;
+		if (hasIntIndices() && !uintIndices)
+			uploadParts(gl);
+		else {
+			uploadBuffer(gl, GLES20.GL_ARRAY_BUFFER, BUFFER_VERTICES, packVertices(mVertexBuffer, 0, mVertexCount), 1);
+			uploadBuffer(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER, BUFFER_INDICES, mIndexBuffer, hasIntIndices() ? 4 : 2);
+			if (hasIntIndices())
+				mIndexType = GLES20.GL_UNSIGNED_INT;
+		}
+		int copies = mBatchCopies;
+		if (copies > 1)
+			uploadBatchGeometry(gl, copies);
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		
+		if (mReleaseClientData && mUsage != USAGE_DYNAMIC) {
+			mVertexBuffer	= null;
+			mNormalBuffer	= null;
+			mColourBuffer	= null;
+			mUVBuffer		= null;
+			mIndexBuffer	= null;
+		}
+		
+		return isResident();
+	}
+	
+	private void uploadBuffer(GLBackend gl, int target, int buffer, Buffer data, int elementSize) {
+		if (data == null)
+			return;
+		
+		gl.glGenBuffers(1, mBufferIds, buffer);
+		gl.glBindBuffer(target, mBufferIds[buffer]);
+		gl.glBufferData(target, data.limit() * elementSize, data, mUsage);
+	}
+	
+	/**
+	 * Walks the triangles in order, starting a new part whenever the next triangle
+	 * would take the current one past MAX_PART_VERTICES. Parts repeat the vertices
+	 * they share, every index stays exact.
+	 */
+	private void uploadParts(GLBackend gl) {
+		int[] remap = new int[mVertexCount];
+		for (int v = 0; v < mVertexCount; v++)
+			remap[v] = -1;
+		int[] vertices = new int[MAX_PART_VERTICES];
+		ShortBuffer indices = newShortBuffer(mIndexCount);
+		int[] ids = new int[16];
+		int[] counts = new int[8];
+		int parts = 0;
+		int vertexCount = 0;
+		int first = 0;
+		
+		for (int i = 0; i <= mIndexCount; i += 3) {
+			int added = 0;
+			for (int k = 0; i < mIndexCount && k < 3; k++) {
+				if (remap[getIndex(i + k)] < 0)
+					++added;
+			}
+			
+			if (i == mIndexCount || vertexCount + added > MAX_PART_VERTICES) {
+				if (parts * 2 == ids.length) {
+					ids = Arrays.copyOf(ids, ids.length * 2);
+					counts = Arrays.copyOf(counts, counts.length * 2);
+				}
+				ByteBuffer packed = ByteBuffer.allocateDirect(vertexCount * mVertexFormat.getStride());
+				packed.order(ByteOrder.nativeOrder());
+				float[] value = new float[4];
+				for (int v = 0; v < vertexCount; v++) {
+					packVertex(packed, v * mVertexFormat.getStride(), vertices[v], mVertexBuffer, vertices[v] * 3, value);
+					remap[vertices[v]] = -1;
+				}
+				
+				indices.position(first);
+				indices.limit(i);
+				gl.glGenBuffers(2, ids, parts * 2);
+				gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, ids[parts * 2 + BUFFER_VERTICES]);
+				gl.glBufferData(GLES20.GL_ARRAY_BUFFER, packed.limit(), packed, mUsage);
+				gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ids[parts * 2 + BUFFER_INDICES]);
+				gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, (i - first) * 2, indices.slice(), mUsage);
+				indices.limit(mIndexCount);
+				counts[parts++] = i - first;
+				
+				vertexCount = 0;
+				first = i;
+				if (i == mIndexCount)
+					break;
+			}
+			
+			for (int k = 0; k < 3; k++) {
+				int v = getIndex(i + k);
+				if (remap[v] < 0) {
+					remap[v] = vertexCount;
+					vertices[vertexCount++] = v;
+				}
+				indices.put(i + k, (short)remap[v]);
+			}
+		}
+		
+		mBufferIds[BUFFER_VERTICES]	= ids[BUFFER_VERTICES];
+		mBufferIds[BUFFER_INDICES]	= ids[BUFFER_INDICES];
+		mPartBufferIds				= Arrays.copyOfRange(ids, 2, parts * 2);
+		mPartIndexCounts			= Arrays.copyOf(counts, parts);
+	}
+	
+	/**
+	 * Interleaves count vertices from first into a buffer of the vertex format.
+	 * positions holds the positions of those vertices, from its current position.
+	 */
+	private ByteBuffer packVertices(FloatBuffer positions, int first, int count) {
+		VertexFormat format = mVertexFormat;
+		int stride = format.getStride();
+		ByteBuffer packed = ByteBuffer.allocateDirect(count * stride);
+		packed.order(ByteOrder.nativeOrder());
+		
+		float[] value = new float[4];
+		int base = positions.position();
+		for (int v = 0; v < count; v++)
+			packVertex(packed, v * stride, first + v, positions, base + v * 3, value);
+		return packed;
+	}
+	
+	private void packVertex(ByteBuffer packed, int start, int vertex, FloatBuffer positions, int position,
+			float[] value) {
+		
+		VertexFormat format = mVertexFormat;
+		readPosition(positions, position, value);
+		format.put(packed, start, VertexFormat.POSITION, value);
+		if (format.has(VertexFormat.NORMAL)) {
+			read(mNormalBuffer, vertex, 3, value);
+			format.put(packed, start, VertexFormat.NORMAL, value);
+		}
+		if (format.has(VertexFormat.COLOUR)) {
+			read(mColourBuffer, vertex, 4, value);
+			format.put(packed, start, VertexFormat.COLOUR, value);
+		}
+		if (format.has(VertexFormat.UV)) {
+			read(mUVBuffer, vertex, 2, value);
+			format.put(packed, start, VertexFormat.UV, value);
+		}
+	}
+	
+	/**
+	 * Position at index in the range the vertex buffer stores, with w = 1.
+	 */
+	private void readPosition(FloatBuffer positions, int index, float[] value) {
+		boolean quantized = mVertexFormat.isQuantized(VertexFormat.POSITION);
+		for (int axis = 0; axis < 3; axis++) {
+			float position = positions.get(index + axis);
+			value[axis] = quantized ? (position - mPositionOffset[axis]) / mPositionScale[axis] : position;
+		}
+		value[3] = 1.0f;
+	}
+	
+	private static void read(FloatBuffer source, int vertex, int components, float[] value) {
+		for (int i = 0; i < 4; i++)
+			value[i] = i < components ? source.get(vertex * components + i) : 0.0f;
+	}
+	
+	private void uploadBatchGeometry(GLBackend gl, int copies) {
+		FloatBuffer vertices = newFloatBuffer(mVertexCount * copies * BATCH_STRIDE / 4);
+		ShortBuffer indices = newShortBuffer(mIndexCount * copies);
+		
+		// Positions in the same range as the vertex buffer, both draw with the same matrices
+		float[] position = new float[4];
+		for (int copy = 0; copy < copies; copy++) {
+			for (int v = 0; v < mVertexCount; v++) {
+				readPosition(mVertexBuffer, v * 3, position);
+				vertices.put(position[0]);
+				vertices.put(position[1]);
+				vertices.put(position[2]);
+				vertices.put(mUVBuffer != null ? mUVBuffer.get(v * 2) : 0.0f);
+				vertices.put(mUVBuffer != null ? mUVBuffer.get(v * 2 + 1) : 0.0f);
+				vertices.put(copy);
+			}
+			
+			int base = copy * mVertexCount;
+			for (int i = 0; i < mIndexCount; i++)
+				indices.put((short)(getIndex(i) + base));
+		}
+		vertices.position(0);
+		indices.position(0);
+		
+		uploadBuffer(gl, GLES20.GL_ARRAY_BUFFER, BUFFER_BATCH_VERTICES, vertices, 4);
+		uploadBuffer(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER, BUFFER_BATCH_INDICES, indices, 2);
+		mUploadedBatchCopies = copies;
+	}
+	
+	/**
+	 * Replaces the positions of whole vertices, offset and the length of vertices
+	 * are in floats. The GPU copy is updated too if the model is resident, repacked
+	 * from the other client streams. Meant for models using USAGE_DYNAMIC, a read-only
+	 * client copy, like the mapped one of a binary model, is first copied into memory.
+	 */
+	public void updateVertices(GLBackend gl, FloatBuffer vertices, int offset) {
+		assert offset % 3 == 0 && vertices.remaining() % 3 == 0;
+		
+		if (mVertexBuffer != null && mVertexBuffer.isReadOnly()) {
+			// Split meshes are packed again from the client copy, it has to take the update
+			FloatBuffer copy = newFloatBuffer(mVertexBuffer.limit());
+			FloatBuffer source = mVertexBuffer.duplicate();
+			source.position(0);
+			copy.put(source);
+			copy.position(0);
+			mVertexBuffer = copy;
+		}
+		if (mVertexBuffer != null) {
+			FloatBuffer target = mVertexBuffer.duplicate();
+			target.position(offset);
+			target.put(vertices.duplicate());
+		}
+		
+		if (mPartIndexCounts != null) {
+			// Parts repeat vertices, simpler to build them again
+			deleteBuffers(gl);
+			upload(gl, mUintIndices);
+		}
+		else if (isResident()) {
+			int first = offset / 3;
+			ByteBuffer packed = packVertices(vertices, first, vertices.remaining() / 3);
+			gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferIds[BUFFER_VERTICES]);
+			gl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, first * mVertexFormat.getStride(), packed.limit(), packed);
+			gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		}
+	}
+	
+	/**
+	 * Forgets the GPU buffers without deleting them, for when the GL context
+	 * has been lost and they are gone already.
+	 */
+	public void invalidateBuffers() {
+		for (int i = 0; i < BUFFER_COUNT; i++)
+			mBufferIds[i] = 0;
+		mPartBufferIds = null;
+		mPartIndexCounts = null;
+		mUploadedBatchCopies = 1;
+	}
+	
+	public void deleteBuffers(GLBackend gl) {
+		gl.glDeleteBuffers(BUFFER_COUNT, mBufferIds, 0);
+		if (mPartBufferIds != null)
+			gl.glDeleteBuffers(mPartBufferIds.length, mPartBufferIds, 0);
+		invalidateBuffers();
+	}
+	
+	
+	public Instance createInstance(final String instanceName, int textureId, int effectId,
 			float[] translation, float[] rotation, float[] scale) {
 		
-		mInstances.add(new Instance(textureId, effectId, translation, rotation, scale));
+		Instance instance = new Instance(instanceName, textureId, effectId, translation, rotation, scale);
+		mInstances.add(instance);
+		return instance;
 	}
 	
 	public Iterable<Instance> getInstances() {
 		return mInstances;
 	}
 	
+	/**
+	 * Flat storage for large numbers of instances, created on first use. Its instances
+	 * are drawn along with the ones from createInstance. Same threading rules as them,
+	 * and like them the store has to exist before the model joins a scene.
+	 */
+	public InstanceStore getInstanceStore() {
+		if (mInstanceStore == null)
+			mInstanceStore = new InstanceStore(this, 16);
+		return mInstanceStore;
+	}
+	
+	public boolean hasInstanceStore() {
+		return mInstanceStore != null;
+	}
+	
+	public void setTransformListener(TransformListener listener) {
+		mTransformListener = listener;
+	}
+	
 
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
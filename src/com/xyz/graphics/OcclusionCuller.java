@@ -0,0 +1,524 @@
+package com.xyz.graphics;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Software occlusion culling for dense scenes, where frustum culling keeps most of what
+ * hides behind walls. The instances of occluder models (see Model.setOccluder) are
+ * rasterized into a small depth buffer on the CPU, and a hierarchical Z pyramid of it,
+ * every texel holding the farthest depth of the four below, lets isOccluded test a
+ * bounding box against the few texels covering its screen rectangle.
+ *
+ * Rasterizing runs on a worker thread of its own between begin and end, while the
+ * caller does its frustum culling. Pixels are sampled at their centres, so the test is
+ * exact for the buffer rather than conservative: at 256x128 an object peeking through a
+ * gap narrower than a pixel may be culled. The cost follows the occluder triangles and
+ * the pixels they cover, so occluders should be simple: a few hundred triangles take a
+ * fraction of a millisecond on a desktop JVM, hundreds of thousands tens of them.
+ *
+ * One frame at a time: begin, isOccluded calls, end is called by the first of them.
+ * The SceneUpdater does this when given a culler, see SceneUpdater.setOcclusionCuller.
+ */
+public final class OcclusionCuller implements Runnable {
+	
+	public static final int DEFAULT_WIDTH	= 256;
+	public static final int DEFAULT_HEIGHT	= 128;
+	
+	// Triangles smaller than this, in pixels squared, cover no centre worth the setup
+	private static final float MIN_AREA = 1.0e-4f;
+	
+	private static final class Geometry {
+		final float[]	mPositions;
+		final int[]		mIndices;
+		
+		Geometry(float[] positions, int[] indices) {
+			mPositions	= positions;
+			mIndices	= indices;
+		}
+	}
+	
+	private final int		mWidth;
+	private final int		mHeight;
+	private final int		mLevelCount;
+	private final int[]		mLevelOffsets; // Into mDepth, level 0 is the rasterized buffer
+	private final float[]	mDepth; // 0 near to 1 far, cleared to 1
+	
+	// Occluders, the geometry kept by model as client data may be released after upload
+	private final IdentityHashMap<Model, Geometry> mGeometry;
+	private Model.Instance[]	mOccluders;
+	private Geometry[]			mOccluderGeometry;
+	private float[]				mMatrices; // MVP per occluder, written by begin
+	private boolean[]			mInFrustum;
+	private float[]				mClip; // Transformed vertices, 4 per vertex
+	private final float[]		mPolygon; // Near clipped triangle, up to 4 vertices of x, y, z, w
+	private final int[]			mTriangle;
+	
+	private final float[]		mViewProjection;
+	private final Frustum		mFrustum;
+	private boolean				mEmpty; // Nothing was drawn, nothing can be occluded
+	private boolean				mPending;
+	
+	private final Thread		mThread;
+	private final Semaphore		mStart;
+	private final Semaphore		mDone;
+	private volatile boolean	mRunning;
+	
+	// Last frame
+	private long				mRasterTime;
+	private int					mTriangles;
+	private int					mTested;
+	private int					mOccluded;
+	
+	public OcclusionCuller() {
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT, true);
+	}
+	
+	/**
+	 * width and height must be powers of two. threaded false rasterizes inside begin on
+	 * the calling thread.
+	 */
+	public OcclusionCuller(int width, int height, boolean threaded) {
+		assert width > 0 && (width & (width - 1)) == 0;
+		assert height > 0 && (height & (height - 1)) == 0;
+		
+		mWidth	= width;
+		mHeight	= height;
+		int levels = 1;
+		while ((width >> (levels - 1)) > 1 || (height >> (levels - 1)) > 1)
+			++levels;
+		mLevelCount		= levels;
+		mLevelOffsets	= new int[levels];
+		int size = 0;
+		for (int level = 0; level < levels; level++) {
+			mLevelOffsets[level] = size;
+			size += getLevelWidth(level) * getLevelHeight(level);
+		}
+		mDepth = new float[size];
+		
+		mGeometry			= new IdentityHashMap<Model, Geometry>();
+		mOccluders			= new Model.Instance[0];
+		mOccluderGeometry	= new Geometry[0];
+		mMatrices			= new float[0];
+		mInFrustum			= new boolean[0];
+		mClip				= new float[0];
+		mPolygon			= new float[4 * 4];
+		mTriangle			= new int[3];
+		mViewProjection		= new float[16];
+		mFrustum			= new Frustum();
+		mEmpty				= true;
+		
+		mStart	= new Semaphore(0);
+		mDone	= new Semaphore(0);
+		if (threaded) {
+			mRunning = true;
+			mThread = new Thread(this, "OcclusionCuller");
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+		else
+			mThread = null;
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	/**
+	 * Takes the instances of the occluder models among models. Called by the SceneUpdater
+	 * whenever the scene changes, not between begin and end.
+	 */
+	public void setOccluders(Model[] models) {
+		assert !mPending;
+		
+		ArrayList<Model.Instance> occluders = new ArrayList<Model.Instance>();
+		ArrayList<Geometry> geometry = new ArrayList<Geometry>();
+		IdentityHashMap<Model, Geometry> kept = new IdentityHashMap<Model, Geometry>();
+		int maxVertices = 0;
+		for (Model model : models) {
+			if (!model.isOccluder())
+				continue;
+			
+			Geometry shape = mGeometry.get(model);
+			if (shape == null)
+				shape = copyGeometry(model);
+			if (shape == null)
+				continue;
+			kept.put(model, shape);
+			maxVertices = Math.max(maxVertices, shape.mPositions.length / 3);
+			for (Model.Instance instance : model.getInstances()) {
+				occluders.add(instance);
+				geometry.add(shape);
+			}
+		}
+		mGeometry.clear();
+		mGeometry.putAll(kept);
+		
+		mOccluders			= occluders.toArray(new Model.Instance[occluders.size()]);
+		mOccluderGeometry	= geometry.toArray(new Geometry[geometry.size()]);
+		mMatrices			= new float[mOccluders.length * 16];
+		mInFrustum			= new boolean[mOccluders.length];
+		if (mClip.length < maxVertices * 4)
+			mClip = new float[maxVertices * 4];
+	}
+	
+	public int getOccluderCount() {
+		return mOccluders.length;
+	}
+	
+	/**
+	 * Starts rasterizing the occluders as seen through viewProjection. Reads the
+	 * instances' model matrices, so call it from the thread that moves them.
+	 */
+	public void begin(float[] viewProjection) {
+		assert !mPending;
+		
+		System.arraycopy(viewProjection, 0, mViewProjection, 0, 16);
+		mFrustum.set(viewProjection);
+		for (int i = 0; i < mOccluders.length; i++) {
+			Model.Instance instance = mOccluders[i];
+			mInFrustum[i] = mFrustum.intersectsSphere(instance.getWorldSphere());
+			if (mInFrustum[i])
+				MatrixMath.multiplyMM(mMatrices, i * 16, viewProjection, 0, instance.getModelMatrix(), 0);
+		}
+		mTested = 0;
+		mOccluded = 0;
+		if (mOccluders.length == 0) {
+			mEmpty = true;
+			mTriangles = 0;
+			mRasterTime = 0;
+			return;
+		}
+		if (mThread != null) {
+			mPending = true;
+			mStart.release();
+		}
+		else
+			rasterize();
+	}
+	
+	/**
+	 * Waits for the depth buffer of the frame started by begin.
+	 */
+	public void end() {
+		if (!mPending)
+			return;
+		if (mThread != null)
+			mDone.acquireUninterruptibly();
+		mPending = false;
+	}
+	
+	/**
+	 * Whether the world space box is hidden behind the occluders. Boxes crossing the near
+	 * plane or off the screen are never occluded, frustum culling is left to the caller.
+	 */
+	public boolean isOccluded(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		end();
+		++mTested;
+		if (mEmpty)
+			return false;
+		
+		float[] m = mViewProjection;
+		float left = Float.MAX_VALUE, right = -Float.MAX_VALUE;
+		float bottom = Float.MAX_VALUE, top = -Float.MAX_VALUE;
+		float near = Float.MAX_VALUE;
+		for (int corner = 0; corner < 8; corner++) {
+			float x = (corner & 1) != 0 ? maxX : minX;
+			float y = (corner & 2) != 0 ? maxY : minY;
+			float z = (corner & 4) != 0 ? maxZ : minZ;
+			float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+			float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+			if (cz < -cw || cw <= 0.0f)
+				return false;
+			
+			float inverse = 1.0f / cw;
+			float sx = (m[0] * x + m[4] * y + m[8] * z + m[12]) * inverse;
+			float sy = (m[1] * x + m[5] * y + m[9] * z + m[13]) * inverse;
+			left	= Math.min(left, sx);
+			right	= Math.max(right, sx);
+			bottom	= Math.min(bottom, sy);
+			top		= Math.max(top, sy);
+			near	= Math.min(near, cz * inverse);
+		}
+		
+		// Pixels touched by the rectangle
+		int x0 = (int)Math.floor((left * 0.5f + 0.5f) * mWidth);
+		int x1 = (int)Math.floor((right * 0.5f + 0.5f) * mWidth);
+		int y0 = (int)Math.floor((bottom * 0.5f + 0.5f) * mHeight);
+		int y1 = (int)Math.floor((top * 0.5f + 0.5f) * mHeight);
+		if (x1 < 0 || y1 < 0 || x0 >= mWidth || y0 >= mHeight)
+			return false;
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, mWidth - 1);
+		y1 = Math.min(y1, mHeight - 1);
+		
+		// Finest level where the rectangle covers at most 4x4 texels
+		int level = 0;
+		while (level < mLevelCount - 1 && ((x1 >> level) - (x0 >> level) > 3 || (y1 >> level) - (y0 >> level) > 3))
+			++level;
+		
+		float depth = near * 0.5f + 0.5f;
+		int offset = mLevelOffsets[level];
+		int width = getLevelWidth(level);
+		for (int y = y0 >> level; y <= y1 >> level; y++) {
+			for (int x = x0 >> level; x <= x1 >> level; x++) {
+				if (depth <= mDepth[offset + y * width + x])
+					return false;
+			}
+		}
+		++mOccluded;
+		return true;
+	}
+	
+	/**
+	 * Tests the box around a sphere, x, y, z and radius as in Model.Instance.getWorldSphere.
+	 */
+	public boolean isOccluded(float[] sphere, int offset) {
+		float x = sphere[offset], y = sphere[offset + 1], z = sphere[offset + 2], radius = sphere[offset + 3];
+		return isOccluded(x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+	}
+	
+	/**
+	 * Nanoseconds the last frame took to rasterize and build the pyramid, on the worker.
+	 */
+	public long getRasterTime() {
+		return mRasterTime;
+	}
+	
+	public int getTriangleCount() {
+		return mTriangles;
+	}
+	
+	/**
+	 * Boxes tested and found occluded since the last begin.
+	 */
+	public int getTestedCount() {
+		return mTested;
+	}
+	
+	public int getOccludedCount() {
+		return mOccluded;
+	}
+	
+	/**
+	 * Level 0 is width x height depths, row 0 at the bottom, followed by the coarser
+	 * levels. Valid after end.
+	 */
+	public float[] getDepthBuffer() {
+		return mDepth;
+	}
+	
+	public int getLevelCount() {
+		return mLevelCount;
+	}
+	
+	public int getLevelOffset(int level) {
+		return mLevelOffsets[level];
+	}
+	
+	public int getLevelWidth(int level) {
+		return Math.max(1, mWidth >> level);
+	}
+	
+	public int getLevelHeight(int level) {
+		return Math.max(1, mHeight >> level);
+	}
+	
+	/**
+	 * Stops the worker thread, the culler can't be used afterwards.
+	 */
+	public void shutdown() {
+		mRunning = false;
+		if (mThread != null)
+			mThread.interrupt();
+	}
+	
+	public void run() {
+		while (mRunning) {
+			try {
+				mStart.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			rasterize();
+			mDone.release();
+		}
+	}
+	
+	private void rasterize() {
+		long start = System.nanoTime();
+		float[] depth = mDepth;
+		int size = mWidth * mHeight;
+		for (int i = 0; i < size; i++)
+			depth[i] = 1.0f;
+		
+		int triangles = 0;
+		for (int i = 0; i < mOccluders.length; i++) {
+			if (!mInFrustum[i])
+				continue;
+			
+			Geometry shape = mOccluderGeometry[i];
+			transform(shape.mPositions, mMatrices, i * 16);
+			int[] indices = shape.mIndices;
+			for (int t = 0; t < indices.length; t += 3)
+				triangles += drawTriangle(indices[t] * 4, indices[t + 1] * 4, indices[t + 2] * 4);
+		}
+		mTriangles = triangles;
+		mEmpty = triangles == 0;
+		buildPyramid();
+		mRasterTime = System.nanoTime() - start;
+	}
+	
+	private void transform(float[] positions, float[] m, int o) {
+		float[] clip = mClip;
+		for (int p = 0, c = 0; p < positions.length; p += 3, c += 4) {
+			float x = positions[p], y = positions[p + 1], z = positions[p + 2];
+			clip[c]		= m[o] * x + m[o + 4] * y + m[o + 8] * z + m[o + 12];
+			clip[c + 1]	= m[o + 1] * x + m[o + 5] * y + m[o + 9] * z + m[o + 13];
+			clip[c + 2]	= m[o + 2] * x + m[o + 6] * y + m[o + 10] * z + m[o + 14];
+			clip[c + 3]	= m[o + 3] * x + m[o + 7] * y + m[o + 11] * z + m[o + 15];
+		}
+	}
+	
+	/**
+	 * Clips the triangle at the near plane and rasterizes what is left, returns 1 when
+	 * anything of it was in front of the near plane.
+	 */
+	private int drawTriangle(int a, int b, int c) {
+		float[] clip = mClip;
+		float[] polygon = mPolygon;
+		int[] vertices = mTriangle;
+		vertices[0] = a;
+		vertices[1] = b;
+		vertices[2] = c;
+		int count = 0;
+		for (int k = 0; k < 3; k++) {
+			int from = vertices[k], to = vertices[(k + 1) % 3];
+			float fromDistance = clip[from + 2] + clip[from + 3];
+			float toDistance = clip[to + 2] + clip[to + 3];
+			if (fromDistance >= 0.0f) {
+				System.arraycopy(clip, from, polygon, count * 4, 4);
+				++count;
+			}
+			if ((fromDistance >= 0.0f) != (toDistance >= 0.0f)) {
+				float t = fromDistance / (fromDistance - toDistance);
+				for (int i = 0; i < 4; i++)
+					polygon[count * 4 + i] = clip[from + i] + (clip[to + i] - clip[from + i]) * t;
+				++count;
+			}
+		}
+		if (count < 3)
+			return 0;
+		
+		for (int k = 1; k + 1 < count; k++)
+			fill(polygon, 0, k * 4, (k + 1) * 4);
+		return 1;
+	}
+	
+	/**
+	 * Writes the nearest depth into the pixels whose centre the triangle covers.
+	 */
+	private void fill(float[] v, int a, int b, int c) {
+		float halfWidth = mWidth * 0.5f, halfHeight = mHeight * 0.5f;
+		float inverse = 1.0f / v[a + 3];
+		float ax = (v[a] * inverse + 1.0f) * halfWidth, ay = (v[a + 1] * inverse + 1.0f) * halfHeight;
+		float az = v[a + 2] * inverse * 0.5f + 0.5f;
+		inverse = 1.0f / v[b + 3];
+		float bx = (v[b] * inverse + 1.0f) * halfWidth, by = (v[b + 1] * inverse + 1.0f) * halfHeight;
+		float bz = v[b + 2] * inverse * 0.5f + 0.5f;
+		inverse = 1.0f / v[c + 3];
+		float cx = (v[c] * inverse + 1.0f) * halfWidth, cy = (v[c + 1] * inverse + 1.0f) * halfHeight;
+		float cz = v[c + 2] * inverse * 0.5f + 0.5f;
+		
+		float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		if (Math.abs(area) < MIN_AREA)
+			return;
+		if (area < 0.0f) {
+			// Both windings are drawn, swap to counter clockwise
+			float x = bx, y = by, z = bz;
+			bx = cx;
+			by = cy;
+			bz = cz;
+			cx = x;
+			cy = y;
+			cz = z;
+			area = -area;
+		}
+		
+		int x0 = Math.max(0, (int)Math.floor(Math.min(ax, Math.min(bx, cx))));
+		int x1 = Math.min(mWidth - 1, (int)Math.floor(Math.max(ax, Math.max(bx, cx))));
+		int y0 = Math.max(0, (int)Math.floor(Math.min(ay, Math.min(by, cy))));
+		int y1 = Math.min(mHeight - 1, (int)Math.floor(Math.max(ay, Math.max(by, cy))));
+		if (x0 > x1 || y0 > y1)
+			return;
+		
+		// Edge functions, each weighting the vertex opposite, step by a constant per pixel
+		float inverseArea = 1.0f / area;
+		float stepA = -(cy - by), stepB = -(ay - cy), stepC = -(by - ay);
+		float[] depth = mDepth;
+		for (int y = y0; y <= y1; y++) {
+			float px = x0 + 0.5f, py = y + 0.5f;
+			float ea = (cx - bx) * (py - by) - (cy - by) * (px - bx);
+			float eb = (ax - cx) * (py - cy) - (ay - cy) * (px - cx);
+			float ec = (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+			int row = y * mWidth;
+			for (int x = x0; x <= x1; x++) {
+				if (ea >= 0.0f && eb >= 0.0f && ec >= 0.0f) {
+					float z = (ea * az + eb * bz + ec * cz) * inverseArea;
+					if (z < depth[row + x])
+						depth[row + x] = z;
+				}
+				ea += stepA;
+				eb += stepB;
+				ec += stepC;
+			}
+		}
+	}
+	
+	/**
+	 * Every texel of a level keeps the farthest of the up to 2x2 below it.
+	 */
+	private void buildPyramid() {
+		float[] depth = mDepth;
+		for (int level = 1; level < mLevelCount; level++) {
+			int source = mLevelOffsets[level - 1], target = mLevelOffsets[level];
+			int sourceWidth = getLevelWidth(level - 1), sourceHeight = getLevelHeight(level - 1);
+			int width = getLevelWidth(level), height = getLevelHeight(level);
+			for (int y = 0; y < height; y++) {
+				int y0 = Math.min(y * 2, sourceHeight - 1), y1 = Math.min(y * 2 + 1, sourceHeight - 1);
+				for (int x = 0; x < width; x++) {
+					int x0 = Math.min(x * 2, sourceWidth - 1), x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+					float far = Math.max(Math.max(depth[source + y0 * sourceWidth + x0],
+							depth[source + y0 * sourceWidth + x1]), Math.max(depth[source + y1 * sourceWidth + x0],
+							depth[source + y1 * sourceWidth + x1]));
+					depth[target + y * width + x] = far;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Positions and indices of the model, null when its client data is gone.
+	 */
+	private static Geometry copyGeometry(Model model) {
+		FloatBuffer vertices = model.getVertexBuffer();
+		if (vertices == null || model.getIndexBuffer() == null)
+			return null;
+		
+		float[] positions = new float[model.getVertexCount() * 3];
+		FloatBuffer source = vertices.duplicate();
+		source.position(0);
+		source.get(positions);
+		int[] indices = new int[model.getIndexCount()];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = model.getIndex(i);
+		return new Geometry(positions, indices);
+	}
+}
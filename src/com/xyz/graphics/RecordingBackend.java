@@ -0,0 +1,457 @@
+package com.xyz.graphics;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import com.xyz.resources.Etc1Codec;
+
+/**
+ * Headless backend, counts what the renderer asks of GL without a context or a GPU,
+ * optionally keeping a trace of the calls. Object names are handed out in sequence,
+ * shaders always compile and programs always link. Attributes and uniforms exist when
+ * their name appears in an attached shader, so location lookups behave as on a device.
+ */
+public final class RecordingBackend implements GLBackend {
+	
+	// Counters, see reset
+	private int		mCalls;
+	private int		mDrawCalls;
+	private long	mIndices;
+	private int		mProgramBinds;
+	private int		mTextureBinds;
+	private int		mBufferBinds;
+	private int		mAttributeToggles;
+	private int		mCapabilityToggles;
+	private int		mUniformUploads;
+	private long	mBufferBytes;
+	private long	mTextureBytes;
+	
+	private int		mNextName;
+	private int		mNextLocation;
+	private HashMap<Integer, String> mShaderSources;
+	private HashMap<Integer, StringBuilder> mProgramSources;
+	private HashMap<Integer, HashMap<String, Integer>> mBoundAttributes;
+	private HashMap<Integer, HashMap<String, Integer>> mUniformLocations;
+	private int		mMaxVertexUniformVectors;
+	private boolean	mEtc1Supported;
+	private String	mExtensions;
+	
+	private ArrayList<String> mTrace;
+	
+	public RecordingBackend() {
+		mNextName = 1;
+		mShaderSources = new HashMap<Integer, String>();
+		mProgramSources = new HashMap<Integer, StringBuilder>();
+		mBoundAttributes = new HashMap<Integer, HashMap<String, Integer>>();
+		mUniformLocations = new HashMap<Integer, HashMap<String, Integer>>();
+		mMaxVertexUniformVectors = 128; // The GLES2 minimum
+		mEtc1Supported = true;
+		mExtensions = "GL_OES_compressed_ETC1_RGB8_texture GL_OES_element_index_uint";
+	}
+	
+	/**
+	 * Limits the device would report, to replay a scene as a given device would draw it.
+	 */
+	public void setLimits(int maxVertexUniformVectors, boolean etc1Supported) {
+		mMaxVertexUniformVectors = maxVertexUniformVectors;
+		mEtc1Supported = etc1Supported;
+	}
+	
+	/**
+	 * Extension string glGetString(GL_EXTENSIONS) returns.
+	 */
+	public void setExtensions(String extensions) {
+		mExtensions = extensions;
+	}
+	
+	/**
+	 * Keeps a line per call from now on, null stops tracing.
+	 */
+	public void setTrace(ArrayList<String> trace) {
+		mTrace = trace;
+	}
+	
+	public void reset() {
+		mCalls				= 0;
+		mDrawCalls			= 0;
+		mIndices			= 0;
+		mProgramBinds		= 0;
+		mTextureBinds		= 0;
+		mBufferBinds		= 0;
+		mAttributeToggles	= 0;
+		mCapabilityToggles	= 0;
+		mUniformUploads		= 0;
+		mBufferBytes		= 0;
+		mTextureBytes		= 0;
+	}
+	
+	public int getCalls() {
+		return mCalls;
+	}
+	
+	public int getDrawCalls() {
+		return mDrawCalls;
+	}
+	
+	public long getIndices() {
+		return mIndices;
+	}
+	
+	public int getProgramBinds() {
+		return mProgramBinds;
+	}
+	
+	public int getTextureBinds() {
+		return mTextureBinds;
+	}
+	
+	public int getBufferBinds() {
+		return mBufferBinds;
+	}
+	
+	public int getAttributeToggles() {
+		return mAttributeToggles;
+	}
+	
+	/**
+	 * glEnable and glDisable calls, blending on and off.
+	 */
+	public int getCapabilityToggles() {
+		return mCapabilityToggles;
+	}
+	
+	/**
+	 * State changing calls, binds and attribute array and capability toggles.
+	 */
+	public int getStateChanges() {
+		return mProgramBinds + mTextureBinds + mBufferBinds + mAttributeToggles + mCapabilityToggles;
+	}
+	
+	public int getUniformUploads() {
+		return mUniformUploads;
+	}
+	
+	public long getBufferBytes() {
+		return mBufferBytes;
+	}
+	
+	public long getTextureBytes() {
+		return mTextureBytes;
+	}
+	
+	public String getSummary() {
+		return mCalls + " calls, " + mDrawCalls + " draws, " + mIndices + " indices, " + mProgramBinds +
+				" programs, " + mTextureBinds + " textures, " + mBufferBinds + " buffers, " + mAttributeToggles +
+				" attribute toggles, " + mUniformUploads + " uniforms, " + mBufferBytes + " buffer bytes, " +
+				mTextureBytes + " texture bytes";
+	}
+	
+	private void call(String name) {
+		++mCalls;
+		if (mTrace != null)
+			mTrace.add(name);
+	}
+	
+	private void call(String name, int a) {
+		++mCalls;
+		if (mTrace != null)
+			mTrace.add(name + "(" + a + ")");
+	}
+	
+	private void call(String name, int a, int b) {
+		++mCalls;
+		if (mTrace != null)
+			mTrace.add(name + "(" + a + ", " + b + ")");
+	}
+	
+	private void genNames(int n, int[] names, int offset) {
+		for (int i = 0; i < n; i++)
+			names[offset + i] = mNextName++;
+	}
+	
+	public void glViewport(int x, int y, int width, int height) {
+		call("glViewport", width, height);
+	}
+	
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		call("glClearColor");
+	}
+	
+	public void glClear(int mask) {
+		call("glClear", mask);
+	}
+	
+	public void glFinish() {
+		call("glFinish");
+	}
+	
+	public int glGetError() {
+		call("glGetError");
+		return GLES20.GL_NO_ERROR;
+	}
+	
+	public void glGetIntegerv(int name, int[] params, int offset) {
+		call("glGetIntegerv", name);
+		switch (name) {
+		case GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS:
+			params[offset] = mMaxVertexUniformVectors;
+			break;
+		case GLES20.GL_MAX_TEXTURE_SIZE:
+			params[offset] = 2048;
+			break;
+		case GLES20.GL_NUM_COMPRESSED_TEXTURE_FORMATS:
+			params[offset] = mEtc1Supported ? 1 : 0;
+			break;
+		case GLES20.GL_COMPRESSED_TEXTURE_FORMATS:
+			if (mEtc1Supported)
+				params[offset] = Etc1Codec.ETC1_RGB8_OES;
+			break;
+		default:
+			params[offset] = 0;
+		}
+	}
+	
+	public String glGetString(int name) {
+		call("glGetString", name);
+		return name == GLES20.GL_EXTENSIONS ? mExtensions : "";
+	}
+	
+	public void glEnable(int capability) {
+		call("glEnable", capability);
+		++mCapabilityToggles;
+	}
+	
+	public void glDisable(int capability) {
+		call("glDisable", capability);
+		++mCapabilityToggles;
+	}
+	
+	public void glBlendFunc(int source, int destination) {
+		call("glBlendFunc", source, destination);
+	}
+	
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		call("glGenBuffers", n);
+		genNames(n, buffers, offset);
+	}
+	
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		call("glDeleteBuffers", n);
+	}
+	
+	public void glBindBuffer(int target, int buffer) {
+		call("glBindBuffer", target, buffer);
+		++mBufferBinds;
+	}
+	
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		call("glBufferData", target, size);
+		mBufferBytes += size;
+	}
+	
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		call("glBufferSubData", target, size);
+		mBufferBytes += size;
+	}
+	
+	public void glActiveTexture(int texture) {
+		call("glActiveTexture", texture);
+	}
+	
+	public void glGenTextures(int n, int[] textures, int offset) {
+		call("glGenTextures", n);
+		genNames(n, textures, offset);
+	}
+	
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		call("glDeleteTextures", n);
+	}
+	
+	public void glBindTexture(int target, int texture) {
+		call("glBindTexture", texture);
+		++mTextureBinds;
+	}
+	
+	public void glTexParameterf(int target, int name, float param) {
+		call("glTexParameterf", name);
+	}
+	
+	public void glTexImage2D(int target, int level, int internalFormat, int width, int height, int border,
+			int format, int type, Buffer pixels) {
+		call("glTexImage2D", width, height);
+		int bytesPerPixel = type == GLES20.GL_UNSIGNED_BYTE ? (format == GLES20.GL_RGBA ? 4 :
+			(format == GLES20.GL_RGB ? 3 : 1)) : 2;
+		mTextureBytes += width * height * bytesPerPixel;
+	}
+	
+	public void glCompressedTexImage2D(int target, int level, int internalFormat, int width, int height,
+			int border, int imageSize, Buffer data) {
+		call("glCompressedTexImage2D", width, height);
+		mTextureBytes += imageSize;
+	}
+	
+	public void glGenerateMipmap(int target) {
+		call("glGenerateMipmap");
+	}
+	
+	public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+		call("texImage2D", bitmap.getWidth(), bitmap.getHeight());
+		mTextureBytes += bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	public int glCreateShader(int type) {
+		call("glCreateShader", type);
+		return mNextName++;
+	}
+	
+	public void glShaderSource(int shader, String source) {
+		call("glShaderSource", shader);
+		mShaderSources.put(shader, source);
+	}
+	
+	public void glCompileShader(int shader) {
+		call("glCompileShader", shader);
+	}
+	
+	public void glGetShaderiv(int shader, int name, int[] params, int offset) {
+		call("glGetShaderiv", shader, name);
+		params[offset] = 1;
+	}
+	
+	public String glGetShaderInfoLog(int shader) {
+		call("glGetShaderInfoLog", shader);
+		return "";
+	}
+	
+	public void glDeleteShader(int shader) {
+		call("glDeleteShader", shader);
+	}
+	
+	public int glCreateProgram() {
+		call("glCreateProgram");
+		int program = mNextName++;
+		mProgramSources.put(program, new StringBuilder());
+		mBoundAttributes.put(program, new HashMap<String, Integer>());
+		mUniformLocations.put(program, new HashMap<String, Integer>());
+		return program;
+	}
+	
+	public void glAttachShader(int program, int shader) {
+		call("glAttachShader", program, shader);
+		String source = mShaderSources.get(shader);
+		if (source != null)
+			mProgramSources.get(program).append(source).append('\n');
+	}
+	
+	public void glBindAttribLocation(int program, int index, String name) {
+		call("glBindAttribLocation", program, index);
+		mBoundAttributes.get(program).put(name, index);
+	}
+	
+	public void glLinkProgram(int program) {
+		call("glLinkProgram", program);
+	}
+	
+	public void glGetProgramiv(int program, int name, int[] params, int offset) {
+		call("glGetProgramiv", program, name);
+		params[offset] = GLES20.GL_TRUE;
+	}
+	
+	public String glGetProgramInfoLog(int program) {
+		call("glGetProgramInfoLog", program);
+		return "";
+	}
+	
+	public void glDeleteProgram(int program) {
+		call("glDeleteProgram", program);
+	}
+	
+	/**
+	 * Only bound attributes get a location, the renderer binds all of its own.
+	 */
+	public int glGetAttribLocation(int program, String name) {
+		call("glGetAttribLocation", program);
+		Integer location = mBoundAttributes.get(program).get(name);
+		return location != null && declares(program, "attribute", name) ? location : -1;
+	}
+	
+	public int glGetUniformLocation(int program, String name) {
+		call("glGetUniformLocation", program);
+		HashMap<String, Integer> locations = mUniformLocations.get(program);
+		Integer location = locations.get(name);
+		if (location == null) {
+			location = declares(program, "uniform", name) ? mNextLocation++ : -1;
+			locations.put(name, location);
+		}
+		return location;
+	}
+	
+	/**
+	 * Whether an attached shader declares the variable, good enough for the renderer's
+	 * one declaration per line shaders.
+	 */
+	private boolean declares(int program, String qualifier, String name) {
+		String source = mProgramSources.get(program).toString();
+		for (String line : source.split("\n")) {
+			line = line.trim();
+			if (!line.startsWith(qualifier + " "))
+				continue;
+			String declaration = line.substring(0, line.indexOf(';') >= 0 ? line.indexOf(';') : line.length());
+			String[] words = declaration.split("[\\s\\[]+");
+			for (int i = 2; i < words.length; i++) {
+				if (words[i].equals(name))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	public void glUseProgram(int program) {
+		call("glUseProgram", program);
+		++mProgramBinds;
+	}
+	
+	public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+		call("glUniformMatrix4fv", location, count);
+		++mUniformUploads;
+	}
+	
+	public void glUniform1i(int location, int value) {
+		call("glUniform1i", location, value);
+		++mUniformUploads;
+	}
+	
+	public void glEnableVertexAttribArray(int index) {
+		call("glEnableVertexAttribArray", index);
+		++mAttributeToggles;
+	}
+	
+	public void glDisableVertexAttribArray(int index) {
+		call("glDisableVertexAttribArray", index);
+		++mAttributeToggles;
+	}
+	
+	public void glVertexAttrib4f(int index, float x, float y, float z, float w) {
+		call("glVertexAttrib4f", index);
+	}
+	
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+		call("glVertexAttribPointer", index, offset);
+	}
+	
+	/**
+	 * GL_UNSIGNED_INT indices need OES_element_index_uint.
+	 */
+	public void glDrawElements(int mode, int count, int type, int offset) {
+		if (type == GLES20.GL_UNSIGNED_INT && (mExtensions == null ||
+				!mExtensions.contains("GL_OES_element_index_uint")))
+			throw new IllegalStateException("32 bit indices without OES_element_index_uint");
+		call("glDrawElements", count, offset);
+		++mDrawCalls;
+		mIndices += count;
+	}
+}
@@ -0,0 +1,78 @@
+package com.xyz.graphics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Groups the instances that share a model, texture and effect so they can be drawn
+ * together. Instances don't change model or material, so the groups are built once.
+ */
+final class RenderBatcher {
+	
+	// Matrices per draw, GLES2 guarantees 128 vertex uniform vectors (4 per matrix)
+	public static final int MAX_BATCH_SIZE		= 16;
+	// Larger meshes gain little from batching and would cost too much to replicate
+	public static final int MAX_BATCH_VERTICES	= 512;
+	
+	public static final class Batch {
+		public final Model						mModel;
+		public final int						mModelIndex;
+		public final int						mTextureId;
+		public final int						mEffectId;
+		public final ArrayList<Model.Instance>	mInstances;
+		
+		// Instances that passed culling this frame
+		public Model.Instance[]					mVisible;
+		public int								mVisibleCount;
+		
+		private Batch(Model model, int modelIndex, int textureId, int effectId) {
+			mModel		= model;
+			mModelIndex	= modelIndex;
+			mTextureId	= textureId;
+			mEffectId	= effectId;
+			mInstances	= new ArrayList<Model.Instance>();
+		}
+	}
+	
+	private ArrayList<Batch> mBatches;
+	
+	public RenderBatcher(ArrayList<Model> models) {
+		mBatches = new ArrayList<Batch>();
+		if (models == null)
+			return;
+		
+		HashMap<Long, Batch> groups = new HashMap<Long, Batch>();
+		for (int m = 0; m < models.size(); m++) {
+			Model model = models.get(m);
+			groups.clear();
+			for (Model.Instance instance : model.getInstances()) {
+				Long key = ((long)instance.getTextureId() << 32) | (instance.getEffectId() & 0xFFFFFFFFL);
+				Batch batch = groups.get(key);
+				if (batch == null) {
+					batch = new Batch(model, m, instance.getTextureId(), instance.getEffectId());
+					groups.put(key, batch);
+					mBatches.add(batch);
+				}
+				batch.mInstances.add(instance);
+			}
+			for (Batch batch : groups.values())
+				batch.mVisible = new Model.Instance[batch.mInstances.size()];
+			
+			// Replicated geometry only pays off when copies are actually drawn together
+			int largest = 0;
+			for (Batch batch : groups.values())
+				largest = Math.max(largest, batch.mInstances.size());
+			// Store instances aren't grouped, assume they mostly share a material
+			if (model.hasInstanceStore())
+				largest = Math.max(largest, model.getInstanceStore().size());
+			// and the copies aren't refreshed by Model.updateVertices
+			if (largest > 1 && model.getVertexCount() <= MAX_BATCH_VERTICES &&
+					model.getUsage() == Model.USAGE_STATIC)
+				model.setBatchCopies(Math.min(largest, MAX_BATCH_SIZE));
+		}
+	}
+	
+	public ArrayList<Batch> getBatches() {
+		return mBatches;
+	}
+}
@@ -0,0 +1,73 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+/**
+ * One frame of draw commands in flat arrays, built by the SceneUpdater and replayed by
+ * the renderer. A command draws one instance: its MVP matrix, model, texture and effect.
+ * Commands come sorted, so runs sharing model, texture and effect can be drawn together.
+ */
+final class RenderCommandList {
+	
+	public int		mCount;
+	public float[]	mMatrices;	// 16 per command, column major
+	public int[]	mModels;	// Index into mModelTable
+	public int[]	mTextures;
+	public int[]	mEffects;
+	
+	// Models by index, replaced as a whole when the scene changes
+	public Model[]	mModelTable;
+	public int		mCulled;
+	public int		mOccluded;
+	public long		mRasterTime; // Occluder rasterization, 0 without occlusion culling
+	
+	// Numbers the lists as they are built, with the update thread's phase times
+	// when profiling
+	public int		mSequence;
+	public long		mUpdateTime;
+	public long		mCullTime;
+	public long		mSortTime;
+	public long		mBuildTime;
+	
+	public RenderCommandList() {
+		mMatrices	= new float[16 * 16];
+		mModels		= new int[16];
+		mTextures	= new int[16];
+		mEffects	= new int[16];
+		mModelTable	= new Model[0];
+	}
+	
+	public void clear() {
+		mCount = 0;
+	}
+	
+	public void add(int model, int texture, int effect, float[] matrix) {
+		add(model, texture, effect, matrix, 0);
+	}
+	
+	public void add(int model, int texture, int effect, float[] matrices, int offset) {
+		if (mCount == mModels.length) {
+			int capacity = mCount * 2;
+			mMatrices	= Arrays.copyOf(mMatrices, capacity * 16);
+			mModels		= Arrays.copyOf(mModels, capacity);
+			mTextures	= Arrays.copyOf(mTextures, capacity);
+			mEffects	= Arrays.copyOf(mEffects, capacity);
+		}
+		System.arraycopy(matrices, offset, mMatrices, mCount * 16, 16);
+		mModels[mCount]		= model;
+		mTextures[mCount]	= texture;
+		mEffects[mCount]	= effect;
+		++mCount;
+	}
+	
+	/**
+	 * Number of commands from first on that share its model, texture and effect.
+	 */
+	public int runLength(int first) {
+		int end = first + 1;
+		while (end < mCount && mModels[end] == mModels[first] && mTextures[end] == mTextures[first] &&
+				mEffects[end] == mEffects[first])
+			++end;
+		return end - first;
+	}
+}
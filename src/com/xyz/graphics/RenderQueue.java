@@ -0,0 +1,107 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Per frame list of draw items ordered by a 64 bit sort key, so items sharing a program,
+ * then a texture, then a model end up next to each other. Translucent items come after
+ * all the opaque ones, they blend over what is behind them.
+ * Sorting is an LSD radix sort over preallocated arrays, nothing is allocated per frame
+ * once the queue has grown to the scene size.
+ */
+final class RenderQueue {
+	
+	private static final int TRANSLUCENT_SHIFT	= 63;
+	private static final int PROGRAM_SHIFT		= 48;
+	private static final int TEXTURE_SHIFT		= 24;
+	private static final long PROGRAM_MASK	= 0x7FFFL;
+	private static final long FIELD_MASK	= 0xFFFFFFL;
+	
+	private long[]	mKeys;
+	private int[]	mItems;
+	private long[]	mScratchKeys;
+	private int[]	mScratchItems;
+	private int		mSize;
+	private final int[] mCounts;
+	
+	public RenderQueue(int capacity) {
+		capacity		= Math.max(capacity, 16);
+		mKeys			= new long[capacity];
+		mItems			= new int[capacity];
+		mScratchKeys	= new long[capacity];
+		mScratchItems	= new int[capacity];
+		mCounts			= new int[256];
+	}
+	
+	/**
+	 * program and texture are small slot numbers, -1 for none is allowed for the texture.
+	 */
+	public static long makeKey(boolean translucent, int program, int texture, int model) {
+		return ((translucent ? 1L : 0L) << TRANSLUCENT_SHIFT) |
+				((program & PROGRAM_MASK) << PROGRAM_SHIFT) |
+				(((texture + 1) & FIELD_MASK) << TEXTURE_SHIFT) |
+				(model & FIELD_MASK);
+	}
+	
+	public void clear() {
+		mSize = 0;
+	}
+	
+	public void add(long key, int item) {
+		if (mSize == mKeys.length) {
+			int capacity = mSize * 2;
+			mKeys			= Arrays.copyOf(mKeys, capacity);
+			mItems			= Arrays.copyOf(mItems, capacity);
+			mScratchKeys	= new long[capacity];
+			mScratchItems	= new int[capacity];
+		}
+		mKeys[mSize]	= key;
+		mItems[mSize]	= item;
+		++mSize;
+	}
+	
+	public int size() {
+		return mSize;
+	}
+	
+	public long getKey(int index) {
+		return mKeys[index];
+	}
+	
+	public int getItem(int index) {
+		return mItems[index];
+	}
+	
+	public void sort() {
+		int[] counts = mCounts;
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < mSize; i++)
+				++counts[(int)(mKeys[i] >>> shift) & 0xFF];
+			
+			// Every key has the same byte here, the pass wouldn't move anything
+			if (counts[(int)(mKeys[0] >>> shift) & 0xFF] == mSize)
+				continue;
+			
+			int offset = 0;
+			for (int b = 0; b < 256; b++) {
+				int count = counts[b];
+				counts[b] = offset;
+				offset += count;
+			}
+			
+			for (int i = 0; i < mSize; i++) {
+				int target = counts[(int)(mKeys[i] >>> shift) & 0xFF]++;
+				mScratchKeys[target]	= mKeys[i];
+				mScratchItems[target]	= mItems[i];
+			}
+			
+			long[] keys		= mKeys;
+			int[] items		= mItems;
+			mKeys			= mScratchKeys;
+			mItems			= mScratchItems;
+			mScratchKeys	= keys;
+			mScratchItems	= items;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.xyz.graphics;
+
+/**
+ * Plain Java MatrixKernel, the one used on Android and the reference the others are
+ * checked against. The static methods are the single matrix versions.
+ */
+public final class ScalarMatrixKernel implements MatrixKernel {
+	
+	private static final double DEGREES_TO_RADIANS = Math.PI / 180.0;
+	
+	public void composeTRS(float[] transforms, int transformOffset, float[] out, int outOffset, int count) {
+		for (int i = 0; i < count; i++) {
+			int t = transformOffset + i * InstanceStore.TRANSFORM_STRIDE;
+			compose(out, outOffset + i * 16, transforms[t], transforms[t + 1], transforms[t + 2], transforms[t + 3],
+					transforms[t + 4], transforms[t + 5], transforms[t + 6], transforms[t + 7], transforms[t + 8]);
+		}
+	}
+	
+	public void multiplyMM(float[] out, int outOffset, float[] lhs, int lhsOffset, float[] matrices,
+			int matricesOffset, int count) {
+		
+		for (int i = 0; i < count; i++)
+			MatrixMath.multiplyMM(out, outOffset + i * 16, lhs, lhsOffset, matrices, matricesOffset + i * 16);
+	}
+	
+	public void transformSpheres(float[] sphere, float[] matrices, int matricesOffset, float[] out, int outOffset,
+			int count) {
+		
+		for (int i = 0; i < count; i++)
+			transformSphere(sphere, matrices, matricesOffset + i * 16, out, outOffset + i * 4);
+	}
+	
+	public String getName() {
+		return "scalar";
+	}
+	
+	/**
+	 * m = T * Rz * Ry * Rx * S, written out instead of composed from rotateM calls.
+	 */
+	public static void compose(float[] m, int offset, float tx, float ty, float tz, float rx, float ry, float rz,
+			float sx, float sy, float sz) {
+		
+		double x = rx * DEGREES_TO_RADIANS, y = ry * DEGREES_TO_RADIANS, z = rz * DEGREES_TO_RADIANS;
+		float sinX = (float)Math.sin(x), cosX = (float)Math.cos(x);
+		float sinY = (float)Math.sin(y), cosY = (float)Math.cos(y);
+		float sinZ = (float)Math.sin(z), cosZ = (float)Math.cos(z);
+		
+		m[offset]		= cosZ * cosY * sx;
+		m[offset + 1]	= sinZ * cosY * sx;
+		m[offset + 2]	= -sinY * sx;
+		m[offset + 3]	= 0.0f;
+		m[offset + 4]	= (cosZ * sinY * sinX - sinZ * cosX) * sy;
+		m[offset + 5]	= (sinZ * sinY * sinX + cosZ * cosX) * sy;
+		m[offset + 6]	= cosY * sinX * sy;
+		m[offset + 7]	= 0.0f;
+		m[offset + 8]	= (cosZ * sinY * cosX + sinZ * sinX) * sz;
+		m[offset + 9]	= (sinZ * sinY * cosX - cosZ * sinX) * sz;
+		m[offset + 10]	= cosY * cosX * sz;
+		m[offset + 11]	= 0.0f;
+		m[offset + 12]	= tx;
+		m[offset + 13]	= ty;
+		m[offset + 14]	= tz;
+		m[offset + 15]	= 1.0f;
+	}
+	
+	public static void transformSphere(float[] sphere, float[] m, int offset, float[] out, int outOffset) {
+		float x = sphere[0], y = sphere[1], z = sphere[2];
+		out[outOffset]		= m[offset] * x + m[offset + 4] * y + m[offset + 8] * z + m[offset + 12];
+		out[outOffset + 1]	= m[offset + 1] * x + m[offset + 5] * y + m[offset + 9] * z + m[offset + 13];
+		out[outOffset + 2]	= m[offset + 2] * x + m[offset + 6] * y + m[offset + 10] * z + m[offset + 14];
+		float xx = m[offset] * m[offset] + m[offset + 1] * m[offset + 1] + m[offset + 2] * m[offset + 2];
+		float yy = m[offset + 4] * m[offset + 4] + m[offset + 5] * m[offset + 5] + m[offset + 6] * m[offset + 6];
+		float zz = m[offset + 8] * m[offset + 8] + m[offset + 9] * m[offset + 9] + m[offset + 10] * m[offset + 10];
+		out[outOffset + 3] = sphere[3] * (float)Math.sqrt(Math.max(xx, Math.max(yy, zz)));
+	}
+}
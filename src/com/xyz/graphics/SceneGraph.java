@@ -0,0 +1,339 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Parent/child hierarchy of transforms, so attached objects (a wheel on a vehicle) move
+ * with their parent. A node is either a plain group with its own transform or a
+ * Model.Instance, whose translation, rotation and scale become relative to the parent.
+ *
+ * Local and world matrices live in flat arrays in depth first order, every subtree is a
+ * contiguous range after its root. Moving a node only marks it, update then recomputes
+ * the ranges under the moved nodes in one forward pass, parents always coming before
+ * their children, so the cost follows the number of nodes affected rather than the size
+ * of the graph. Changing the structure lays the arrays out again on the next update.
+ *
+ * Nodes are identified by the id addNode returns. Instances of a graph joining a scene
+ * bring it along, the SceneUpdater updates it every frame, so move group nodes from the
+ * Simulation callback like the instances.
+ */
+public final class SceneGraph {
+	
+	private int					mCount;
+	
+	// By node id
+	private String[]			mNames;
+	private int[]				mParents;
+	private Model.Instance[]	mInstances;
+	private float[]				mTransforms; // InstanceStore.TRANSFORM_STRIDE per node, group nodes only
+	private int[]				mPositions; // Depth first position
+	private boolean[]			mLocalDirty;
+	
+	// By depth first position
+	private int[]				mOrder; // Node id
+	private int[]				mParentPositions;
+	private int[]				mEnds; // End of the subtree, exclusive
+	private float[]				mLocalMatrices;
+	private float[]				mWorldMatrices;
+	
+	// Nodes moved since the last update
+	private int[]				mMoved;
+	private int					mMovedCount;
+	private boolean				mLayoutDirty;
+	
+	public SceneGraph() {
+		mNames		= new String[16];
+		mParents	= new int[16];
+		mInstances	= new Model.Instance[16];
+		mTransforms	= new float[16 * InstanceStore.TRANSFORM_STRIDE];
+		mPositions	= new int[16];
+		mLocalDirty	= new boolean[16];
+		mMoved		= new int[16];
+		mOrder				= new int[0];
+		mParentPositions	= new int[0];
+		mEnds				= new int[0];
+		mLocalMatrices		= new float[0];
+		mWorldMatrices		= new float[0];
+	}
+	
+	/**
+	 * Adds a group node, null transforms mean identity. parent is a node id or -1.
+	 */
+	public int addNode(String name, int parent, float[] translation, float[] rotation, float[] scale) {
+		int node = add(name, parent, null);
+		int t = node * InstanceStore.TRANSFORM_STRIDE;
+		for (int i = 0; i < 3; i++) {
+			mTransforms[t + InstanceStore.TRANSLATION + i]	= translation != null ? translation[i] : 0.0f;
+			mTransforms[t + InstanceStore.ROTATION + i]		= rotation != null ? rotation[i] : 0.0f;
+			mTransforms[t + InstanceStore.SCALE + i]		= scale != null ? scale[i] : 1.0f;
+		}
+		return node;
+	}
+	
+	/**
+	 * Adds an instance, its transform is relative to parent from now on. An instance
+	 * belongs to one graph at most.
+	 */
+	public int addNode(Model.Instance instance, int parent) {
+		assert instance.getSceneGraph() == null;
+		
+		int node = add(instance.getName(), parent, instance);
+		instance.attach(this, node);
+		return node;
+	}
+	
+	public int getNodeCount() {
+		return mCount;
+	}
+	
+	public String getName(int node) {
+		return mNames[node];
+	}
+	
+	public int getParent(int node) {
+		return mParents[node];
+	}
+	
+	/**
+	 * Null for group nodes.
+	 */
+	public Model.Instance getInstance(int node) {
+		return mInstances[node];
+	}
+	
+	/**
+	 * First node with that name, -1 when there is none.
+	 */
+	public int findNode(String name) {
+		for (int node = 0; node < mCount; node++) {
+			if (name.equals(mNames[node]))
+				return node;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Moves node and its subtree under parent, -1 makes it a root. The local transform is
+	 * kept, so the subtree moves with the new parent.
+	 */
+	public void setParent(int node, int parent) {
+		for (int ancestor = parent; ancestor >= 0; ancestor = mParents[ancestor]) {
+			if (ancestor == node)
+				throw new IllegalArgumentException("Node " + mNames[node] + " can't be its own ancestor");
+		}
+		mParents[node] = parent;
+		mLayoutDirty = true;
+	}
+	
+	/**
+	 * Setters work for both kinds of node, instances are moved through their own setters.
+	 */
+	public void setTranslation(int node, float x, float y, float z) {
+		if (mInstances[node] != null)
+			mInstances[node].setTranslation(x, y, z);
+		else
+			set(node, InstanceStore.TRANSLATION, x, y, z);
+	}
+	
+	public void setRotation(int node, float x, float y, float z) {
+		if (mInstances[node] != null)
+			mInstances[node].setRotation(x, y, z);
+		else
+			set(node, InstanceStore.ROTATION, x, y, z);
+	}
+	
+	public void setScale(int node, float x, float y, float z) {
+		if (mInstances[node] != null)
+			mInstances[node].setScale(x, y, z);
+		else
+			set(node, InstanceStore.SCALE, x, y, z);
+	}
+	
+	/**
+	 * Local transforms of the group nodes, InstanceStore.TRANSFORM_STRIDE floats per node
+	 * id. Call markDirty after changing them in place.
+	 */
+	public float[] getTransforms() {
+		return mTransforms;
+	}
+	
+	public void markDirty(int node) {
+		if (mLocalDirty[node])
+			return;
+		
+		mLocalDirty[node] = true;
+		if (mLayoutDirty)
+			return;
+		if (mMovedCount == mMoved.length)
+			mMoved = Arrays.copyOf(mMoved, mMovedCount * 2);
+		mMoved[mMovedCount++] = node;
+	}
+	
+	/**
+	 * World matrices, 16 floats per node at getWorldOffset, valid after update.
+	 */
+	public float[] getWorldMatrices() {
+		return mWorldMatrices;
+	}
+	
+	public int getWorldOffset(int node) {
+		return mPositions[node] * 16;
+	}
+	
+	/**
+	 * Brings the world matrices of everything under the moved nodes up to date and hands
+	 * them to their instances. Returns how many nodes were recomputed.
+	 */
+	public int update() {
+		if (mLayoutDirty) {
+			layout();
+			for (int position = 0; position < mCount; position++)
+				composeLocal(position);
+			propagate(0, mCount);
+			mMovedCount = 0;
+			return mCount;
+		}
+		if (mMovedCount == 0)
+			return 0;
+		
+		for (int i = 0; i < mMovedCount; i++) {
+			int position = mPositions[mMoved[i]];
+			composeLocal(position);
+			mMoved[i] = position;
+		}
+		
+		// In depth first order a moved node inside an earlier moved subtree is covered by it
+		Arrays.sort(mMoved, 0, mMovedCount);
+		int updated = 0;
+		int end = 0;
+		for (int i = 0; i < mMovedCount; i++) {
+			int position = mMoved[i];
+			if (position < end)
+				continue;
+			end = mEnds[position];
+			propagate(position, end);
+			updated += end - position;
+		}
+		mMovedCount = 0;
+		return updated;
+	}
+	
+	private int add(String name, int parent, Model.Instance instance) {
+		assert parent >= -1 && parent < mCount;
+		
+		if (mCount == mParents.length) {
+			int capacity = mCount * 2;
+			mNames		= Arrays.copyOf(mNames, capacity);
+			mParents	= Arrays.copyOf(mParents, capacity);
+			mInstances	= Arrays.copyOf(mInstances, capacity);
+			mTransforms	= Arrays.copyOf(mTransforms, capacity * InstanceStore.TRANSFORM_STRIDE);
+			mPositions	= Arrays.copyOf(mPositions, capacity);
+			mLocalDirty	= Arrays.copyOf(mLocalDirty, capacity);
+		}
+		
+		int node = mCount++;
+		mNames[node]		= name;
+		mParents[node]		= parent;
+		mInstances[node]	= instance;
+		mLayoutDirty		= true;
+		return node;
+	}
+	
+	private void set(int node, int field, float x, float y, float z) {
+		int t = node * InstanceStore.TRANSFORM_STRIDE + field;
+		mTransforms[t]		= x;
+		mTransforms[t + 1]	= y;
+		mTransforms[t + 2]	= z;
+		markDirty(node);
+	}
+	
+	/**
+	 * Orders the nodes depth first, roots in id order.
+	 */
+	private void layout() {
+		int count = mCount;
+		if (mOrder.length < count) {
+			int capacity = mParents.length;
+			mOrder				= new int[capacity];
+			mParentPositions	= new int[capacity];
+			mEnds				= new int[capacity];
+			mLocalMatrices		= new float[capacity * 16];
+			mWorldMatrices		= new float[capacity * 16];
+		}
+		
+		// Children as linked lists, in id order
+		int[] firstChild = new int[count];
+		int[] nextSibling = new int[count];
+		Arrays.fill(firstChild, -1);
+		for (int node = count - 1; node >= 0; node--) {
+			int parent = mParents[node];
+			nextSibling[node] = parent >= 0 ? firstChild[parent] : -1;
+			if (parent >= 0)
+				firstChild[parent] = node;
+		}
+		
+		int position = 0;
+		int[] stack = new int[count];
+		for (int root = 0; root < count; root++) {
+			if (mParents[root] >= 0)
+				continue;
+			
+			int top = 0;
+			stack[top++] = root;
+			while (top > 0) {
+				int node = stack[--top];
+				int parent = mParents[node];
+				mOrder[position]			= node;
+				mPositions[node]			= position;
+				mParentPositions[position]	= parent >= 0 ? mPositions[parent] : -1;
+				++position;
+				for (int child = firstChild[node]; child >= 0; child = nextSibling[child])
+					stack[top++] = child;
+			}
+		}
+		
+		// Children follow their parent, so one backward pass finds where subtrees end
+		for (int i = 0; i < count; i++)
+			mEnds[i] = i + 1;
+		for (int i = count - 1; i >= 0; i--) {
+			int parent = mParentPositions[i];
+			if (parent >= 0 && mEnds[i] > mEnds[parent])
+				mEnds[parent] = mEnds[i];
+		}
+		mLayoutDirty = false;
+	}
+	
+	private void composeLocal(int position) {
+		int node = mOrder[position];
+		Model.Instance instance = mInstances[node];
+		if (instance != null) {
+			float[] t = instance.getTranslation(), r = instance.getRotation(), s = instance.getScale();
+			Model.composeModelMatrix(mLocalMatrices, position * 16, t[0], t[1], t[2], r[0], r[1], r[2], s[0], s[1],
+					s[2]);
+		}
+		else {
+			float[] transforms = mTransforms;
+			int t = node * InstanceStore.TRANSFORM_STRIDE;
+			Model.composeModelMatrix(mLocalMatrices, position * 16, transforms[t], transforms[t + 1],
+					transforms[t + 2], transforms[t + 3], transforms[t + 4], transforms[t + 5], transforms[t + 6],
+					transforms[t + 7], transforms[t + 8]);
+		}
+		mLocalDirty[node] = false;
+	}
+	
+	private void propagate(int start, int end) {
+		for (int position = start; position < end; position++) {
+			int parent = mParentPositions[position];
+			if (parent < 0)
+				System.arraycopy(mLocalMatrices, position * 16, mWorldMatrices, position * 16, 16);
+			else {
+				MatrixMath.multiplyMM(mWorldMatrices, position * 16, mWorldMatrices, parent * 16, mLocalMatrices,
+						position * 16);
+			}
+			
+			Model.Instance instance = mInstances[mOrder[position]];
+			if (instance != null)
+				instance.setWorldMatrix(mWorldMatrices, position * 16);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.xyz.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over item bounds, used to cull whole groups of instances
+ * at once. Items are addressed by the int handle returned from add.
+ *
+ * Everything lives in flat arrays. Leaves own a contiguous range of the item order,
+ * and so does every inner node, which lets a node that is fully inside the frustum
+ * emit its items without visiting its children. Moving items refits the bounds up
+ * the tree; the tree is rebuilt once enough items have moved to degrade it.
+ */
+public final class SceneIndex {
+	
+	private static final int LEAF_SIZE	= 8;
+	private static final int STACK_SIZE	= 128;
+	
+	// Per item, by handle: min x, y, z, max x, y, z
+	private float[]	mItemBounds;
+	private int[]	mItemLeaf;
+	private int		mItemCount;
+	
+	// Item handles in leaf order
+	private int[]	mOrder;
+	private float[]	mCentroids;
+	
+	// Per node
+	private float[]	mNodeBounds;
+	private int[]	mNodeLeft; // -1 for leaves, the right child always follows the left subtree
+	private int[]	mNodeRight;
+	private int[]	mNodeParent;
+	private int[]	mNodeStart;
+	private int[]	mNodeCount;
+	private int		mNodeTotal;
+	
+	private boolean	mNeedsBuild;
+	private int		mRefits;
+	
+	private final int[] mStack;
+	private int[]	mResults;
+	private int		mResultCount;
+	
+	public SceneIndex(int capacity) {
+		capacity		= Math.max(capacity, 16);
+		mItemBounds		= new float[capacity * 6];
+		mItemLeaf		= new int[capacity];
+		mStack			= new int[STACK_SIZE];
+		mResults		= new int[capacity];
+		mNeedsBuild		= true;
+	}
+	
+	public int add(float x, float y, float z, float radius) {
+		if (mItemCount == mItemLeaf.length) {
+			int capacity = mItemCount * 2;
+			mItemBounds	= Arrays.copyOf(mItemBounds, capacity * 6);
+			mItemLeaf	= Arrays.copyOf(mItemLeaf, capacity);
+			mResults	= new int[capacity];
+		}
+		int handle = mItemCount++;
+		setBounds(handle, x, y, z, radius);
+		mNeedsBuild = true;
+		return handle;
+	}
+	
+	public int size() {
+		return mItemCount;
+	}
+	
+	/**
+	 * New bounds for a moved item, refits its leaf and the nodes above it.
+	 */
+	public void update(int handle, float x, float y, float z, float radius) {
+		setBounds(handle, x, y, z, radius);
+		if (mNeedsBuild)
+			return;
+		
+		int node = mItemLeaf[handle];
+		refitLeaf(node);
+		for (node = mNodeParent[node]; node != -1; node = mNodeParent[node])
+			refitInner(node);
+		
+		// Refitted bounds only grow looser, rebuild once a good share of the scene moved
+		if (++mRefits > mItemCount / 2)
+			mNeedsBuild = true;
+	}
+	
+	private void setBounds(int handle, float x, float y, float z, float radius) {
+		int i = handle * 6;
+		mItemBounds[i]		= x - radius;
+		mItemBounds[i + 1]	= y - radius;
+		mItemBounds[i + 2]	= z - radius;
+		mItemBounds[i + 3]	= x + radius;
+		mItemBounds[i + 4]	= y + radius;
+		mItemBounds[i + 5]	= z + radius;
+	}
+	
+	public void build() {
+		int count = mItemCount;
+		// Splits stop at LEAF_SIZE, so every leaf holds at least half of that
+		int maxNodes = 2 * (count / (LEAF_SIZE / 2) + 1);
+		if (mNodeLeft == null || mNodeLeft.length < maxNodes) {
+			mNodeBounds	= new float[maxNodes * 6];
+			mNodeLeft	= new int[maxNodes];
+			mNodeRight	= new int[maxNodes];
+			mNodeParent	= new int[maxNodes];
+			mNodeStart	= new int[maxNodes];
+			mNodeCount	= new int[maxNodes];
+		}
+		if (mOrder == null || mOrder.length < count) {
+			mOrder		= new int[mItemLeaf.length];
+			mCentroids	= new float[mItemLeaf.length];
+		}
+		
+		for (int i = 0; i < count; i++)
+			mOrder[i] = i;
+		
+		mNodeTotal = 0;
+		buildNode(-1, 0, count);
+		mNeedsBuild = false;
+		mRefits = 0;
+	}
+	
+	private int buildNode(int parent, int start, int count) {
+		int node = mNodeTotal++;
+		mNodeParent[node]	= parent;
+		mNodeStart[node]	= start;
+		mNodeCount[node]	= count;
+		
+		if (count <= LEAF_SIZE) {
+			mNodeLeft[node] = -1;
+			mNodeRight[node] = -1;
+			for (int i = start; i < start + count; i++)
+				mItemLeaf[mOrder[i]] = node;
+			refitLeaf(node);
+			return node;
+		}
+		
+		// Split at the centroid median of the widest axis
+		refitLeaf(node);
+		int b = node * 6;
+		int axis = 0;
+		float extent = mNodeBounds[b + 3] - mNodeBounds[b];
+		for (int a = 1; a < 3; a++) {
+			if (mNodeBounds[b + 3 + a] - mNodeBounds[b + a] > extent) {
+				extent = mNodeBounds[b + 3 + a] - mNodeBounds[b + a];
+				axis = a;
+			}
+		}
+		for (int i = start; i < start + count; i++) {
+			int item = mOrder[i] * 6;
+			mCentroids[i] = mItemBounds[item + axis] + mItemBounds[item + 3 + axis];
+		}
+		int half = count / 2;
+		select(start, start + count - 1, start + half);
+		
+		mNodeLeft[node]		= buildNode(node, start, half);
+		mNodeRight[node]	= buildNode(node, start + half, count - half);
+		return node;
+	}
+	
+	/**
+	 * Quickselect on the centroids so the k-th smallest ends up at k, moving the
+	 * item order along with them.
+	 */
+	private void select(int left, int right, int k) {
+		while (right > left) {
+			float pivot = mCentroids[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (mCentroids[i] < pivot)
+					++i;
+				while (mCentroids[j] > pivot)
+					--j;
+				if (i <= j) {
+					float c = mCentroids[i];
+					mCentroids[i] = mCentroids[j];
+					mCentroids[j] = c;
+					int o = mOrder[i];
+					mOrder[i] = mOrder[j];
+					mOrder[j] = o;
+					++i;
+					--j;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+	
+	/**
+	 * Bounds of a node straight from its item range.
+	 */
+	private void refitLeaf(int node) {
+		int b = node * 6;
+		for (int a = 0; a < 3; a++) {
+			mNodeBounds[b + a] = Float.MAX_VALUE;
+			mNodeBounds[b + 3 + a] = -Float.MAX_VALUE;
+		}
+		int end = mNodeStart[node] + mNodeCount[node];
+		for (int i = mNodeStart[node]; i < end; i++) {
+			int item = mOrder[i] * 6;
+			for (int a = 0; a < 3; a++) {
+				mNodeBounds[b + a] = Math.min(mNodeBounds[b + a], mItemBounds[item + a]);
+				mNodeBounds[b + 3 + a] = Math.max(mNodeBounds[b + 3 + a], mItemBounds[item + 3 + a]);
+			}
+		}
+	}
+	
+	private void refitInner(int node) {
+		int b = node * 6;
+		int l = mNodeLeft[node] * 6;
+		int r = mNodeRight[node] * 6;
+		for (int a = 0; a < 3; a++) {
+			mNodeBounds[b + a] = Math.min(mNodeBounds[l + a], mNodeBounds[r + a]);
+			mNodeBounds[b + 3 + a] = Math.max(mNodeBounds[l + 3 + a], mNodeBounds[r + 3 + a]);
+		}
+	}
+	
+	/**
+	 * Collects the handles of every item touching the frustum, read them back with
+	 * getResults. Returns the number of handles.
+	 */
+	public int query(Frustum frustum) {
+		if (mNeedsBuild)
+			build();
+		
+		mResultCount = 0;
+		if (mItemCount == 0)
+			return 0;
+		
+		int top = 0;
+		mStack[top++] = 0;
+		while (top > 0) {
+			int node = mStack[--top];
+			int b = node * 6;
+			int side = frustum.classifyBox(mNodeBounds[b], mNodeBounds[b + 1], mNodeBounds[b + 2],
+					mNodeBounds[b + 3], mNodeBounds[b + 4], mNodeBounds[b + 5]);
+			
+			if (side == Frustum.OUTSIDE)
+				continue;
+			
+			int start = mNodeStart[node];
+			int end = start + mNodeCount[node];
+			if (side == Frustum.INSIDE) {
+				// The whole subtree is visible and its items are contiguous
+				System.arraycopy(mOrder, start, mResults, mResultCount, end - start);
+				mResultCount += end - start;
+			}
+			else if (mNodeLeft[node] == -1) {
+				for (int i = start; i < end; i++) {
+					int item = mOrder[i] * 6;
+					if (frustum.intersectsBox(mItemBounds[item], mItemBounds[item + 1], mItemBounds[item + 2],
+							mItemBounds[item + 3], mItemBounds[item + 4], mItemBounds[item + 5]))
+						mResults[mResultCount++] = mOrder[i];
+				}
+			}
+			else {
+				mStack[top++] = mNodeRight[node];
+				mStack[top++] = mNodeLeft[node];
+			}
+		}
+		
+		return mResultCount;
+	}
+	
+	public int[] getResults() {
+		return mResults;
+	}
+}
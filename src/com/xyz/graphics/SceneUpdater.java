@@ -0,0 +1,514 @@
+package com.xyz.graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.xyz.core.EnvironmentSettings;
+import com.xyz.resources.TextureManager;
+
+/**
+ * Runs the simulation, culling and sorting on its own thread and turns the scene into
+ * a RenderCommandList per frame, so the GL thread only replays commands while the next
+ * frame is being prepared on another core.
+ *
+ * Lists go through a triple buffer: the updater fills one while the renderer draws
+ * another, the third holds the newest finished frame. The updater waits once it is a
+ * frame ahead, so it never does work the renderer would drop.
+ *
+ * Instances belong to the update thread once the scene is running, only move them from
+ * the Simulation callback. The same goes for the scene graphs they are part of, which
+ * are updated before every frame is culled.
+ */
+public final class SceneUpdater implements Runnable, Model.TransformListener {
+	
+	public interface Simulation {
+		/**
+		 * Called on the update thread before each frame is built.
+		 */
+		public void onUpdate(long elapsedNanos);
+	}
+	
+	/**
+	 * A model out of the scene, its buffers can go once the renderer reaches the first
+	 * list built without it.
+	 */
+	private static final class Retired {
+		final Model	mModel;
+		final int	mSequence;
+		
+		Retired(Model model, int sequence) {
+			mModel		= model;
+			mSequence	= sequence;
+		}
+	}
+	
+	// Sort order of the programs, instance effects follow in effect id order
+	private static final int PROGRAM_DEFAULT	= 0;
+	private static final int PROGRAM_BATCH		= 1;
+	private static final int PROGRAM_EFFECTS	= 2;
+	
+	private final TripleBuffer<RenderCommandList> mLists;
+	private final ConcurrentLinkedQueue<Model> mArrivedModels;
+	private final ConcurrentLinkedQueue<Model> mNewModels; // In the scene, waiting for the GL thread
+	private final ConcurrentLinkedQueue<Model> mLeavingModels;
+	private final ConcurrentLinkedQueue<Retired> mRetiredModels;
+	private final AtomicReference<float[]> mCamera; // Newest view projection not yet applied
+	private volatile Simulation mSimulation;
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+	private volatile OcclusionCuller mOcclusionCuller;
+	private volatile TextureManager mTextureManager;
+	
+	// Update thread only
+	private ArrayList<Model> mModelList;
+	private Model[] mModelTable;
+	private RenderBatcher mBatcher;
+	private RenderQueue mQueue;
+	private SceneIndex mSceneIndex;
+	private Model.Instance[] mIndexedInstances;
+	private RenderBatcher.Batch[] mIndexedBatches;
+	private Model.Instance[] mMovedInstances;
+	private int mMovedCount;
+	private ArrayList<SceneGraph> mGraphs;
+	private InstanceStore[] mStores; // By model index, null when the model has none
+	private int[] mStoreVisible;
+	private int[] mStoreItems; // Model index and slot of the store instances in mQueue
+	private int mStoreItemCount;
+	private OcclusionCuller mOcclusion; // Holds the occluders of the current scene
+	private Frustum mFrustum;
+	private float[] mViewProjMatrix;
+	private int mViewProjVersion;
+	private long mLastUpdate;
+	private int mSequence;
+	
+	public SceneUpdater(ArrayList<Model> models) {
+		mLists = new TripleBuffer<RenderCommandList>(new RenderCommandList(), new RenderCommandList(),
+				new RenderCommandList());
+		mArrivedModels = new ConcurrentLinkedQueue<Model>();
+		mNewModels = new ConcurrentLinkedQueue<Model>();
+		mLeavingModels = new ConcurrentLinkedQueue<Model>();
+		mRetiredModels = new ConcurrentLinkedQueue<Retired>();
+		mCamera = new AtomicReference<float[]>();
+		
+		mModelList = new ArrayList<Model>();
+		mFrustum = new Frustum();
+		mViewProjMatrix = new float[16];
+		MatrixMath.setIdentityM(mViewProjMatrix, 0);
+		buildScene();
+		if (models != null)
+			mArrivedModels.addAll(models);
+	}
+	
+	public void setSimulation(Simulation simulation) {
+		mSimulation = simulation;
+	}
+	
+	/**
+	 * Instances hidden behind occluder models are dropped after frustum culling, null
+	 * turns it off. Set it before occluders that release their client data are uploaded.
+	 */
+	public void setOcclusionCuller(OcclusionCuller culler) {
+		mOcclusionCuller = culler;
+	}
+	
+	/**
+	 * Tells which textures are translucent, their instances are drawn last. Without
+	 * one everything is drawn as opaque.
+	 */
+	public void setTextureManager(TextureManager textureManager) {
+		mTextureManager = textureManager;
+	}
+	
+	/**
+	 * Models join the scene on the next update, any thread.
+	 */
+	public void addModels(ArrayList<Model> models) {
+		mArrivedModels.addAll(models);
+	}
+	
+	/**
+	 * Models leave the scene on the next update, any thread. Their GPU buffers are
+	 * deleted by the renderer once no frame it may still draw refers to them.
+	 */
+	public void removeModels(ArrayList<Model> models) {
+		mLeavingModels.addAll(models);
+	}
+	
+	/**
+	 * Any thread, the matrices are copied.
+	 */
+	public void setCamera(float[] view, float[] projection) {
+		float[] viewProjection = new float[16];
+		MatrixMath.multiplyMM(viewProjection, 0, projection, 0, view, 0);
+		mCamera.set(viewProjection);
+	}
+	
+	public void start() {
+		if (mThread != null)
+			return;
+		
+		mRunning = true;
+		mLastUpdate = System.nanoTime();
+		Thread thread = new Thread(this, "SceneUpdater");
+		thread.setDaemon(true);
+		mThread = thread;
+		thread.start();
+	}
+	
+	public void stop() {
+		Thread thread = mThread;
+		mRunning = false;
+		mThread = null;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+	
+	public void run() {
+		while (mRunning) {
+			// Nothing to gain from running further ahead of the renderer
+			if (mLists.hasPending()) {
+				LockSupport.park(this);
+				continue;
+			}
+			update();
+		}
+	}
+	
+	/**
+	 * Builds and publishes one frame. Called by the update thread, or directly when
+	 * the updater isn't started.
+	 */
+	public void update() {
+		long now = System.nanoTime();
+		Simulation simulation = mSimulation;
+		if (simulation != null)
+			simulation.onUpdate(now - mLastUpdate);
+		mLastUpdate = now;
+		long simulated = 0, culled = 0, sorted = 0;
+		if (EnvironmentSettings.PROFILE)
+			simulated = System.nanoTime();
+		
+		// Before new models are handed to the GL thread, which may release their geometry
+		OcclusionCuller occlusion = mOcclusionCuller;
+		if (occlusion != mOcclusion) {
+			mOcclusion = occlusion;
+			if (occlusion != null)
+				occlusion.setOccluders(mModelTable);
+		}
+		takeArrivedModels();
+		// Before culling, so instances moved by their parents reach the scene index
+		for (int i = 0; i < mGraphs.size(); i++)
+			mGraphs.get(i).update();
+		float[] camera = mCamera.getAndSet(null);
+		if (camera != null) {
+			System.arraycopy(camera, 0, mViewProjMatrix, 0, 16);
+			++mViewProjVersion;
+			mFrustum.set(mViewProjMatrix);
+		}
+		
+		RenderCommandList list = mLists.getBack();
+		list.clear();
+		list.mModelTable = mModelTable;
+		// Occluders rasterize on the culler's thread while the frustum culling runs
+		if (occlusion != null)
+			occlusion.begin(mViewProjMatrix);
+		list.mCulled = cull() + cullStores();
+		list.mOccluded = 0;
+		list.mRasterTime = 0;
+		if (occlusion != null) {
+			occlusion.end();
+			list.mOccluded = occludeBatches(occlusion) + occludeStores(occlusion);
+			list.mRasterTime = occlusion.getRasterTime();
+		}
+		if (EnvironmentSettings.PROFILE)
+			culled = System.nanoTime();
+		
+		// Sorting by program, texture then model makes state changes follow the
+		// number of distinct materials instead of the number of instances
+		ArrayList<RenderBatcher.Batch> batches = mBatcher.getBatches();
+		mQueue.clear();
+		for (int i = 0; i < batches.size(); i++) {
+			RenderBatcher.Batch batch = batches.get(i);
+			if (batch.mVisibleCount == 0)
+				continue;
+			
+			int program = batch.mEffectId >= 0 ? PROGRAM_EFFECTS + batch.mEffectId :
+				(batch.mVisibleCount > 1 && batch.mModel.getBatchCopies() > 1 ? PROGRAM_BATCH : PROGRAM_DEFAULT);
+			mQueue.add(RenderQueue.makeKey(isTranslucent(batch.mTextureId), program, batch.mTextureId,
+					batch.mModelIndex), i);
+		}
+		queueStores(batches.size());
+		mQueue.sort();
+		if (EnvironmentSettings.PROFILE)
+			sorted = System.nanoTime();
+		
+		for (int i = 0; i < mQueue.size(); i++) {
+			int item = mQueue.getItem(i);
+			if (item >= batches.size()) {
+				int store = (item - batches.size()) * 2;
+				int modelIndex = mStoreItems[store];
+				int slot = mStoreItems[store + 1];
+				InstanceStore instances = mStores[modelIndex];
+				list.add(modelIndex, instances.getSlotTexture(slot), instances.getSlotEffect(slot),
+						instances.getMVPMatrices(), slot * 16);
+				continue;
+			}
+			
+			RenderBatcher.Batch batch = batches.get(item);
+			Model.Instance[] instances = batch.mVisible;
+			for (int v = 0; v < batch.mVisibleCount; v++) {
+				list.add(batch.mModelIndex, batch.mTextureId, batch.mEffectId,
+						instances[v].getMVPMatrix(mViewProjMatrix, mViewProjVersion));
+			}
+		}
+		
+		list.mSequence = ++mSequence;
+		if (EnvironmentSettings.PROFILE) {
+			long built = System.nanoTime();
+			list.mUpdateTime	= simulated - now;
+			list.mCullTime		= culled - simulated;
+			list.mSortTime		= sorted - culled;
+			list.mBuildTime		= built - sorted;
+		}
+		mLists.publish();
+	}
+	
+	/**
+	 * Newest finished frame, the previous one again when nothing new was published.
+	 * GL thread only, the list stays valid until the next call.
+	 */
+	RenderCommandList acquire() {
+		if (mLists.acquire()) {
+			Thread thread = mThread;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+		return mLists.getFront();
+	}
+	
+	/**
+	 * Models that joined the scene since the last call, they still need uploading.
+	 */
+	Model pollNewModel() {
+		return mNewModels.poll();
+	}
+	
+	/**
+	 * Next model removed from the scene before the list numbered sequence was built,
+	 * null when there is none.
+	 */
+	Model pollRetiredModel(int sequence) {
+		Retired retired = mRetiredModels.peek();
+		if (retired == null || retired.mSequence > sequence)
+			return null;
+		mRetiredModels.poll();
+		return retired.mModel;
+	}
+	
+	/**
+	 * New and removed models are rare, so the batches and scene index are simply rebuilt.
+	 */
+	private void takeArrivedModels() {
+		if (mArrivedModels.isEmpty() && mLeavingModels.isEmpty())
+			return;
+		
+		ArrayList<Model> added = new ArrayList<Model>();
+		Model model;
+		while ((model = mArrivedModels.poll()) != null) {
+			mModelList.add(model);
+			added.add(model);
+		}
+		while ((model = mLeavingModels.poll()) != null) {
+			if (mModelList.remove(model)) {
+				model.setTransformListener(null);
+				// This update builds the first list without it
+				mRetiredModels.add(new Retired(model, mSequence + 1));
+			}
+			added.remove(model);
+		}
+		buildScene();
+		
+		// Only after the batcher picked their batch copies
+		mNewModels.addAll(added);
+	}
+	
+	private void buildScene() {
+		mModelTable = mModelList.toArray(new Model[mModelList.size()]);
+		mBatcher = new RenderBatcher(mModelList);
+		mQueue = new RenderQueue(mBatcher.getBatches().size());
+		
+		ArrayList<RenderBatcher.Batch> batches = mBatcher.getBatches();
+		int count = 0;
+		for (RenderBatcher.Batch batch : batches)
+			count += batch.mInstances.size();
+		
+		mGraphs = new ArrayList<SceneGraph>();
+		for (RenderBatcher.Batch batch : batches) {
+			for (Model.Instance instance : batch.mInstances) {
+				SceneGraph graph = instance.getSceneGraph();
+				if (graph != null && !mGraphs.contains(graph))
+					mGraphs.add(graph);
+			}
+		}
+		// Settled before indexing, updating a graph moves instances indexed before it
+		for (int i = 0; i < mGraphs.size(); i++)
+			mGraphs.get(i).update();
+		
+		mSceneIndex = new SceneIndex(count);
+		mIndexedInstances = new Model.Instance[count];
+		mIndexedBatches = new RenderBatcher.Batch[count];
+		for (RenderBatcher.Batch batch : batches) {
+			batch.mModel.setTransformListener(this);
+			for (Model.Instance instance : batch.mInstances) {
+				float[] sphere = instance.getWorldSphere();
+				instance.clearMoved();
+				int handle = mSceneIndex.add(sphere[0], sphere[1], sphere[2], sphere[3]);
+				instance.setHandle(handle);
+				mIndexedInstances[handle] = instance;
+				mIndexedBatches[handle] = batch;
+			}
+		}
+		mMovedInstances = new Model.Instance[Math.max(count, 16)];
+		mMovedCount = 0;
+		
+		mStores = new InstanceStore[mModelTable.length];
+		for (int m = 0; m < mModelTable.length; m++) {
+			if (mModelTable[m].hasInstanceStore())
+				mStores[m] = mModelTable[m].getInstanceStore();
+		}
+		mStoreVisible = new int[16];
+		mStoreItems = new int[32];
+		if (mOcclusion != null)
+			mOcclusion.setOccluders(mModelTable);
+	}
+	
+	/**
+	 * Moves are collected as they happen and applied to the index before the next query.
+	 */
+	public void onTransformChanged(Model.Instance instance) {
+		if (mMovedCount == mMovedInstances.length)
+			mMovedInstances = Arrays.copyOf(mMovedInstances, mMovedCount * 2);
+		mMovedInstances[mMovedCount++] = instance;
+	}
+	
+	/**
+	 * Fills each batch with its instances that touch the frustum, subtrees of the scene
+	 * index outside the frustum are rejected as a whole. Returns how many were culled.
+	 */
+	private int cull() {
+		for (int i = 0; i < mMovedCount; i++) {
+			Model.Instance instance = mMovedInstances[i];
+			float[] sphere = instance.getWorldSphere();
+			mSceneIndex.update(instance.getHandle(), sphere[0], sphere[1], sphere[2], sphere[3]);
+			instance.clearMoved();
+			mMovedInstances[i] = null;
+		}
+		mMovedCount = 0;
+		
+		for (RenderBatcher.Batch batch : mBatcher.getBatches())
+			batch.mVisibleCount = 0;
+		
+		int visible = mSceneIndex.query(mFrustum);
+		int[] handles = mSceneIndex.getResults();
+		for (int i = 0; i < visible; i++) {
+			int handle = handles[i];
+			RenderBatcher.Batch batch = mIndexedBatches[handle];
+			batch.mVisible[batch.mVisibleCount++] = mIndexedInstances[handle];
+		}
+		
+		return mSceneIndex.size() - visible;
+	}
+	
+	/**
+	 * Instance stores are swept linearly instead of going through the scene index,
+	 * their instances are expected to move too often for a hierarchy to pay off.
+	 * Visible slots are left in mStoreItems, returns how many were culled.
+	 */
+	private int cullStores() {
+		int culled = 0;
+		int items = 0;
+		for (int m = 0; m < mStores.length; m++) {
+			InstanceStore store = mStores[m];
+			if (store == null || store.size() == 0)
+				continue;
+			
+			store.update(mViewProjMatrix, mViewProjVersion);
+			if (mStoreVisible.length < store.size())
+				mStoreVisible = new int[store.size()];
+			int visible = store.cull(mFrustum, mStoreVisible);
+			culled += store.size() - visible;
+			
+			if (mStoreItems.length < (items + visible) * 2)
+				mStoreItems = Arrays.copyOf(mStoreItems, Math.max(mStoreItems.length * 2, (items + visible) * 2));
+			for (int i = 0; i < visible; i++) {
+				mStoreItems[items * 2] = m;
+				mStoreItems[items * 2 + 1] = mStoreVisible[i];
+				++items;
+			}
+		}
+		mStoreItemCount = items;
+		return culled;
+	}
+	
+	/**
+	 * Drops the visible batch instances hidden by the occluders, returns how many.
+	 */
+	private int occludeBatches(OcclusionCuller occlusion) {
+		int occluded = 0;
+		for (RenderBatcher.Batch batch : mBatcher.getBatches()) {
+			Model.Instance[] instances = batch.mVisible;
+			int kept = 0;
+			for (int v = 0; v < batch.mVisibleCount; v++) {
+				if (occlusion.isOccluded(instances[v].getWorldSphere(), 0))
+					++occluded;
+				else
+					instances[kept++] = instances[v];
+			}
+			batch.mVisibleCount = kept;
+		}
+		return occluded;
+	}
+	
+	/**
+	 * Same for the store instances in mStoreItems.
+	 */
+	private int occludeStores(OcclusionCuller occlusion) {
+		int kept = 0;
+		for (int i = 0; i < mStoreItemCount; i++) {
+			int modelIndex = mStoreItems[i * 2];
+			int slot = mStoreItems[i * 2 + 1];
+			if (occlusion.isOccluded(mStores[modelIndex].getWorldSpheres(), slot * 4))
+				continue;
+			mStoreItems[kept * 2] = modelIndex;
+			mStoreItems[kept * 2 + 1] = slot;
+			++kept;
+		}
+		int occluded = mStoreItemCount - kept;
+		mStoreItemCount = kept;
+		return occluded;
+	}
+	
+	/**
+	 * Queues the visible store instances after the batches, as items from first on.
+	 */
+	private void queueStores(int first) {
+		for (int i = 0; i < mStoreItemCount; i++) {
+			int modelIndex = mStoreItems[i * 2];
+			int slot = mStoreItems[i * 2 + 1];
+			InstanceStore store = mStores[modelIndex];
+			int effect = store.getSlotEffect(slot);
+			int program = effect >= 0 ? PROGRAM_EFFECTS + effect :
+				(mModelTable[modelIndex].getBatchCopies() > 1 ? PROGRAM_BATCH : PROGRAM_DEFAULT);
+			int texture = store.getSlotTexture(slot);
+			mQueue.add(RenderQueue.makeKey(isTranslucent(texture), program, texture, modelIndex), first + i);
+		}
+	}
+	
+	private boolean isTranslucent(int texture) {
+		TextureManager textureManager = mTextureManager;
+		return textureManager != null && textureManager.isTranslucent(texture);
+	}
+}
@@ -0,0 +1,63 @@
+package com.xyz.graphics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of frames from one producer thread to one consumer thread.
+ *
+ * The producer fills the back item and publishes it, the consumer acquires the newest
+ * published item as its front. The third item sits in the middle, so neither side ever
+ * waits for the other, and a consumer that falls behind simply skips to the newest frame.
+ */
+final class TripleBuffer<T> {
+	
+	private static final int INDEX_MASK	= 3;
+	private static final int FRESH		= 4; // Set on the middle index when it hasn't been acquired
+	
+	private final Object[]		mItems;
+	private final AtomicInteger	mMiddle;
+	private int					mBack;	// Producer only
+	private int					mFront;	// Consumer only
+	
+	public TripleBuffer(T first, T second, T third) {
+		mItems	= new Object[] { first, second, third };
+		mFront	= 0;
+		mMiddle	= new AtomicInteger(1);
+		mBack	= 2;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T getBack() {
+		return (T)mItems[mBack];
+	}
+	
+	/**
+	 * Hands the back item over, the producer gets a free item back.
+	 */
+	public void publish() {
+		mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+	}
+	
+	/**
+	 * Whether a published item is still waiting for the consumer.
+	 */
+	public boolean hasPending() {
+		return (mMiddle.get() & FRESH) != 0;
+	}
+	
+	/**
+	 * Makes the newest published item the front one. Returns false, keeping the
+	 * current front, when nothing new was published.
+	 */
+	public boolean acquire() {
+		if ((mMiddle.get() & FRESH) == 0)
+			return false;
+		mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+		return true;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T getFront() {
+		return (T)mItems[mFront];
+	}
+}
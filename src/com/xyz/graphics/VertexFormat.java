@@ -0,0 +1,199 @@
+package com.xyz.graphics;
+
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Layout of a model's interleaved vertex buffer: which attributes it holds, their
+ * component type and offset, and the stride between vertices.
+ *
+ * Quantized attributes are stored as normalized integers:
+ *   position	4 shorts, xyz relative to the mesh bounds (see Model.getPositionScale), w = 1
+ *   normal		3 bytes and a pad byte
+ *   colour		4 unsigned bytes
+ *   uv			2 unsigned shorts, only for coordinates within [0, 1]
+ * Everything else is stored as floats. Attributes missing from the format are read from
+ * a constant vertex attribute instead, see getConstant.
+ */
+public final class VertexFormat {
+	
+	public static final int POSITION		= 0;
+	public static final int NORMAL			= 1;
+	public static final int COLOUR			= 2;
+	public static final int UV				= 3;
+	public static final int ATTRIBUTE_COUNT	= 4;
+	
+	// Components the shaders read
+	private static final int[] COMPONENTS = { 3, 3, 4, 2 };
+	
+	private static final int[] QUANTIZED_TYPES = {
+		GLES20.GL_SHORT, GLES20.GL_BYTE, GLES20.GL_UNSIGNED_BYTE, GLES20.GL_UNSIGNED_SHORT
+	};
+	
+	private static final float[][] CONSTANTS = {
+		{ 0.0f, 0.0f, 0.0f, 1.0f },
+		{ 0.0f, 0.0f, 1.0f, 0.0f },
+		{ 1.0f, 1.0f, 1.0f, 1.0f },
+		{ 0.0f, 0.0f, 0.0f, 1.0f }
+	};
+	
+	private final int	mAttributes;
+	private final int	mQuantized;
+	private final int[]	mTypes;
+	private final int[]	mSizes;
+	private final int[]	mSlots; // Stored components, at least mSizes, keeps offsets 4 byte aligned
+	private final int[]	mOffsets;
+	private final int	mStride;
+	
+	/**
+	 * attributes and quantized are masks of 1 << attribute, quantized ones must also
+	 * be in attributes.
+	 */
+	public VertexFormat(int attributes, int quantized) {
+		assert (attributes & (1 << POSITION)) != 0;
+		assert (quantized & ~attributes) == 0;
+		
+		mAttributes	= attributes;
+		mQuantized	= quantized;
+		mTypes		= new int[ATTRIBUTE_COUNT];
+		mSizes		= new int[ATTRIBUTE_COUNT];
+		mSlots		= new int[ATTRIBUTE_COUNT];
+		mOffsets	= new int[ATTRIBUTE_COUNT];
+		
+		int offset = 0;
+		for (int a = 0; a < ATTRIBUTE_COUNT; a++) {
+			if (!has(a))
+				continue;
+			
+			if (isQuantized(a)) {
+				mTypes[a] = QUANTIZED_TYPES[a];
+				mSizes[a] = a == POSITION ? 4 : COMPONENTS[a];
+				mSlots[a] = a == POSITION || a == NORMAL ? 4 : COMPONENTS[a];
+			}
+			else {
+				mTypes[a] = GLES20.GL_FLOAT;
+				mSizes[a] = COMPONENTS[a];
+				mSlots[a] = COMPONENTS[a];
+			}
+			mOffsets[a] = offset;
+			offset += mSlots[a] * typeSize(mTypes[a]);
+		}
+		mStride = offset;
+	}
+	
+	public boolean has(int attribute) {
+		return (mAttributes & (1 << attribute)) != 0;
+	}
+	
+	public boolean isQuantized(int attribute) {
+		return (mQuantized & (1 << attribute)) != 0;
+	}
+	
+	public int getAttributes() {
+		return mAttributes;
+	}
+	
+	/**
+	 * Arguments for glVertexAttribPointer.
+	 */
+	public int getType(int attribute) {
+		return mTypes[attribute];
+	}
+	
+	public int getSize(int attribute) {
+		return mSizes[attribute];
+	}
+	
+	public boolean isNormalized(int attribute) {
+		return isQuantized(attribute);
+	}
+	
+	public int getOffset(int attribute) {
+		return mOffsets[attribute];
+	}
+	
+	public int getStride() {
+		return mStride;
+	}
+	
+	/**
+	 * Value a shader reads for an attribute the format doesn't have.
+	 */
+	public static float[] getConstant(int attribute) {
+		return CONSTANTS[attribute];
+	}
+	
+	/**
+	 * Bytes per vertex of the same attributes kept as separate float streams.
+	 */
+	public int getUnpackedSize() {
+		int size = 0;
+		for (int a = 0; a < ATTRIBUTE_COUNT; a++) {
+			if (has(a))
+				size += COMPONENTS[a] * 4;
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes value, COMPONENTS of the attribute and then its padding, into the vertex
+	 * starting at vertex. Quantized values are clamped to their normalized range.
+	 */
+	void put(ByteBuffer out, int vertex, int attribute, float[] value) {
+		int position = vertex + mOffsets[attribute];
+		for (int i = 0; i < mSlots[attribute]; i++) {
+			float v = value[i];
+			switch (mTypes[attribute]) {
+			case GLES20.GL_FLOAT:
+				out.putFloat(position, v);
+				position += 4;
+				break;
+			case GLES20.GL_SHORT:
+				out.putShort(position, (short)Math.round(clamp(v, -1.0f, 1.0f) * 32767.0f));
+				position += 2;
+				break;
+			case GLES20.GL_UNSIGNED_SHORT:
+				out.putShort(position, (short)Math.round(clamp(v, 0.0f, 1.0f) * 65535.0f));
+				position += 2;
+				break;
+			case GLES20.GL_BYTE:
+				out.put(position, (byte)Math.round(clamp(v, -1.0f, 1.0f) * 127.0f));
+				position += 1;
+				break;
+			default:
+				out.put(position, (byte)Math.round(clamp(v, 0.0f, 1.0f) * 255.0f));
+				position += 1;
+			}
+		}
+	}
+	
+	private static float clamp(float value, float min, float max) {
+		return value < min ? min : (value > max ? max : value);
+	}
+	
+	private static int typeSize(int type) {
+		switch (type) {
+		case GLES20.GL_FLOAT:
+			return 4;
+		case GLES20.GL_SHORT:
+		case GLES20.GL_UNSIGNED_SHORT:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		String[] names = { "position", "normal", "colour", "uv" };
+		for (int a = 0; a < ATTRIBUTE_COUNT; a++) {
+			if (!has(a))
+				continue;
+			result.append(names[a]).append(isQuantized(a) ? "(q" : "(f").append(mSizes[a]).append('@')
+					.append(mOffsets[a]).append(") ");
+		}
+		return result.append("stride ").append(mStride).toString();
+	}
+}
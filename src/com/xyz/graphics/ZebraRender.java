@@ -1,10 +1,5 @@
 package com.xyz.graphics;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.ShortBuffer;
 import java.util.ArrayList;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -13,212 +8,568 @@ import javax.microedition.khronos.opengles.GL10;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
-import android.util.Log;
 
 import com.xyz.core.EnvironmentSettings;
+import com.xyz.core.ZebraLog;
 import com.xyz.resources.EffectManager;
 import com.xyz.resources.TextureManager;
 
+/**
+ * Draws the command lists built by the SceneUpdater, the GL thread itself only uploads
+ * resources and replays commands.
+ */
 public class ZebraRender implements GLSurfaceView.Renderer {
 
 	public ZebraRender(Context context, ArrayList<Model> modelList,
 			TextureManager textureManager, EffectManager effectManager) {
 		
+		this(context, modelList, textureManager, effectManager, new GLES20Backend());
+	}
+	
+	/**
+	 * Every GL call goes through gl, the managers are switched to it too. Off device
+	 * a RecordingBackend stands in for GL, context may then be null.
+	 */
+	public ZebraRender(Context context, ArrayList<Model> modelList,
+			TextureManager textureManager, EffectManager effectManager, GLBackend gl) {
+		
 	    mContext = context;
+	    mGL = gl;
+	    mStateCache = new GLStateCache(gl);
+	    textureManager.setBackend(gl);
+	    effectManager.setBackend(gl);
 	    
-	    mModelList = modelList;
+	    mModelList = new ArrayList<Model>();
 	    mTextureManager = textureManager;
 	    mEffectManager = effectManager;
+	    
+	    // Every program binds these to the same locations
+	    maPositionHandle = effectManager.getAttributeLocation("aPosition");
+	    maTextureHandle = effectManager.getAttributeLocation("aTextureCoord");
+	    maInstanceHandle = effectManager.getAttributeLocation("aInstance");
+	    mAttributeHandles = new int[VertexFormat.ATTRIBUTE_COUNT];
+	    mAttributeHandles[VertexFormat.POSITION] = maPositionHandle;
+	    mAttributeHandles[VertexFormat.NORMAL] = effectManager.getAttributeLocation("aNormal");
+	    mAttributeHandles[VertexFormat.COLOUR] = effectManager.getAttributeLocation("aColour");
+	    mAttributeHandles[VertexFormat.UV] = maTextureHandle;
+	    muMVPMatrixSlot = effectManager.getUniformSlot("uMVPMatrix");
+	    muMVPMatricesSlot = effectManager.getUniformSlot("uMVPMatrices");
+	    // Colour on unit 0, the alpha plane of ETC1 textures or white on unit 1
+	    effectManager.getSamplerUnit("sTexture");
+	    mAlphaUnit = effectManager.getSamplerUnit("sAlpha");
+	    mAttributes = (1 << maPositionHandle) | (1 << maTextureHandle);
+	    mBatchAttributes = mAttributes | (1 << maInstanceHandle);
+	    
+	    mUploadList = new ArrayList<Model>();
+	    mUpdater = new SceneUpdater(modelList);
+	    mUpdater.setTextureManager(textureManager);
+	    
+	    if (EnvironmentSettings.PROFILE) {
+	    	mMetrics = new FrameMetrics(METRICS_HISTORY);
+	    	mMetrics.setLogInterval(METRICS_HISTORY);
+	    }
+    }
+    
+    /**
+     * Hands over models loaded on another thread, they join the scene on the next
+     * update and are drawn once uploaded.
+     */
+    public void addModels(ArrayList<Model> models) {
+    	mUpdater.addModels(models);
+    }
+    
+    /**
+     * Takes models out of the scene, any thread, see SceneUpdater.removeModels.
+     */
+    public void removeModels(ArrayList<Model> models) {
+    	mUpdater.removeModels(models);
+    }
+    
+    public SceneUpdater getSceneUpdater() {
+    	return mUpdater;
+    }
+    
+    /**
+     * Starts the update thread. Without it, call SceneUpdater.update before each frame.
+     */
+    public void start() {
+    	mUpdater.start();
+    }
+    
+    /**
+     * Stops the update thread, the renderer draws nothing new afterwards.
+     */
+    public void shutdown() {
+    	mUpdater.stop();
+    }
+    
+    /**
+     * Models the updater added to the scene, the GL thread keeps its own list to
+     * upload them again with a new context.
+     */
+    private void takeNewModels() {
+    	Model model;
+    	while ((model = mUpdater.pollNewModel()) != null) {
+    		mModelList.add(model);
+    		mUploadList.add(model);
+    	}
+    }
+    
+    /**
+     * Deletes the buffers of models that left the scene before list was built, no list
+     * the renderer can still draw refers to them.
+     */
+    private void releaseRetiredModels(RenderCommandList list) {
+    	Model model;
+    	while ((model = mUpdater.pollRetiredModel(list.mSequence)) != null) {
+    		mModelList.remove(model);
+    		int pending = mUploadList.indexOf(model);
+    		if (pending >= 0) {
+    			mUploadList.remove(pending);
+    			if (pending < mUploadCount)
+    				--mUploadCount;
+    		}
+    		if (model.isResident()) {
+    			model.deleteBuffers(mGL);
+    			mStateCache.invalidate();
+    			mBoundModel = null;
+    		}
+    	}
+    }
+    
+    /**
+     * Spends at most about UPLOAD_BUDGET bytes of texture and buffer uploads per frame,
+     * so loading a scene doesn't stall a single frame.
+     */
+    private void uploadResources() {
+    	// Linking binds the programs to set their samplers
+    	if (mEffectManager.compileEffects() > 0) {
+    		mStateCache.invalidate();
+    		mBoundModel = null;
+    	}
+    	mTextureManager.beginFrame();
+    	int uploaded = mTextureManager.uploadTextures(UPLOAD_BUDGET);
+    	while (mUploadCount < mUploadList.size() && uploaded < UPLOAD_BUDGET) {
+    		Model model = mUploadList.get(mUploadCount++);
+    		uploaded += model.getUploadSize();
+    		if (!model.upload(mGL, mUintIndices))
+    			ZebraLog.e(TAG, "Could not upload " + model.getName());
+    	}
+    	if (mUploadCount == mUploadList.size()) {
+    		mUploadList.clear();
+    		mUploadCount = 0;
+    	}
+    	
+    	// Uploads bind textures and buffers directly
+    	if (uploaded > 0) {
+    		mStateCache.invalidate();
+    		mBoundModel = null;
+    	}
+    	mUploadedBytes = uploaded;
     }
 
     public void onDrawFrame(GL10 glUnused) {
         // Ignore the passed-in GL10 interface, and use the GLES20
         // class's static methods instead.
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glUseProgram(mProgram);
-        checkGlError("glUseProgram");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        long frameStart = 0, uploaded = 0;
+        if (EnvironmentSettings.PROFILE)
+        	frameStart = System.nanoTime();
+        mGL.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
         
-        if (mModelList != null) {
-	        for (Model model : mModelList) {
-	        	// Set mesh information
-	        	GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false, 0,
-	        			model.getVertexBuffer());
-	        	GLES20.glEnableVertexAttribArray(maPositionHandle);
-	        	
-	        	GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false, 0,
-	        			model.getUVBuffer());
-	        	GLES20.glEnableVertexAttribArray(maTextureHandle);
-	        	
-	        	ShortBuffer indexBuffer = model.getIndexBuffer();
-	        	for (Model.Instance instance : model.getInstances()) {
-	        		// TODO: Local instance transform
-	        		float angle = 0.0f;
-	                Matrix.setRotateM(mMMatrix, 0, angle, 0, 0, 1.0f);
-	                Matrix.multiplyMM(mMVPMatrix, 0, mVMatrix, 0, mMMatrix, 0);
-	                Matrix.multiplyMM(mMVPMatrix, 0, mProjMatrix, 0, mMVPMatrix, 0);
-
-	                GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-	        		
-	        		// Render instance
-	                int texId = instance.getTextureId();
-		            if (texId >= 0) {
-		            	GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureManager.getGlTextureId(texId));
-		            }
-	        		GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
-	        	}
-	        }
+        // New models are taken after the list, so any retired with it were taken first
+        RenderCommandList list = mUpdater.acquire();
+        takeNewModels();
+        releaseRetiredModels(list);
+        uploadResources();
+        if (EnvironmentSettings.PROFILE)
+        	uploaded = System.nanoTime();
+        
+        // Commands come sorted by program, texture then model, each run of equal
+        // model, texture and effect is drawn together
+        Model[] models = list.mModelTable;
+        int drawCalls = 0;
+        int instances = 0;
+        int unbatchedCalls = 0; // One per instance and part
+        int indices = 0;
+        for (int first = 0; first < list.mCount; ) {
+        	int count = list.runLength(first);
+        	Model model = models[list.mModels[first]];
+        	if (model.isResident()) {
+        		int texture = list.mTextures[first];
+        		if (texture >= 0) {
+        			mStateCache.bindTexture(mTextureManager.useTexture(texture));
+        			mStateCache.bindTexture(mAlphaUnit, mTextureManager.getGlAlphaTextureId(texture));
+        		}
+        		// Translucent runs come last, sorted so by the updater
+        		mStateCache.setBlending(mTextureManager.isTranslucent(texture));
+        		
+        		instances += count;
+        		unbatchedCalls += count * model.getPartCount();
+        		indices += model.getIndexCount() * count;
+        		int effect = list.mEffects[first];
+        		if (isBatchable(model, effect, count))
+        			drawCalls += drawBatched(model, list, first, count);
+        		else
+        			drawCalls += drawSingle(model, effect, list, first, count);
+        	}
+        	first += count;
         }
+        
+        if (EnvironmentSettings.DEBUG && unbatchedCalls - drawCalls != mDrawCallsSaved) {
+        	ZebraLog.d(TAG, drawCalls + " draw calls for " + instances + " instances");
+        }
+        mDrawCalls = drawCalls;
+        mDrawCallsSaved = unbatchedCalls - drawCalls;
+        mCulledInstances = list.mCulled;
+        mOccludedInstances = list.mOccluded;
+        mStateChanges = mStateCache.takeStateChanges();
+        mSkippedStateChanges = mStateCache.takeSkippedChanges();
+        
+        if (EnvironmentSettings.PROFILE)
+        	recordMetrics(list, frameStart, uploaded, indices);
+    }
+    
+    private void recordMetrics(RenderCommandList list, long frameStart, long uploaded, int indices) {
+    	FrameMetrics metrics = mMetrics;
+    	long submitted = System.nanoTime();
+    	long finished = submitted;
+    	if (metrics.isMeasuringGpu()) {
+    		mGL.glFinish();
+    		finished = System.nanoTime();
+    	}
+    	
+    	// A list replayed again was already counted with its first frame
+    	if (list.mSequence != mMetricsSequence) {
+    		metrics.set(FrameMetrics.UPDATE_TIME, list.mUpdateTime);
+    		metrics.set(FrameMetrics.CULL_TIME, list.mCullTime);
+    		metrics.set(FrameMetrics.SORT_TIME, list.mSortTime);
+    		metrics.set(FrameMetrics.BUILD_TIME, list.mBuildTime);
+    		metrics.set(FrameMetrics.RASTER_TIME, list.mRasterTime);
+    		mMetricsSequence = list.mSequence;
+    	}
+    	metrics.set(FrameMetrics.UPLOAD_TIME, uploaded - frameStart);
+    	metrics.set(FrameMetrics.SUBMIT_TIME, submitted - uploaded);
+    	metrics.set(FrameMetrics.FINISH_TIME, finished - submitted);
+    	metrics.set(FrameMetrics.FRAME_TIME, finished - frameStart);
+    	metrics.set(FrameMetrics.DRAW_CALLS, mDrawCalls);
+    	metrics.set(FrameMetrics.INDICES, indices);
+    	metrics.set(FrameMetrics.TEXTURE_BINDS, mStateCache.takeTextureChanges());
+    	metrics.set(FrameMetrics.PROGRAM_BINDS, mStateCache.takeProgramChanges());
+    	metrics.set(FrameMetrics.STATE_CHANGES, mStateChanges);
+    	metrics.set(FrameMetrics.UPLOADED_BYTES, mUploadedBytes);
+    	metrics.set(FrameMetrics.CULLED, mCulledInstances);
+    	metrics.set(FrameMetrics.OCCLUDED, mOccludedInstances);
+    	metrics.endFrame();
+    }
+    
+    /**
+     * Null unless EnvironmentSettings.PROFILE is on. GL thread only.
+     */
+    public FrameMetrics getMetrics() {
+    	return mMetrics;
+    }
+    
+    /**
+     * Instances with their own effect draw with it once it is compiled, if it takes
+     * the same inputs as the default one.
+     */
+    private boolean hasEffect(int effect) {
+    	return effect >= 0 && mEffectManager.getProgram(effect) != 0 &&
+    			mEffectManager.getUniformLocation(effect, muMVPMatrixSlot) != -1;
+    }
+    
+    /**
+     * The batch program only replaces the default effect.
+     */
+    private boolean isBatchable(Model model, int effect, int count) {
+    	return count > 1 && model.isBatched() && mBatchProgram != 0 && effect < 0;
+    }
+    
+    /**
+     * Attribute pointers and constants are global state, they only need setting again
+     * when a different model or layout is drawn.
+     */
+    private boolean bindGeometry(Model model, int part, boolean batched) {
+    	if (model == mBoundModel && part == mBoundPart && batched == mBoundBatched)
+    		return false;
+    	mBoundModel = model;
+    	mBoundPart = part;
+    	mBoundBatched = batched;
+    	return true;
+    }
+    
+    private int drawSingle(Model model, int effect, RenderCommandList list, int first, int count) {
+    	effect = hasEffect(effect) ? effect : mDefaultEffect;
+    	mStateCache.useProgram(mEffectManager.getProgram(effect));
+    	checkGlError("glUseProgram");
+    	int mvpHandle = mEffectManager.getUniformLocation(effect, muMVPMatrixSlot);
+    	
+    	// Set mesh information, geometry lives in one interleaved buffer object per part,
+    	// only meshes split for 16 bit indices have more than one
+    	int parts = model.getPartCount();
+    	int indexType = model.getIndexType();
+    	for (int part = 0; part < parts; part++) {
+    		if (bindGeometry(model, part, false)) {
+    			mStateCache.bindArrayBuffer(model.getPartBufferId(part, Model.BUFFER_VERTICES));
+    			bindVertexFormat(model.getVertexFormat());
+    			mStateCache.bindElementBuffer(model.getPartBufferId(part, Model.BUFFER_INDICES));
+    		}
+    		mStateCache.setEnabledAttributes(mModelAttributes & mEffectManager.getAttributeMask(effect));
+    		
+    		int indexCount = model.getPartIndexCount(part);
+    		for (int i = 0; i < count; i++) {
+    			mGL.glUniformMatrix4fv(mvpHandle, 1, false, list.mMatrices, (first + i) * 16);
+    			mGL.glDrawElements(GLES20.GL_TRIANGLES, indexCount, indexType, 0);
+    		}
+    	}
+    	
+    	return count * parts;
+    }
+    
+    /**
+     * Attributes the format lacks read a constant instead, their arrays stay disabled.
+     */
+    private void bindVertexFormat(VertexFormat format) {
+    	int stride = format.getStride();
+    	mModelAttributes = 0;
+    	for (int a = 0; a < VertexFormat.ATTRIBUTE_COUNT; a++) {
+    		int handle = mAttributeHandles[a];
+    		if (format.has(a)) {
+    			mGL.glVertexAttribPointer(handle, format.getSize(a), format.getType(a), format.isNormalized(a),
+    					stride, format.getOffset(a));
+    			mModelAttributes |= 1 << handle;
+    		}
+    		else {
+    			float[] value = VertexFormat.getConstant(a);
+    			mGL.glVertexAttrib4f(handle, value[0], value[1], value[2], value[3]);
+    		}
+    	}
+    }
+    
+    /**
+     * Pseudo-instancing, each copy of the replicated geometry picks its matrix from
+     * a uniform array. GLES20 on this API level has no instanced draw calls.
+     * The run's matrices are contiguous in the list, so they are passed as they are.
+     */
+    private int drawBatched(Model model, RenderCommandList list, int first, int count) {
+    	mStateCache.useProgram(mBatchProgram);
+    	checkGlError("glUseProgram");
+    	
+    	if (bindGeometry(model, 0, true)) {
+    		mStateCache.bindArrayBuffer(model.getBufferId(Model.BUFFER_BATCH_VERTICES));
+    		mGL.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false, Model.BATCH_STRIDE, 0);
+    		mGL.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false, Model.BATCH_STRIDE,
+    				Model.BATCH_UV_OFFSET);
+    		mGL.glVertexAttribPointer(maInstanceHandle, 1, GLES20.GL_FLOAT, false, Model.BATCH_STRIDE,
+    				Model.BATCH_INSTANCE_OFFSET);
+    		mStateCache.bindElementBuffer(model.getBufferId(Model.BUFFER_BATCH_INDICES));
+    	}
+    	mStateCache.setEnabledAttributes(mBatchAttributes);
+    	
+    	int indexCount = model.getIndexCount();
+    	int copies = Math.min(model.getUploadedBatchCopies(), mBatchSize);
+    	
+    	int drawCalls = 0;
+    	for (int i = 0; i < count; i += copies) {
+    		int n = Math.min(copies, count - i);
+    		mGL.glUniformMatrix4fv(muBatchMatricesHandle, n, false, list.mMatrices, (first + i) * 16);
+    		mGL.glDrawElements(GLES20.GL_TRIANGLES, indexCount * n, GLES20.GL_UNSIGNED_SHORT, 0);
+    		++drawCalls;
+    	}
+    	
+    	return drawCalls;
+    }
+    
+    public int getDrawCalls() {
+    	return mDrawCalls;
+    }
+    
+    public int getDrawCallsSaved() {
+    	return mDrawCallsSaved;
+    }
+    
+    public int getCulledInstances() {
+    	return mCulledInstances;
+    }
+    
+    /**
+     * Instances in the frustum hidden by occluders, see SceneUpdater.setOcclusionCuller.
+     */
+    public int getOccludedInstances() {
+    	return mOccludedInstances;
+    }
+    
+    public int getStateChanges() {
+    	return mStateChanges;
+    }
+    
+    public int getSkippedStateChanges() {
+    	return mSkippedStateChanges;
+    }
+    
+    /**
+     * Bytes of textures and buffers uploaded during the last frame.
+     */
+    public int getUploadedBytes() {
+    	return mUploadedBytes;
     }
 
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
         // Ignore the passed-in GL10 interface, and use the GLES20
         // class's static methods instead.
-        GLES20.glViewport(0, 0, width, height);
+        mGL.glViewport(0, 0, width, height);
         float ratio = (float) width / height;
-        Matrix.frustumM(mProjMatrix, 0, -ratio, ratio, -1, 1, 3, 7);
+        MatrixMath.frustumM(mProjMatrix, 0, -ratio, ratio, -1, 1, 3, 7);
+        updateViewProjection();
     }
     
-    private String readSource(BufferedReader reader) {
-    	StringBuilder source = new StringBuilder();
-		
-		String line;
-		try {
-			while ((line = reader.readLine()) != null) {
-				source.append(line);
-			}
-		} catch (IOException e) {
-		}
-		
-		return source.toString();
+    /**
+     * Call after changing the view or projection matrix, the updater picks it up
+     * for the next frame it builds.
+     */
+    private void updateViewProjection() {
+        mUpdater.setCamera(mVMatrix, mProjMatrix);
     }
-
+    
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         // Ignore the passed-in GL10 interface, and use the GLES20
         // class's static methods instead.
     	
-    	try {
-    		InputStream stream = mTextureManager.mAssetManager.open("effects/simple_vertex.xyz.shader");
-    		BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-			if (reader != null) {
-				mVertexShader = readSource(reader);
-			}
-			
-			reader.close();
-			stream.close();
-    	} catch (IOException e) {
-    	}
-    	
-        mProgram = createProgram(mVertexShader, mFragmentShader);
-        if (mProgram == 0) {
+        mDefaultEffect = mEffectManager.createEffect(VERTEX_SHADER, FRAGMENT_SHADER);
+        createBatchEffect();
+        
+        // Programs from the old context are gone, this links every known effect again
+        mEffectManager.generateEffects(gl);
+        if (mEffectManager.getProgram(mDefaultEffect) == 0) {
             return;
         }
-        maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (maPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
+        if (mEffectManager.getUniformLocation(mDefaultEffect, muMVPMatrixSlot) == -1) {
+            throw new RuntimeException("Could not get uniform location for uMVPMatrix");
         }
-        maTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
-        checkGlError("glGetAttribLocation aTextureCoord");
-        if (maTextureHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aTextureCoord");
+        if ((mEffectManager.getAttributeMask(mDefaultEffect) & mAttributes) != mAttributes) {
+            throw new RuntimeException("Could not get attrib locations for aPosition and aTextureCoord");
         }
-
-        muMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (muMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
+        
+        mBatchProgram = mEffectManager.getProgram(mBatchEffect);
+        muBatchMatricesHandle = mEffectManager.getUniformLocation(mBatchEffect, muMVPMatricesSlot);
+        if (mBatchProgram != 0 && (muBatchMatricesHandle == -1 ||
+        		mEffectManager.getAttributeMask(mBatchEffect) != mBatchAttributes)) {
+            ZebraLog.w(TAG, "Batching disabled, missing batch program locations");
+            mBatchProgram = 0;
         }
-
-        Matrix.setLookAtM(mVMatrix, 0, 0, 0, -5, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
         
-        GLES20.glClearColor(0.01f, 0.01f, 0.01f, 1.0f);
+        MatrixMath.setLookAtM(mVMatrix, 0, 0, 0, -5, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+        updateViewProjection();
         
+        mGL.glClearColor(0.01f, 0.01f, 0.01f, 1.0f);
+        mGL.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        
+        // Without it meshes past 65536 vertices are split on upload
+        String extensions = mGL.glGetString(GLES20.GL_EXTENSIONS);
+        mUintIndices = extensions != null && extensions.contains("GL_OES_element_index_uint");
+        
+        mGL.glActiveTexture(GLES20.GL_TEXTURE0);
         mTextureManager.generateTextures(gl);
-    }
-
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        if (shader != 0) {
-            GLES20.glShaderSource(shader, source);
-            GLES20.glCompileShader(shader);
-            int[] compiled = new int[1];
-            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-            if (compiled[0] == 0) {
-                Log.e(TAG, "Could not compile shader " + shaderType + ":");
-                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-                GLES20.glDeleteShader(shader);
-                shader = 0;
-            }
+        
+        // A new context means any previous buffer objects are gone, they are
+        // uploaded again a few per frame
+        mUploadList.clear();
+        mUploadCount = 0;
+        for (Model model : mModelList) {
+        	model.invalidateBuffers();
+        	mUploadList.add(model);
         }
-        return shader;
+        
+        mStateCache.invalidate();
+        mBoundModel = null;
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
-        }
-
-        int program = GLES20.glCreateProgram();
-        if (program != 0) {
-            GLES20.glAttachShader(program, vertexShader);
-            checkGlError("glAttachShader");
-            GLES20.glAttachShader(program, pixelShader);
-            checkGlError("glAttachShader");
-            GLES20.glLinkProgram(program);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] != GLES20.GL_TRUE) {
-                Log.e(TAG, "Could not link program: ");
-                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-                GLES20.glDeleteProgram(program);
-                program = 0;
-            }
+    /**
+     * Without the batch program every batch falls back to one draw per instance.
+     */
+    private void createBatchEffect() {
+        int[] maxVectors = new int[1];
+        mGL.glGetIntegerv(GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS, maxVectors, 0);
+        mBatchSize = Math.min(RenderBatcher.MAX_BATCH_SIZE, (maxVectors[0] - 4) / 4);
+        
+        String fragmentShader = mEffectManager.loadSource(FRAGMENT_SHADER);
+        mBatchEffect = mBatchSize > 1 && fragmentShader != null ? mEffectManager.createEffectFromSource("batch",
+        		String.format(mBatchVertexShader, mBatchSize), fragmentShader) : -1;
+        if (mBatchEffect == -1) {
+            ZebraLog.w(TAG, "Batching disabled");
         }
-        return program;
     }
 
     private void checkGlError(String op) {
     	if (EnvironmentSettings.DEBUG) {
 	        int error;
-	        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
-	            Log.e(TAG, op + ": glError " + error);
+	        while ((error = mGL.glGetError()) != GLES20.GL_NO_ERROR) {
+	            ZebraLog.e(TAG, op + ": glError " + error);
 	            throw new RuntimeException(op + ": glError " + error);
 	        }
     	}
     }
 
-    private String mVertexShader;
-
-    private final String mFragmentShader =
-        "precision mediump float;\n" +
+    private static final String VERTEX_SHADER = "effects/simple_vertex.xyz.shader";
+    private static final String FRAGMENT_SHADER = "effects/simple_fragment.xyz.shader";
+    
+    private final String mBatchVertexShader =
+        "uniform mat4 uMVPMatrices[%d];\n" +
+        "attribute vec4 aPosition;\n" +
+        "attribute vec2 aTextureCoord;\n" +
+        "attribute float aInstance;\n" +
         "varying vec2 vTextureCoord;\n" +
-        "uniform sampler2D sTexture;\n" +
         "void main() {\n" +
-        "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+        "  gl_Position = uMVPMatrices[int(aInstance)] * aPosition;\n" +
+        "  vTextureCoord = aTextureCoord;\n" +
         "}\n";
     
+    // Bytes uploaded per frame while resources are streaming in
+    private static final int UPLOAD_BUDGET = 256 * 1024;
+    // Frames of metrics kept, also how often they are logged
+    private static final int METRICS_HISTORY = 300;
+    
+    private SceneUpdater mUpdater;
     private ArrayList<Model> mModelList;
+    private ArrayList<Model> mUploadList;
+    private int mUploadCount;
+    private int mUploadedBytes;
     private TextureManager mTextureManager;
     private EffectManager mEffectManager;
 
-    private float[] mMVPMatrix = new float[16];
     private float[] mProjMatrix = new float[16];
-    private float[] mMMatrix = new float[16];
     private float[] mVMatrix = new float[16];
 
-    private int mProgram;
-    private int muMVPMatrixHandle;
+    private int mDefaultEffect = -1;
+    private int mBatchEffect = -1;
+    private int muMVPMatrixSlot;
+    private int muMVPMatricesSlot;
     private int maPositionHandle;
     private int maTextureHandle;
+    private int maInstanceHandle;
+    private int mAlphaUnit;
+    
+    private GLBackend mGL;
+    private GLStateCache mStateCache;
+    private Model mBoundModel;
+    private int mBoundPart;
+    private boolean mBoundBatched;
+    private boolean mUintIndices;
+    private int mAttributes;
+    private int[] mAttributeHandles;
+    private int mModelAttributes;
+    private int mBatchAttributes;
+    private int mBatchSize;
+    private int mBatchProgram;
+    private int muBatchMatricesHandle;
+    private int mDrawCalls;
+    private int mDrawCallsSaved;
+    private int mStateChanges;
+    private int mCulledInstances;
+    private int mOccludedInstances;
+    private int mSkippedStateChanges;
+    private FrameMetrics mMetrics;
+    private int mMetricsSequence;
 
     @SuppressWarnings("unused")
 	private Context mContext;
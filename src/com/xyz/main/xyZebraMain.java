@@ -1,23 +1,23 @@
 package com.xyz.main;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 
 import android.app.Activity;
 import android.content.res.AssetManager;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.xyz.graphics.Model;
 import com.xyz.graphics.ZebraRender;
+import com.xyz.resources.AssetLoader;
+import com.xyz.resources.BinaryModelLoader;
 import com.xyz.resources.EffectManager;
-import com.xyz.resources.ModelHandler;
 import com.xyz.resources.TextureManager;
 
 public class xyZebraMain extends Activity {
 	
 	private ZebraView mSurfaceView;
+	private AssetLoader mLoader;
+	private ZebraRender mRenderer;
 
 	/* (non-Javadoc)
 	 * @see android.app.Activity#onCreate(android.os.Bundle)
@@ -26,27 +26,33 @@ public class xyZebraMain extends Activity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		
-		// Load models
-		ArrayList<Model> modelList = null;
 		AssetManager assets = getResources().getAssets();
 		TextureManager texManager = TextureManager.createInstance(assets);
 		EffectManager fxManager = EffectManager.createInstance(assets);
+		
+		// Models and textures load in the background, the first frames draw whatever is ready
+		mLoader = new AssetLoader(AssetLoader.defaultThreadCount());
+		texManager.setAssetLoader(mLoader);
+		final ZebraRender renderer = new ZebraRender(this, null, texManager, fxManager);
+		mRenderer = renderer;
+		renderer.start();
+		
 		if (assets != null)
 		{
-			InputStream stream;
-			try {
-				stream = assets.open("models/newplane.xyz.model");
-				ModelHandler handler = ModelHandler.getInstance(stream, texManager, fxManager);
-				modelList = handler.getModels();
-				stream.close();
-			} catch (IOException e) {
-				Log.e("finput", "Trouble opening the model file", e);
-			}
+			// Prefer the compiled model, it is mapped instead of parsed
+			mLoader.loadModels(assets, "models/newplane" + BinaryModelLoader.EXTENSION,
+					"models/newplane.xyz.model", getCacheDir(), texManager, fxManager,
+					new AssetLoader.ModelCallback() {
+						public void onModelsLoaded(String filename, ArrayList<Model> models) {
+							if (models != null)
+								renderer.addModels(models);
+						}
+					});
 		}
 		
 		// Create our Preview view and set it as the content of our
         // Activity
-        mSurfaceView = new ZebraView(this, new ZebraRender(this, modelList, texManager, fxManager));
+        mSurfaceView = new ZebraView(this, renderer);
         setContentView(mSurfaceView);
 	}
 
@@ -69,4 +75,15 @@ public class xyZebraMain extends Activity {
 		
 		mSurfaceView.onResume();
 	}
+
+	/* (non-Javadoc)
+	 * @see android.app.Activity#onDestroy()
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		
+		mLoader.shutdown();
+		mRenderer.shutdown();
+	}
 }
\ No newline at end of file
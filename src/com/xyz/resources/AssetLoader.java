@@ -0,0 +1,125 @@
+package com.xyz.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.res.AssetManager;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.Model;
+
+/**
+ * Worker pool for parsing models and decoding textures away from the UI and GL threads.
+ * Requests return straight away, results are handed over through callbacks that run on
+ * a worker thread, and GL uploads are left to the render thread.
+ */
+public class AssetLoader {
+	
+	public interface ModelCallback {
+		/**
+		 * Called on a worker thread, models is null when nothing could be loaded.
+		 */
+		public void onModelsLoaded(String filename, ArrayList<Model> models);
+	}
+	
+	private final ExecutorService mExecutor;
+	private final AtomicInteger mPending;
+	
+	public AssetLoader(int threads) {
+		mPending = new AtomicInteger();
+		mExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private int mCount;
+			
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "AssetLoader-" + (++mCount));
+				// Decoding shouldn't compete with the UI and render threads
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * One worker per core, leaving a core for the render thread when there are several.
+	 */
+	public static int defaultThreadCount() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		return cores > 2 ? cores - 1 : 1;
+	}
+	
+	public void execute(final Runnable task) {
+		mPending.incrementAndGet();
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					mPending.decrementAndGet();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Number of tasks queued or running.
+	 */
+	public int getPendingCount() {
+		return mPending.get();
+	}
+	
+	/**
+	 * Loads the compiled binary model when there is one, the xml otherwise. Textures and
+	 * effects referenced by the models are requested from the managers as they are found.
+	 */
+	public void loadModels(final AssetManager assets, final String binaryFilename, final String xmlFilename,
+			final File cacheDir, final TextureManager textureManager, final EffectManager effectManager,
+			final ModelCallback callback) {
+		
+		execute(new Runnable() {
+			public void run() {
+				long startTime = System.nanoTime();
+				ArrayList<Model> models = null;
+				String filename = binaryFilename;
+				if (binaryFilename != null) {
+					try {
+						models = BinaryModelLoader.load(assets, binaryFilename, cacheDir, textureManager,
+								effectManager);
+					} catch (IOException e) {
+						ZebraLog.w("finput", "No binary model, parsing the xml instead", e);
+					}
+				}
+				
+				if (models == null && xmlFilename != null) {
+					filename = xmlFilename;
+					try {
+						InputStream stream = assets.open(xmlFilename);
+						ModelHandler handler = ModelHandler.getInstance(stream, textureManager, effectManager);
+						if (handler != null)
+							models = handler.getModels();
+						stream.close();
+					} catch (IOException e) {
+						ZebraLog.e("finput", "Trouble opening the model file", e);
+					}
+				}
+				
+				if (models != null)
+					ZebraLog.i("finput", "Loaded " + filename + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+				callback.onModelsLoaded(filename, models);
+			}
+		});
+	}
+	
+	/**
+	 * Stops the workers, queued tasks are dropped.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+}
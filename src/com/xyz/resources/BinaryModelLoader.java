@@ -0,0 +1,339 @@
+package com.xyz.resources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import com.xyz.graphics.Model;
+import com.xyz.graphics.SceneGraph;
+
+/**
+ * Loads the binary model format written by com.xyz.tools.ModelCompiler.
+ *
+ * The file is memory mapped and, when it was written in the device byte order, the model
+ * buffers are views over the mapping so nothing is parsed or copied.
+ *
+ * Layout (all values in the file byte order):
+ *   header		'XYZB', int version, int order marker, int strings, int effects, int meshes
+ *   strings	short byte length + UTF-8 bytes
+ *   effects	int vertex string, int fragment string
+ *   meshes		int name, 5 x (int count, int byte offset) for vertices, normals, colours,
+ *   			uvs and indices (count 0 when missing), int instances, int instance offset,
+ *   			int index size (2 or 4, version 2 on)
+ *   nodes		version 3 on: int count, then per node int name, int parent node, int mesh
+ *   			and int instance within it (-1 for group nodes), 9 floats group transform
+ *   instances	int name, int texture string, int effect, 9 floats translation/rotation/scale
+ *   streams	one per attribute, aligned to STREAM_ALIGNMENT
+ */
+public final class BinaryModelLoader {
+	
+	public static final String EXTENSION = ".xyzb";
+	
+	public static final int VERSION				= 3;
+	public static final int ORDER_MARKER		= 0x01020304;
+	public static final int STREAM_ALIGNMENT	= 16;
+	public static final int HEADER_SIZE			= 24;
+	public static final int MESH_RECORD_SIZE	= 14 * 4;
+	public static final int INSTANCE_SIZE		= 12 * 4;
+	public static final int NODE_SIZE			= 13 * 4;
+	
+	public static final int STREAM_VERTICES	= 0;
+	public static final int STREAM_NORMALS	= 1;
+	public static final int STREAM_COLOURS	= 2;
+	public static final int STREAM_UVS		= 3;
+	public static final int STREAM_INDICES	= 4;
+	public static final int STREAM_COUNT	= 5;
+	
+	private static final byte[] MAGIC = { 'X', 'Y', 'Z', 'B' };
+	
+	private BinaryModelLoader() {
+	}
+	
+	public static boolean isMagic(byte b0, byte b1, byte b2, byte b3) {
+		return b0 == MAGIC[0] && b1 == MAGIC[1] && b2 == MAGIC[2] && b3 == MAGIC[3];
+	}
+	
+	public static void writeMagic(ByteBuffer buffer) {
+		buffer.put(MAGIC);
+	}
+	
+	/**
+	 * Maps an asset in place when it is stored uncompressed in the package, otherwise it is
+	 * copied once into cacheDir and mapped from there.
+	 */
+	public static ArrayList<Model> load(AssetManager assets, String filename, File cacheDir,
+			TextureManager textureManager, EffectManager effectManager) throws IOException {
+		
+		return read(map(assets, filename, cacheDir), ModelHandler.managerResolver(textureManager, effectManager));
+	}
+	
+	public static ArrayList<Model> load(File file, ResourceResolver resolver) throws IOException {
+		return read(map(file), resolver);
+	}
+	
+	/**
+	 * The whole asset as a read only mapping, see load. Also used for chunked scenes.
+	 */
+	public static ByteBuffer map(AssetManager assets, String filename, File cacheDir) throws IOException {
+		AssetFileDescriptor descriptor = null;
+		try {
+			descriptor = assets.openFd(filename);
+		} catch (FileNotFoundException e) {
+			// Compressed by aapt, can't be mapped from the package
+		}
+		
+		if (descriptor != null) {
+			FileInputStream stream = descriptor.createInputStream();
+			try {
+				FileChannel channel = stream.getChannel();
+				return channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(),
+						descriptor.getLength());
+			} finally {
+				stream.close();
+				descriptor.close();
+			}
+		}
+		
+		// Asset streams report their full uncompressed size, used to spot stale copies
+		InputStream asset = assets.open(filename);
+		File cached = new File(cacheDir, filename.replace('/', '_'));
+		if (cached.length() != asset.available()) {
+			File temp = new File(cacheDir, cached.getName() + ".tmp");
+			copy(asset, new FileOutputStream(temp));
+			if (!temp.renameTo(cached))
+				throw new IOException("Failed to cache " + filename);
+		}
+		else
+			asset.close();
+		return map(cached);
+	}
+	
+	public static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile stream = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = stream.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			stream.close();
+		}
+	}
+	
+	public static ArrayList<Model> read(ByteBuffer data, ResourceResolver resolver) throws IOException {
+		if (data.limit() < HEADER_SIZE || !isMagic(data.get(0), data.get(1), data.get(2), data.get(3)))
+			throw new IOException("Not a binary model file");
+		
+		data.order(ByteOrder.BIG_ENDIAN);
+		int marker = data.getInt(8);
+		if (marker != ORDER_MARKER) {
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			if (data.getInt(8) != ORDER_MARKER)
+				throw new IOException("Invalid byte order marker");
+		}
+		
+		int version = data.getInt(4);
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported binary model version " + version);
+		
+		int stringCount = data.getInt(12);
+		int effectCount = data.getInt(16);
+		int meshCount	= data.getInt(20);
+		data.position(HEADER_SIZE);
+		
+		String[] strings = new String[stringCount];
+		for (int i = 0; i < stringCount; i++)
+			strings[i] = readString(data);
+		
+		// Resources are resolved once per entry, not per instance
+		int[] effects = new int[effectCount];
+		for (int i = 0; i < effectCount; i++)
+			effects[i] = resolver.resolveEffect(strings[data.getInt()], strings[data.getInt()]);
+		
+		int[] textures = new int[stringCount];
+		for (int i = 0; i < stringCount; i++)
+			textures[i] = Integer.MIN_VALUE;
+		
+		ArrayList<Model> models = new ArrayList<Model>(meshCount);
+		int[] counts	= new int[STREAM_COUNT];
+		int[] offsets	= new int[STREAM_COUNT];
+		float[] translation	= new float[3];
+		float[] rotation	= new float[3];
+		float[] scale		= new float[3];
+		ArrayList<Model.Instance> instances = new ArrayList<Model.Instance>();
+		int[] firstInstances = new int[meshCount];
+		
+		for (int i = 0; i < meshCount; i++) {
+			String name = strings[data.getInt()];
+			for (int s = 0; s < STREAM_COUNT; s++) {
+				counts[s]	= data.getInt();
+				offsets[s]	= data.getInt();
+			}
+			int instanceCount	= data.getInt();
+			int instanceOffset	= data.getInt();
+			int indexSize		= version > 1 ? data.getInt() : 2;
+			
+			FloatBuffer vertices	= floatStream(data, offsets[STREAM_VERTICES], counts[STREAM_VERTICES]);
+			FloatBuffer normals		= floatStream(data, offsets[STREAM_NORMALS], counts[STREAM_NORMALS]);
+			FloatBuffer colours		= floatStream(data, offsets[STREAM_COLOURS], counts[STREAM_COLOURS]);
+			FloatBuffer uvs			= floatStream(data, offsets[STREAM_UVS], counts[STREAM_UVS]);
+			Model model = indexSize == 4 ?
+					new Model(name, vertices, normals, colours, uvs,
+							intStream(data, offsets[STREAM_INDICES], counts[STREAM_INDICES])) :
+					new Model(name, vertices, normals, colours, uvs,
+							shortStream(data, offsets[STREAM_INDICES], counts[STREAM_INDICES]));
+			
+			int meshEnd = data.position();
+			firstInstances[i] = instances.size();
+			data.position(instanceOffset);
+			for (int j = 0; j < instanceCount; j++) {
+				String instName	= strings[data.getInt()];
+				int texture		= data.getInt();
+				int effect		= data.getInt();
+				
+				int textureId = -1;
+				if (texture >= 0) {
+					if (textures[texture] == Integer.MIN_VALUE)
+						textures[texture] = resolver.resolveTexture(strings[texture]);
+					textureId = textures[texture];
+				}
+				
+				readFloats(data, translation);
+				readFloats(data, rotation);
+				readFloats(data, scale);
+				instances.add(model.createInstance(instName, textureId, effect >= 0 ? effects[effect] : -1,
+						translation.clone(), rotation.clone(), scale.clone()));
+			}
+			data.position(meshEnd);
+			
+			models.add(model);
+		}
+		
+		if (version >= 3)
+			readNodes(data, strings, instances, firstInstances);
+		return models;
+	}
+	
+	/**
+	 * Parents come first in the table, so nodes are linked as they are added.
+	 */
+	private static void readNodes(ByteBuffer data, String[] strings, ArrayList<Model.Instance> instances,
+			int[] firstInstances) throws IOException {
+		
+		int count = data.getInt();
+		if (count == 0)
+			return;
+		
+		SceneGraph graph = new SceneGraph();
+		float[] translation	= new float[3];
+		float[] rotation	= new float[3];
+		float[] scale		= new float[3];
+		for (int i = 0; i < count; i++) {
+			String name		= strings[data.getInt()];
+			int parent		= data.getInt();
+			int mesh		= data.getInt();
+			int instance	= data.getInt();
+			readFloats(data, translation);
+			readFloats(data, rotation);
+			readFloats(data, scale);
+			if (parent >= i)
+				throw new IOException("Node " + name + " comes before its parent");
+			
+			if (mesh >= 0)
+				graph.addNode(instances.get(firstInstances[mesh] + instance), parent);
+			else
+				graph.addNode(name, parent, translation, rotation, scale);
+		}
+	}
+	
+	private static FloatBuffer floatStream(ByteBuffer data, int offset, int count) {
+		if (count == 0)
+			return null;
+		
+		ByteBuffer slice = slice(data, offset, count * 4);
+		if (slice.order() == ByteOrder.nativeOrder() && slice.isDirect())
+			return slice.asFloatBuffer();
+		
+		// Foreign byte order or heap data, convert into a native direct buffer
+		FloatBuffer buffer = Model.newFloatBuffer(count);
+		buffer.put(slice.asFloatBuffer());
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private static ShortBuffer shortStream(ByteBuffer data, int offset, int count) {
+		if (count == 0)
+			return null;
+		
+		ByteBuffer slice = slice(data, offset, count * 2);
+		if (slice.order() == ByteOrder.nativeOrder() && slice.isDirect())
+			return slice.asShortBuffer();
+		
+		ShortBuffer buffer = Model.newShortBuffer(count);
+		buffer.put(slice.asShortBuffer());
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private static IntBuffer intStream(ByteBuffer data, int offset, int count) {
+		if (count == 0)
+			return null;
+		
+		ByteBuffer slice = slice(data, offset, count * 4);
+		if (slice.order() == ByteOrder.nativeOrder() && slice.isDirect())
+			return slice.asIntBuffer();
+		
+		IntBuffer buffer = Model.newIntBuffer(count);
+		buffer.put(slice.asIntBuffer());
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+		ByteBuffer view = data.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		
+		// slice() resets the order to big endian
+		return view.slice().order(data.order());
+	}
+	
+	private static void readFloats(ByteBuffer data, float[] values) {
+		for (int i = 0; i < values.length; i++)
+			values[i] = data.getFloat();
+	}
+	
+	private static String readString(ByteBuffer data) throws UnsupportedEncodingException {
+		int length = data.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		try {
+			byte[] buffer = new byte[16 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+}
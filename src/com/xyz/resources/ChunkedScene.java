@@ -0,0 +1,199 @@
+package com.xyz.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import android.content.res.AssetManager;
+
+import com.xyz.graphics.Model;
+
+/**
+ * Scene split into chunks of meshes that are loaded separately, written by
+ * com.xyz.tools.SceneCompiler. Opening one only reads the manifest: the bounds of every
+ * chunk and mesh and where the chunk data sits. Each chunk is a complete binary model
+ * file (see BinaryModelLoader) inside the same mapping, so the pages of chunks nobody
+ * loads are never read. SceneStreamer decides which chunks to load.
+ *
+ * Layout (all values in the file byte order):
+ *   header		'XYZS', int version, int order marker, int chunks, int meshes
+ *   chunks		6 floats bounds (min xyz, max xyz), int byte offset, int byte length,
+ *   			int first mesh, int mesh count
+ *   meshes		int chunk, 6 floats world bounds of its instances
+ *   names		short byte length + UTF-8 bytes per mesh
+ *   data		one binary model file per chunk, aligned to STREAM_ALIGNMENT
+ */
+public final class ChunkedScene {
+	
+	public static final String EXTENSION = ".xyzs";
+	
+	public static final int VERSION				= 1;
+	public static final int HEADER_SIZE			= 20;
+	public static final int CHUNK_RECORD_SIZE	= 10 * 4;
+	public static final int MESH_RECORD_SIZE	= 7 * 4;
+	
+	private static final byte[] MAGIC = { 'X', 'Y', 'Z', 'S' };
+	
+	private final ByteBuffer	mData;
+	
+	// Per chunk
+	private final float[]		mChunkBounds; // 6 per chunk
+	private final int[]			mChunkOffsets;
+	private final int[]			mChunkLengths;
+	private final int[]			mFirstMeshes;
+	private final int[]			mMeshCounts;
+	
+	// Per mesh
+	private final int[]			mMeshChunks;
+	private final float[]		mMeshBounds;
+	private final String[]		mMeshNames;
+	
+	private ChunkedScene(ByteBuffer data) throws IOException {
+		if (data.limit() < HEADER_SIZE || !isMagic(data.get(0), data.get(1), data.get(2), data.get(3)))
+			throw new IOException("Not a chunked scene file");
+		
+		data.order(ByteOrder.BIG_ENDIAN);
+		if (data.getInt(8) != BinaryModelLoader.ORDER_MARKER) {
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			if (data.getInt(8) != BinaryModelLoader.ORDER_MARKER)
+				throw new IOException("Invalid byte order marker");
+		}
+		
+		int version = data.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported chunked scene version " + version);
+		
+		int chunkCount	= data.getInt(12);
+		int meshCount	= data.getInt(16);
+		data.position(HEADER_SIZE);
+		
+		mData			= data;
+		mChunkBounds	= new float[chunkCount * 6];
+		mChunkOffsets	= new int[chunkCount];
+		mChunkLengths	= new int[chunkCount];
+		mFirstMeshes	= new int[chunkCount];
+		mMeshCounts		= new int[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			for (int k = 0; k < 6; k++)
+				mChunkBounds[i * 6 + k] = data.getFloat();
+			mChunkOffsets[i]	= data.getInt();
+			mChunkLengths[i]	= data.getInt();
+			mFirstMeshes[i]		= data.getInt();
+			mMeshCounts[i]		= data.getInt();
+			if (mChunkOffsets[i] < 0 || mChunkLengths[i] < 0 || mChunkOffsets[i] + mChunkLengths[i] > data.limit() ||
+					mFirstMeshes[i] < 0 || mMeshCounts[i] < 0 || mFirstMeshes[i] + mMeshCounts[i] > meshCount)
+				throw new IOException("Invalid chunk record " + i);
+		}
+		
+		mMeshChunks	= new int[meshCount];
+		mMeshBounds	= new float[meshCount * 6];
+		mMeshNames	= new String[meshCount];
+		for (int i = 0; i < meshCount; i++) {
+			mMeshChunks[i] = data.getInt();
+			for (int k = 0; k < 6; k++)
+				mMeshBounds[i * 6 + k] = data.getFloat();
+		}
+		for (int i = 0; i < meshCount; i++)
+			mMeshNames[i] = readString(data);
+	}
+	
+	public static boolean isMagic(byte b0, byte b1, byte b2, byte b3) {
+		return b0 == MAGIC[0] && b1 == MAGIC[1] && b2 == MAGIC[2] && b3 == MAGIC[3];
+	}
+	
+	public static void writeMagic(ByteBuffer buffer) {
+		buffer.put(MAGIC);
+	}
+	
+	/**
+	 * Maps the asset like BinaryModelLoader.load and reads the manifest.
+	 */
+	public static ChunkedScene open(AssetManager assets, String filename, File cacheDir) throws IOException {
+		return new ChunkedScene(BinaryModelLoader.map(assets, filename, cacheDir));
+	}
+	
+	public static ChunkedScene open(File file) throws IOException {
+		return new ChunkedScene(BinaryModelLoader.map(file));
+	}
+	
+	public static ChunkedScene read(ByteBuffer data) throws IOException {
+		return new ChunkedScene(data);
+	}
+	
+	public int getChunkCount() {
+		return mChunkLengths.length;
+	}
+	
+	/**
+	 * Min xyz then max xyz, 6 floats per chunk, covering the world spheres of every
+	 * instance in it.
+	 */
+	public float[] getChunkBounds() {
+		return mChunkBounds;
+	}
+	
+	/**
+	 * Bytes of the chunk's model data, about what it takes in memory once loaded.
+	 */
+	public int getChunkSize(int chunk) {
+		return mChunkLengths[chunk];
+	}
+	
+	public int getFirstMesh(int chunk) {
+		return mFirstMeshes[chunk];
+	}
+	
+	public int getMeshCount(int chunk) {
+		return mMeshCounts[chunk];
+	}
+	
+	public int getMeshCount() {
+		return mMeshNames.length;
+	}
+	
+	public String getMeshName(int mesh) {
+		return mMeshNames[mesh];
+	}
+	
+	public int getMeshChunk(int mesh) {
+		return mMeshChunks[mesh];
+	}
+	
+	/**
+	 * Same layout as getChunkBounds, per mesh.
+	 */
+	public float[] getMeshBounds() {
+		return mMeshBounds;
+	}
+	
+	/**
+	 * First mesh with that name, -1 when there is none.
+	 */
+	public int findMesh(String name) {
+		for (int mesh = 0; mesh < mMeshNames.length; mesh++) {
+			if (name.equals(mMeshNames[mesh]))
+				return mesh;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Reads the models of one chunk, any thread. Every call returns new models.
+	 */
+	public ArrayList<Model> loadChunk(int chunk, ResourceResolver resolver) throws IOException {
+		ByteBuffer view = mData.duplicate();
+		view.limit(mChunkOffsets[chunk] + mChunkLengths[chunk]);
+		view.position(mChunkOffsets[chunk]);
+		return BinaryModelLoader.read(view.slice(), resolver);
+	}
+	
+	private static String readString(ByteBuffer data) throws UnsupportedEncodingException {
+		int length = data.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -1,42 +1,93 @@
 package com.xyz.resources;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.util.Log;
+import android.opengl.GLES20;
 
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.GLBackend;
+import com.xyz.graphics.GLES20Backend;
+
+/**
+ * Compiles and links effects (vertex + fragment programs). Effects with identical sources
+ * share one program, whatever files they came from.
+ *
+ * Attributes are bound to fixed locations before linking, one per name registered with
+ * getAttributeLocation, so geometry bindings stay valid across programs. Uniform locations
+ * are kept per program in a table indexed by the slot from getUniformSlot, so nothing is
+ * looked up by name while drawing.
+ */
 public class EffectManager {
 	
+	private static final int UNRESOLVED = -2;
+	
 	private final class EffectInfo {
-		@SuppressWarnings("unused")
 		public int mId;
 		public int mGlId;
-		public String mSource;
+		public String mVertexSource;
+		public String mFragmentSource;
+		public String mName;
+		public int mAttributeMask;
+		public int[] mUniformLocations;
+		public boolean mFailed;
 		
-		public EffectInfo(int id, int glId, String source) {
-			mId		= id;
-			mGlId	= glId;
-			mSource	= source;
+		public EffectInfo(int id, String name, String vertexSource, String fragmentSource) {
+			mId				= id;
+			mGlId			= -1;
+			mName			= name;
+			mVertexSource	= vertexSource;
+			mFragmentSource	= fragmentSource;
 		}
 	}
-
+	
 	private static EffectManager mInstance;
 	
 	private AssetManager mAssetManager;
-	private HashMap<String, Integer> mFileMap; // Filename, shader id to avoid repeating loads
+	private File mAssetDirectory;
+	private GLBackend mGL;
+	private HashMap<String, Integer> mFileMap; // Filenames, effect id to avoid repeating loads
+	private HashMap<Long, Integer> mSourceMap; // Source hash, effect id to share programs
 	private HashMap<Integer, EffectInfo> mEffectList; // Id, effect
 	
+	// Waiting for the GL thread to compile them
+	private ConcurrentLinkedQueue<EffectInfo> mPendingList;
+	
+	// GL thread only
+	private EffectInfo[] mCompiledList;
+	private HashMap<Long, Integer> mShaderCache; // Source hash, shader object for this context
+	
+	private HashMap<String, Integer> mAttributeMap;
+	private ArrayList<String> mAttributeNames;
+	private HashMap<String, Integer> mUniformMap;
+	private ArrayList<String> mUniformNames;
+	private ArrayList<String> mSamplerNames; // By texture unit
+	
 	private EffectManager(AssetManager assetManager) {
 		mAssetManager = assetManager;
+		mGL = new GLES20Backend();
 		mFileMap = new HashMap<String, Integer>();
+		mSourceMap = new HashMap<Long, Integer>();
 		mEffectList = new HashMap<Integer, EffectInfo>();
+		mPendingList = new ConcurrentLinkedQueue<EffectInfo>();
+		mCompiledList = new EffectInfo[8];
+		mShaderCache = new HashMap<Long, Integer>();
+		mAttributeMap = new HashMap<String, Integer>();
+		mAttributeNames = new ArrayList<String>();
+		mUniformMap = new HashMap<String, Integer>();
+		mUniformNames = new ArrayList<String>();
+		mSamplerNames = new ArrayList<String>();
 	}
 	
 	public static EffectManager createInstance(AssetManager assetManager) {
@@ -45,58 +96,318 @@ public class EffectManager {
 		return mInstance;
 	}
 	
-	public int createEffect(String vertexFilename, String fragmentFilename) {
-		Integer id = mFileMap.get(vertexFilename);
+	/**
+	 * Backend of the GL thread, set before the first effect is compiled.
+	 */
+	public void setBackend(GLBackend gl) {
+		mGL = gl;
+	}
+	
+	/**
+	 * Without an AssetManager, off device, sources are read from this directory.
+	 */
+	public void setAssetDirectory(File directory) {
+		mAssetDirectory = directory;
+	}
+	
+	public synchronized int createEffect(String vertexFilename, String fragmentFilename) {
+		String key = vertexFilename + '\n' + fragmentFilename;
+		Integer id = mFileMap.get(key);
 		if (id == null) {
-			id = -1;
+			String vertexSource = loadSource(vertexFilename);
+			String fragmentSource = loadSource(fragmentFilename);
+			if (vertexSource == null || fragmentSource == null)
+				return -1;
 			
-			// Add a new effect
-			InputStream stream;
-			try {
-				stream = mAssetManager.open(vertexFilename);
-				
-				BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-				if (reader != null) {
-					String source = readSource(reader);
-					
-					if (source != null && !source.isEmpty()) {
-						id = mEffectList.size();
-						mEffectList.put(id, new EffectInfo(id, -1, source));
-						mFileMap.put(vertexFilename, id);
-					}
-				}
-				
-				reader.close();
-				stream.close();
-			} catch (IOException e) {
-				Log.e("fxman", "Failed to open " + vertexFilename);
-			}
+			id = createEffectFromSource(vertexFilename, vertexSource, fragmentSource);
+			mFileMap.put(key, id);
 		}
 		
 		return id;
 	}
 	
-	private String readSource(BufferedReader reader) {
-		StringBuilder source = new StringBuilder();
+	/**
+	 * Effects built at runtime, name only shows in the logs.
+	 */
+	public synchronized int createEffectFromSource(String name, String vertexSource, String fragmentSource) {
+		long hash = hash(vertexSource, fragmentSource);
+		Integer id = mSourceMap.get(hash);
+		if (id != null) {
+			EffectInfo info = mEffectList.get(id);
+			if (info.mVertexSource.equals(vertexSource) && info.mFragmentSource.equals(fragmentSource))
+				return id;
+		}
 		
-		String line;
+		id = mEffectList.size();
+		EffectInfo info = new EffectInfo(id, name, vertexSource, fragmentSource);
+		mEffectList.put(id, info);
+		if (!mSourceMap.containsKey(hash))
+			mSourceMap.put(hash, id);
+		mPendingList.add(info);
+		return id;
+	}
+	
+	/**
+	 * Text of a shader asset, null when it can't be read.
+	 */
+	public String loadSource(String filename) {
 		try {
-			while ((line = reader.readLine()) != null) {
-				source.append(line);
-			}
+			InputStream stream = mAssetManager != null ? mAssetManager.open(filename) :
+				new FileInputStream(new File(mAssetDirectory, filename));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+			String source = readSource(reader);
+			reader.close();
+			
+			if (source != null && !source.isEmpty())
+				return source;
+			ZebraLog.e("fxman", "Empty shader " + filename);
 		} catch (IOException e) {
+			ZebraLog.e("fxman", "Failed to open " + filename);
+		}
+		return null;
+	}
+	
+	private String readSource(BufferedReader reader) throws IOException {
+		StringBuilder source = new StringBuilder();
+		
+		// Line breaks matter to the preprocessor and // comments
+		String line;
+		while ((line = reader.readLine()) != null) {
+			source.append(line).append('\n');
 		}
 		
 		return source.toString();
 	}
 	
-	// TODO: Finish this
+	/**
+	 * 64 bit FNV-1a over both sources.
+	 */
+	private static long hash(String vertexSource, String fragmentSource) {
+		long hash = 0xcbf29ce484222325L;
+		String[] sources = { vertexSource, fragmentSource };
+		for (String source : sources) {
+			for (int i = 0; i < source.length(); i++) {
+				hash ^= source.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			hash ^= 0xFFFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Fixed location of an attribute in every program, registering the name the first time.
+	 * Must be registered before the programs using it are linked.
+	 */
+	public synchronized int getAttributeLocation(String name) {
+		Integer location = mAttributeMap.get(name);
+		if (location == null) {
+			location = mAttributeNames.size();
+			mAttributeNames.add(name);
+			mAttributeMap.put(name, location);
+		}
+		return location;
+	}
+	
+	/**
+	 * Index of a uniform in the per program location tables.
+	 */
+	public synchronized int getUniformSlot(String name) {
+		Integer slot = mUniformMap.get(name);
+		if (slot == null) {
+			slot = mUniformNames.size();
+			mUniformNames.add(name);
+			mUniformMap.put(name, slot);
+		}
+		return slot;
+	}
+	
+	/**
+	 * Fixed texture unit a sampler reads in every program, registering the name the
+	 * first time. Must be registered before the programs using it are linked.
+	 */
+	public synchronized int getSamplerUnit(String name) {
+		int unit = mSamplerNames.indexOf(name);
+		if (unit == -1) {
+			unit = mSamplerNames.size();
+			mSamplerNames.add(name);
+		}
+		return unit;
+	}
+	
+	/**
+	 * Call with a new GL context, the previous programs are gone with the old one.
+	 * Compiles every effect straight away.
+	 */
 	public void generateEffects(GL10 gl) {
+		mShaderCache.clear();
+		synchronized (this) {
+			for (EffectInfo info : mEffectList.values()) {
+				if (info.mGlId != -1 || info.mFailed) {
+					info.mGlId = -1;
+					info.mFailed = false;
+					mPendingList.add(info);
+				}
+			}
+		}
+		compileEffects();
+	}
+	
+	/**
+	 * Compiles effects created since the last call, GL thread only.
+	 * Returns the number of programs linked, when it isn't 0 the program bound
+	 * may have changed.
+	 */
+	public int compileEffects() {
+		int linked = 0;
+		EffectInfo info;
+		while ((info = mPendingList.poll()) != null) {
+			if (info.mGlId != -1)
+				continue;
+			
+			int program = link(info);
+			info.mFailed = program == 0;
+			info.mGlId = program != 0 ? program : -1;
+			if (info.mFailed)
+				ZebraLog.e("fxman", "Could not build effect " + info.mName);
+			else
+				++linked;
+			
+			if (info.mId >= mCompiledList.length)
+				mCompiledList = Arrays.copyOf(mCompiledList, Math.max(info.mId + 1, mCompiledList.length * 2));
+			mCompiledList[info.mId] = info;
+		}
+		return linked;
+	}
+	
+	private int link(EffectInfo info) {
+		int vertexShader = getShader(GLES20.GL_VERTEX_SHADER, info.mVertexSource);
+		int fragmentShader = getShader(GLES20.GL_FRAGMENT_SHADER, info.mFragmentSource);
+		if (vertexShader == 0 || fragmentShader == 0)
+			return 0;
+		
+		int program = mGL.glCreateProgram();
+		if (program == 0)
+			return 0;
+		
+		mGL.glAttachShader(program, vertexShader);
+		mGL.glAttachShader(program, fragmentShader);
+		String[] attributes;
+		synchronized (this) {
+			attributes = mAttributeNames.toArray(new String[mAttributeNames.size()]);
+		}
+		for (int i = 0; i < attributes.length; i++)
+			mGL.glBindAttribLocation(program, i, attributes[i]);
+		mGL.glLinkProgram(program);
+		
+		int[] linkStatus = new int[1];
+		mGL.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] != GLES20.GL_TRUE) {
+			ZebraLog.e("fxman", "Could not link program: ");
+			ZebraLog.e("fxman", mGL.glGetProgramInfoLog(program));
+			mGL.glDeleteProgram(program);
+			return 0;
+		}
+		
+		// Attributes the program actually uses, the others must stay disabled
+		info.mAttributeMask = 0;
+		for (int i = 0; i < attributes.length; i++) {
+			if (mGL.glGetAttribLocation(program, attributes[i]) == i)
+				info.mAttributeMask |= 1 << i;
+		}
 		
+		// Sampler uniforms keep their value, set them once with the program bound
+		String[] samplers;
+		synchronized (this) {
+			samplers = mSamplerNames.toArray(new String[mSamplerNames.size()]);
+		}
+		boolean bound = false;
+		for (int unit = 0; unit < samplers.length; unit++) {
+			int location = mGL.glGetUniformLocation(program, samplers[unit]);
+			if (location == -1)
+				continue;
+			if (!bound) {
+				mGL.glUseProgram(program);
+				bound = true;
+			}
+			mGL.glUniform1i(location, unit);
+		}
+		info.mUniformLocations = new int[0];
+		return program;
+	}
+	
+	/**
+	 * Shader objects are shared by the programs of one context.
+	 */
+	private int getShader(int type, String source) {
+		long key = hash(source, type == GLES20.GL_VERTEX_SHADER ? "vertex" : "fragment");
+		Integer shader = mShaderCache.get(key);
+		if (shader != null)
+			return shader;
+		
+		int id = mGL.glCreateShader(type);
+		if (id != 0) {
+			mGL.glShaderSource(id, source);
+			mGL.glCompileShader(id);
+			int[] compiled = new int[1];
+			mGL.glGetShaderiv(id, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			if (compiled[0] == 0) {
+				ZebraLog.e("fxman", "Could not compile shader " + type + ":");
+				ZebraLog.e("fxman", mGL.glGetShaderInfoLog(id));
+				mGL.glDeleteShader(id);
+				id = 0;
+			}
+		}
+		mShaderCache.put(key, id);
+		return id;
 	}
 	
-	public int getGLEffectId(int id) {
+	public synchronized int getGLEffectId(int id) {
 		EffectInfo info = mEffectList.get(id);
 		return info == null ? -1 : info.mGlId;
 	}
+	
+	/**
+	 * GL program of a compiled effect, 0 while it isn't. GL thread only, no locking.
+	 */
+	public int getProgram(int id) {
+		if (id < 0 || id >= mCompiledList.length || mCompiledList[id] == null)
+			return 0;
+		int glId = mCompiledList[id].mGlId;
+		return glId != -1 ? glId : 0;
+	}
+	
+	/**
+	 * Bit mask of the registered attribute locations the effect reads.
+	 */
+	public int getAttributeMask(int id) {
+		return getProgram(id) != 0 ? mCompiledList[id].mAttributeMask : 0;
+	}
+	
+	/**
+	 * Location of the uniform in the effect's program, -1 when it has none.
+	 * Looked up by name the first time only. GL thread only.
+	 */
+	public int getUniformLocation(int id, int slot) {
+		if (getProgram(id) == 0)
+			return -1;
+		
+		EffectInfo info = mCompiledList[id];
+		int[] locations = info.mUniformLocations;
+		if (slot >= locations.length) {
+			int length = locations.length;
+			locations = Arrays.copyOf(locations, slot + 1);
+			Arrays.fill(locations, length, locations.length, UNRESOLVED);
+			info.mUniformLocations = locations;
+		}
+		if (locations[slot] == UNRESOLVED) {
+			String name;
+			synchronized (this) {
+				name = mUniformNames.get(slot);
+			}
+			locations[slot] = mGL.glGetUniformLocation(info.mGlId, name);
+		}
+		return locations[slot];
+	}
 }
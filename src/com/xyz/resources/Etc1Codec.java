@@ -0,0 +1,246 @@
+package com.xyz.resources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ETC1 block compression in plain Java. The encoder is used by the offline texture
+ * compiler, the decoder lets devices without ETC1 support fall back to RGB565.
+ *
+ * Each 4x4 block is 8 bytes: two base colours for two 2x4 or 4x2 halves, a table of
+ * intensity modifiers per half and a 2 bit modifier index per pixel.
+ */
+public final class Etc1Codec {
+	
+	public static final int ETC1_RGB8_OES	= 0x8D64;
+	public static final int BLOCK_SIZE		= 8;
+	
+	private static final int[][] MODIFIERS = {
+		{ 2, 8 }, { 5, 17 }, { 9, 29 }, { 13, 42 },
+		{ 18, 60 }, { 24, 80 }, { 33, 106 }, { 47, 183 }
+	};
+	
+	// Modifier for each pixel index value: +a, +b, -a, -b
+	private static final int[] INDEX_SIGN	= { 1, 1, -1, -1 };
+	private static final int[] INDEX_COLUMN	= { 0, 1, 0, 1 };
+	
+	private Etc1Codec() {
+	}
+	
+	public static int getEncodedSize(int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_SIZE;
+	}
+	
+	/**
+	 * Encodes ARGB pixels, alpha is ignored. Edge blocks repeat the last row and column.
+	 */
+	public static ByteBuffer encodeImage(int[] pixels, int width, int height) {
+		ByteBuffer out = ByteBuffer.allocateDirect(getEncodedSize(width, height));
+		int[] block = new int[16];
+		for (int by = 0; by < height; by += 4) {
+			for (int bx = 0; bx < width; bx += 4) {
+				for (int y = 0; y < 4; y++) {
+					int py = Math.min(by + y, height - 1);
+					for (int x = 0; x < 4; x++)
+						block[y * 4 + x] = pixels[py * width + Math.min(bx + x, width - 1)];
+				}
+				out.putLong(encodeBlock(block));
+			}
+		}
+		out.position(0);
+		return out;
+	}
+	
+	/**
+	 * Tries both orientations in differential and individual mode and keeps the block
+	 * with the lowest squared error.
+	 */
+	static long encodeBlock(int[] block) {
+		long best = 0;
+		long bestError = Long.MAX_VALUE;
+		int[] avg	= new int[6];
+		int[] base	= new int[6]; // Expanded base colours the pixels are matched against
+		int[] q		= new int[6]; // Quantised values as packed
+		
+		for (int flip = 0; flip < 2; flip++) {
+			average(block, flip, 0, avg, 0);
+			average(block, flip, 1, avg, 3);
+			
+			for (int diff = 1; diff >= 0; diff--) {
+				long bits;
+				if (diff == 1) {
+					// 5 bit base and a 3 bit signed delta for the second half
+					boolean fits = true;
+					for (int c = 0; c < 3; c++) {
+						int c1 = (avg[c] * 31 + 127) / 255;
+						int c2 = (avg[3 + c] * 31 + 127) / 255;
+						fits &= c2 - c1 >= -4 && c2 - c1 <= 3;
+						base[c] = (c1 << 3) | (c1 >> 2);
+						base[3 + c] = (c2 << 3) | (c2 >> 2);
+						q[c] = c1;
+						q[3 + c] = (c2 - c1) & 7;
+					}
+					if (!fits)
+						continue;
+					bits = ((long)q[0] << 59) | ((long)q[3] << 56) | ((long)q[1] << 51) | ((long)q[4] << 48) |
+							((long)q[2] << 43) | ((long)q[5] << 40) | (1L << 33);
+				}
+				else {
+					for (int c = 0; c < 6; c++) {
+						q[c] = (avg[c] * 15 + 127) / 255;
+						base[c] = q[c] * 17;
+					}
+					bits = ((long)q[0] << 60) | ((long)q[3] << 56) | ((long)q[1] << 52) | ((long)q[4] << 48) |
+							((long)q[2] << 44) | ((long)q[5] << 40);
+				}
+				bits |= (long)flip << 32;
+				
+				long error = 0;
+				for (int sub = 0; sub < 2; sub++) {
+					long subError = Long.MAX_VALUE;
+					int subTable = 0;
+					int subIndices = 0;
+					for (int table = 0; table < MODIFIERS.length; table++) {
+						long e = 0;
+						int indices = 0;
+						for (int i = 0; i < 16; i++) {
+							int x = i & 3;
+							int y = i >> 2;
+							if (subBlock(x, y, flip) != sub)
+								continue;
+							int bestIndex = 0;
+							int bestPixel = Integer.MAX_VALUE;
+							for (int index = 0; index < 4; index++) {
+								int m = INDEX_SIGN[index] * MODIFIERS[table][INDEX_COLUMN[index]];
+								int pe = pixelError(block[i], base[sub * 3] + m, base[sub * 3 + 1] + m,
+										base[sub * 3 + 2] + m);
+								if (pe < bestPixel) {
+									bestPixel = pe;
+									bestIndex = index;
+								}
+							}
+							e += bestPixel;
+							indices |= bestIndex << (i * 2);
+						}
+						if (e < subError) {
+							subError = e;
+							subTable = table;
+							subIndices = indices;
+						}
+					}
+					error += subError;
+					bits |= (long)subTable << (sub == 0 ? 37 : 34);
+					for (int i = 0; i < 16; i++) {
+						if (subBlock(i & 3, i >> 2, flip) != sub)
+							continue;
+						int index = (subIndices >> (i * 2)) & 3;
+						int bit = (i & 3) * 4 + (i >> 2); // Pixels are numbered down the columns
+						bits |= (long)(index >> 1) << (16 + bit);
+						bits |= (long)(index & 1) << bit;
+					}
+				}
+				
+				if (error < bestError) {
+					bestError = error;
+					best = bits;
+				}
+			}
+		}
+		return best;
+	}
+	
+	private static int subBlock(int x, int y, int flip) {
+		return flip == 0 ? x >> 1 : y >> 1;
+	}
+	
+	private static void average(int[] block, int flip, int sub, int[] avg, int offset) {
+		int r = 0, g = 0, b = 0;
+		for (int i = 0; i < 16; i++) {
+			if (subBlock(i & 3, i >> 2, flip) != sub)
+				continue;
+			r += (block[i] >> 16) & 0xFF;
+			g += (block[i] >> 8) & 0xFF;
+			b += block[i] & 0xFF;
+		}
+		avg[offset]		= (r + 4) / 8;
+		avg[offset + 1]	= (g + 4) / 8;
+		avg[offset + 2]	= (b + 4) / 8;
+	}
+	
+	private static int pixelError(int pixel, int r, int g, int b) {
+		int dr = ((pixel >> 16) & 0xFF) - clamp(r);
+		int dg = ((pixel >> 8) & 0xFF) - clamp(g);
+		int db = (pixel & 0xFF) - clamp(b);
+		return dr * dr + dg * dg + db * db;
+	}
+	
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+	
+	/**
+	 * Decodes into opaque ARGB pixels.
+	 */
+	public static void decodeImage(ByteBuffer data, int width, int height, int[] pixels) {
+		ByteBuffer in = data.duplicate();
+		int[] block = new int[16];
+		for (int by = 0; by < height; by += 4) {
+			for (int bx = 0; bx < width; bx += 4) {
+				decodeBlock(in.getLong(), block);
+				for (int y = 0; y < 4 && by + y < height; y++) {
+					for (int x = 0; x < 4 && bx + x < width; x++)
+						pixels[(by + y) * width + bx + x] = block[y * 4 + x];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Decodes into RGB565 for glTexImage2D with GL_UNSIGNED_SHORT_5_6_5.
+	 */
+	public static ByteBuffer decodeImage565(ByteBuffer data, int width, int height) {
+		int[] pixels = new int[width * height];
+		decodeImage(data, width, height, pixels);
+		
+		ByteBuffer out = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.nativeOrder());
+		for (int pixel : pixels) {
+			out.putShort((short)(((pixel >> 8) & 0xF800) | ((pixel >> 5) & 0x07E0) | ((pixel >> 3) & 0x001F)));
+		}
+		out.position(0);
+		return out;
+	}
+	
+	static void decodeBlock(long bits, int[] block) {
+		int[] base = new int[6];
+		if ((bits & (1L << 33)) != 0) {
+			for (int c = 0; c < 3; c++) {
+				int shift = 59 - c * 8;
+				int c1 = (int)(bits >>> shift) & 0x1F;
+				int d = ((int)(bits >>> (shift - 3)) & 7);
+				int c2 = c1 + (d >= 4 ? d - 8 : d);
+				base[c] = (c1 << 3) | (c1 >> 2);
+				base[3 + c] = ((c2 & 0x1F) << 3) | ((c2 & 0x1F) >> 2);
+			}
+		}
+		else {
+			for (int c = 0; c < 3; c++) {
+				int shift = 60 - c * 8;
+				base[c] = ((int)(bits >>> shift) & 0xF) * 17;
+				base[3 + c] = ((int)(bits >>> (shift - 4)) & 0xF) * 17;
+			}
+		}
+		
+		int flip = (int)(bits >>> 32) & 1;
+		int[] tables = { (int)(bits >>> 37) & 7, (int)(bits >>> 34) & 7 };
+		for (int i = 0; i < 16; i++) {
+			int x = i & 3;
+			int y = i >> 2;
+			int sub = subBlock(x, y, flip);
+			int bit = x * 4 + y;
+			int index = ((int)(bits >>> (16 + bit)) & 1) << 1 | ((int)(bits >>> bit) & 1);
+			int m = INDEX_SIGN[index] * MODIFIERS[tables[sub]][INDEX_COLUMN[index]];
+			block[i] = 0xFF000000 | (clamp(base[sub * 3] + m) << 16) | (clamp(base[sub * 3 + 1] + m) << 8) |
+					clamp(base[sub * 3 + 2] + m);
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.xyz.resources;
+
+import java.nio.FloatBuffer;
+
+import com.xyz.graphics.Model;
+
+/**
+ * Rewrites a model's geometry so the GPU does less vertex work for the same triangles:
+ *
+ * 1. Welds vertices whose attributes are bit for bit identical and drops the triangles
+ *    that become degenerate.
+ * 2. Reorders triangles for the post-transform vertex cache, after Tom Forsyth's
+ *    "Linear-Speed Vertex Cache Optimisation".
+ * 3. Renumbers vertices in the order the triangles first use them, so vertex fetches
+ *    walk the buffer forwards. Unreferenced vertices are dropped.
+ *
+ * Cheap enough to run at load time, ModelCompiler -optimize runs it offline.
+ */
+public final class MeshOptimizer {
+	
+	// Cache the scores are tuned for, larger than real caches on purpose
+	private static final int	CACHE_SIZE			= 32;
+	private static final float	CACHE_DECAY_POWER	= 1.5f;
+	private static final float	LAST_TRIANGLE_SCORE	= 0.75f;
+	private static final float	VALENCE_BOOST_SCALE	= 2.0f;
+	private static final float	VALENCE_BOOST_POWER	= 0.5f;
+	
+	// FIFO cache used to report ACMR, about what GLES2 class hardware has
+	public static final int		ACMR_CACHE_SIZE		= 16;
+	
+	private MeshOptimizer() {
+	}
+	
+	/**
+	 * Returns a new model with the optimized geometry and copies of the instances, or
+	 * the model itself when it has no client data left.
+	 */
+	public static Model optimize(Model model) {
+		FloatBuffer vertices = model.getVertexBuffer();
+		if (vertices == null || model.getIndexBuffer() == null)
+			return model;
+		
+		FloatBuffer[] streams = { vertices, model.getNormalBuffer(), model.getColourBuffer(), model.getUVBuffer() };
+		int[] components = { 3, 3, 4, 2 };
+		int vertexCount = model.getVertexCount();
+		
+		int[] indices = weld(streams, components, vertexCount, getIndices(model));
+		indices = reorderTriangles(indices, vertexCount);
+		
+		// Fetch order, each vertex numbered when it is first used
+		int[] remap = new int[vertexCount];
+		for (int v = 0; v < vertexCount; v++)
+			remap[v] = -1;
+		int used = 0;
+		int[] optimizedIndices = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			if (remap[v] < 0)
+				remap[v] = used++;
+			optimizedIndices[i] = remap[v];
+		}
+		
+		float[][] optimized = new float[streams.length][];
+		for (int s = 0; s < streams.length; s++) {
+			if (streams[s] == null)
+				continue;
+			int n = components[s];
+			optimized[s] = new float[used * n];
+			for (int v = 0; v < vertexCount; v++) {
+				if (remap[v] < 0)
+					continue;
+				for (int c = 0; c < n; c++)
+					optimized[s][remap[v] * n + c] = streams[s].get(v * n + c);
+			}
+		}
+		
+		Model result = new Model(model.getName(), optimized[0], optimized[1], optimized[2], optimized[3],
+				optimizedIndices);
+		result.setUsage(model.getUsage());
+		for (Model.Instance instance : model.getInstances()) {
+			result.createInstance(instance.getName(), instance.getTextureId(), instance.getEffectId(),
+					instance.getTranslation().clone(), instance.getRotation().clone(), instance.getScale().clone());
+		}
+		return result;
+	}
+	
+	/**
+	 * Average cache miss ratio, vertices transformed per triangle with a FIFO cache of
+	 * ACMR_CACHE_SIZE entries. 0.5 is the best a regular grid can do, 3 means no reuse.
+	 */
+	public static float getAcmr(Model model) {
+		if (model.getIndexBuffer() == null)
+			return 0.0f;
+		return getAcmr(getIndices(model), model.getVertexCount(), ACMR_CACHE_SIZE);
+	}
+	
+	public static float getAcmr(int[] indices, int vertexCount, int cacheSize) {
+		int next = 0;
+		int misses = 0;
+		// Time stamps make the cache lookup constant time
+		int[] cachedAt = new int[vertexCount];
+		for (int v = 0; v < vertexCount; v++)
+			cachedAt[v] = -cacheSize - 1;
+		
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			if (next - cachedAt[v] <= cacheSize)
+				continue;
+			cachedAt[v] = next++;
+			++misses;
+		}
+		return (float)misses / (indices.length / 3);
+	}
+	
+	/**
+	 * Returns the indices pointing at the first of every set of identical vertices,
+	 * without the triangles that collapsed.
+	 */
+	private static int[] weld(FloatBuffer[] streams, int[] components, int vertexCount, int[] indices) {
+		int tableSize = Integer.highestOneBit(Math.max(vertexCount, 1)) * 4;
+		int[] table = new int[tableSize]; // Vertex + 1, 0 when empty
+		int[] remap = new int[vertexCount];
+		
+		for (int v = 0; v < vertexCount; v++) {
+			int hash = 0;
+			for (int s = 0; s < streams.length; s++) {
+				if (streams[s] == null)
+					continue;
+				for (int c = 0; c < components[s]; c++)
+					hash = hash * 31 + Float.floatToIntBits(streams[s].get(v * components[s] + c));
+			}
+			hash ^= hash >>> 16;
+			
+			int slot = hash & (tableSize - 1);
+			while (table[slot] != 0 && !equal(streams, components, table[slot] - 1, v))
+				slot = (slot + 1) & (tableSize - 1);
+			if (table[slot] == 0)
+				table[slot] = v + 1;
+			remap[v] = table[slot] - 1;
+		}
+		
+		int[] welded = new int[indices.length];
+		int count = 0;
+		for (int i = 0; i < indices.length; i += 3) {
+			int a = remap[indices[i]], b = remap[indices[i + 1]], c = remap[indices[i + 2]];
+			if (a == b || b == c || c == a)
+				continue;
+			welded[count++] = a;
+			welded[count++] = b;
+			welded[count++] = c;
+		}
+		
+		int[] result = new int[count];
+		System.arraycopy(welded, 0, result, 0, count);
+		return result;
+	}
+	
+	private static boolean equal(FloatBuffer[] streams, int[] components, int a, int b) {
+		for (int s = 0; s < streams.length; s++) {
+			if (streams[s] == null)
+				continue;
+			int n = components[s];
+			for (int c = 0; c < n; c++) {
+				if (Float.floatToIntBits(streams[s].get(a * n + c)) != Float.floatToIntBits(streams[s].get(b * n + c)))
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Greedily emits the triangle whose vertices score best, scores favour vertices
+	 * recently used and vertices with few triangles left, so fans get finished.
+	 */
+	static int[] reorderTriangles(int[] indices, int vertexCount) {
+		int triangleCount = indices.length / 3;
+		
+		// Triangles of every vertex, the first remaining[v] of them not emitted yet
+		int[] remaining = new int[vertexCount];
+		for (int i = 0; i < indices.length; i++)
+			++remaining[indices[i]];
+		int[] start = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++)
+			start[v + 1] = start[v] + remaining[v];
+		int[] adjacency = new int[indices.length];
+		int[] filled = new int[vertexCount];
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			adjacency[start[v] + filled[v]++] = i / 3;
+		}
+		
+		int[] cachePosition = new int[vertexCount];
+		float[] vertexScores = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			cachePosition[v] = -1;
+			vertexScores[v] = vertexScore(-1, remaining[v]);
+		}
+		float[] triangleScores = new float[triangleCount];
+		boolean[] emitted = new boolean[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			triangleScores[t] = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]] +
+					vertexScores[indices[t * 3 + 2]];
+		}
+		
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int[] result = new int[indices.length];
+		int best = -1;
+		
+		// Vertices of emitted triangles, newest on top, for restarting near the last
+		// triangles when nothing is left around the cache
+		int[] deadEnds = new int[indices.length];
+		int deadEndCount = 0;
+		int cursor = 0;
+		
+		for (int out = 0; out < triangleCount; out++) {
+			// Nothing left around the cache, restart from a recently used vertex that
+			// still has triangles, else from the next triangle in input order. Both only
+			// move forwards so every triangle is looked at a constant number of times.
+			while (best < 0 && deadEndCount > 0) {
+				int v = deadEnds[--deadEndCount];
+				if (remaining[v] > 0)
+					best = adjacency[start[v]];
+			}
+			if (best < 0) {
+				while (emitted[cursor])
+					++cursor;
+				best = cursor;
+			}
+			
+			emitted[best] = true;
+			int newCount = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = indices[best * 3 + k];
+				result[out * 3 + k] = v;
+				newCache[newCount++] = v;
+				deadEnds[deadEndCount++] = v;
+				
+				// Move the triangle past the remaining ones
+				int first = start[v];
+				int last = first + --remaining[v];
+				for (int j = first; j <= last; j++) {
+					if (adjacency[j] == best) {
+						adjacency[j] = adjacency[last];
+						adjacency[last] = best;
+						break;
+					}
+				}
+			}
+			
+			// The triangle's vertices go to the front, the rest keep their order
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				if (v != newCache[0] && v != newCache[1] && v != newCache[2])
+					newCache[newCount++] = v;
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheCount = newCount;
+			
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				cachePosition[v] = i < CACHE_SIZE ? i : -1;
+				vertexScores[v] = vertexScore(cachePosition[v], remaining[v]);
+			}
+			
+			best = -1;
+			float bestScore = -Float.MAX_VALUE;
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				for (int j = start[v]; j < start[v] + remaining[v]; j++) {
+					int t = adjacency[j];
+					float score = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]] +
+							vertexScores[indices[t * 3 + 2]];
+					triangleScores[t] = score;
+					if (score > bestScore) {
+						bestScore = score;
+						best = t;
+					}
+				}
+			}
+			
+			// Vertices pushed out of the cache are dropped from it for good
+			if (cacheCount > CACHE_SIZE)
+				cacheCount = CACHE_SIZE;
+		}
+		
+		return result;
+	}
+	
+	private static float vertexScore(int cachePosition, int remaining) {
+		if (remaining == 0)
+			return -1.0f;
+		
+		float score = 0.0f;
+		if (cachePosition >= 3) {
+			float scale = 1.0f / (CACHE_SIZE - 3);
+			score = (float)Math.pow(1.0f - (cachePosition - 3) * scale, CACHE_DECAY_POWER);
+		}
+		else if (cachePosition >= 0)
+			score = LAST_TRIANGLE_SCORE;
+		
+		return score + VALENCE_BOOST_SCALE * (float)Math.pow(remaining, -VALENCE_BOOST_POWER);
+	}
+	
+	private static int[] getIndices(Model model) {
+		int[] values = new int[model.getIndexCount()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = model.getIndex(i);
+		return values;
+	}
+}
@@ -1,24 +1,37 @@
 package com.xyz.resources;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
-import android.util.Log;
+import android.util.Xml;
 
+import com.xyz.core.EnvironmentSettings;
+import com.xyz.core.ZebraLog;
 import com.xyz.graphics.Model;
+import com.xyz.graphics.SceneGraph;
 
 public class ModelHandler {
 	
+	/**
+	 * Nodes and parent links met while reading, turned into a SceneGraph once every
+	 * name is known since parents may come after their children.
+	 */
+	private static final class Hierarchy {
+		final ArrayList<String> mGroupNames			= new ArrayList<String>();
+		final ArrayList<String> mGroupParents		= new ArrayList<String>();
+		final ArrayList<float[][]> mGroupTransforms	= new ArrayList<float[][]>();
+		final ArrayList<Model.Instance> mInstances	= new ArrayList<Model.Instance>();
+		final ArrayList<String> mInstanceParents	= new ArrayList<String>();
+		boolean mLinked;
+	}
+	
 	private ArrayList<Model> mModels;
 	
 	private ModelHandler()
@@ -34,150 +47,323 @@ public class ModelHandler {
 	}
 	
 	private boolean load(InputStream stream, TextureManager textureManager, EffectManager effectManager) {
-		InputSource source = new InputSource(stream);
-		XPath reader = XPathFactory.newInstance().newXPath();
+		Runtime runtime = Runtime.getRuntime();
+		long startTime = System.nanoTime();
+		long startHeap = runtime.totalMemory() - runtime.freeMemory();
+		
+		XmlPullParser parser = Xml.newPullParser();
 		
 		try {
-			NodeList meshes = (NodeList)reader.evaluate("/Model/Meshes/Mesh", source, XPathConstants.NODESET);
-			mModels = new ArrayList<Model>();
+			parser.setInput(stream, null);
+			mModels = read(parser, managerResolver(textureManager, effectManager));
+		} catch (XmlPullParserException e) {
+			ZebraLog.e("finput", "Invalid mesh data", e);
+			return false;
+		} catch (IOException e) {
+			ZebraLog.e("finput", "Failed to read mesh data", e);
+			return false;
+		} catch (NumberFormatException e) {
+			ZebraLog.e("data", "Invalid mesh data", e);
+			return false;
+		}
+		
+		if (EnvironmentSettings.DEBUG) {
+			long elapsed = (System.nanoTime() - startTime) / 1000000;
+			long heap = (runtime.totalMemory() - runtime.freeMemory()) - startHeap;
+			ZebraLog.d("finput", "Loaded " + mModels.size() + " meshes in " + elapsed + "ms, heap delta " +
+					(heap / 1024) + "KB");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads every mesh of the document in a single pass, models are built as soon as their
+	 * geometry has been read. Used directly by the offline tools, which resolve resources
+	 * without the managers.
+	 *
+	 * Instances with a parent attribute, naming a Node or another instance, and group
+	 * Nodes are put in a SceneGraph, see Model.Instance.getSceneGraph.
+	 */
+	public static ArrayList<Model> read(XmlPullParser parser, ResourceResolver resolver)
+			throws XmlPullParserException, IOException {
+		
+		ValueScanner scanner = new ValueScanner();
+		ArrayList<Model> models = new ArrayList<Model>();
+		Hierarchy hierarchy = new Hierarchy();
+		
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+		int eventType = parser.getEventType();
+		while (eventType != XmlPullParser.END_DOCUMENT) {
+			if (eventType == XmlPullParser.START_TAG && parser.getName().equals("Mesh")) {
+				models.add(readMesh(parser, scanner, resolver, hierarchy));
+			}
+			else if (eventType == XmlPullParser.START_TAG && parser.getName().equals("Node")) {
+				readNode(parser, scanner, hierarchy);
+			}
+			eventType = parser.next();
+		}
+		
+		if (hierarchy.mLinked)
+			buildGraph(parser, hierarchy);
+		return models;
+	}
+	
+	public static ResourceResolver managerResolver(final TextureManager textureManager,
+			final EffectManager effectManager) {
+		
+		return new ResourceResolver() {
+			public int resolveTexture(String filename) {
+				return textureManager.createTexture(filename);
+			}
 			
-			for (int i = 0; i < meshes.getLength(); i++) {
-				Element meshNode = (Element)meshes.item(i);
-				
-				String name = meshNode.getAttribute("name");
-				if (name == null || name.isEmpty()) {
-					Log.e("finput", "You have to set the mesh name attribute");
-					return false;
-				}
-				
-				// Read vertices
-				Node vertNode = (Node)reader.evaluate("Vertices", meshNode, XPathConstants.NODE);
-				float[] vertices = valueToFloatArray(vertNode.getTextContent());
-				
-				// Read normals
-				Node normNode = (Node)reader.evaluate("Normals", meshNode, XPathConstants.NODE);
-				float[] normals = null;
-				if (normNode != null)
-					normals = valueToFloatArray(normNode.getTextContent());
-				
-				// Read colours
-				Node colourNode = (Node)reader.evaluate("Colours", meshNode, XPathConstants.NODE);
-				float[] colours = null;
-				if (colourNode != null)
-					colours = valueToFloatArray(colourNode.getTextContent());
-				
-				// Read UV coordinates
-				Node uvNode = (Node)reader.evaluate("TexUV", meshNode, XPathConstants.NODE);
-				float[] uvs = null;
-				if (uvNode != null)
-					uvs = valueToFloatArray(uvNode.getTextContent());
-				
-				// Read indices
-				Node indexNode = (Node)reader.evaluate("Indices", meshNode, XPathConstants.NODE);
-				short[] indices = valueToShortArray(indexNode.getTextContent());
-				
-				// Create the Model object
-				Model model = new Model(name, vertices, normals, colours, uvs, indices);
-				
-				// Load all instances
-				NodeList instanceList = (NodeList)reader.evaluate("Instances/Instance", meshNode, XPathConstants.NODESET);
-				int numOfInstances = instanceList.getLength();
-				for (int j = 0; j < numOfInstances; j++) {
-					Element instance = (Element)instanceList.item(j);
-					
-					// Get name
-					String instName = instance.getAttribute("name");
-					if (instName == null || instName.isEmpty()) {
-						Log.e("finput", "You have to set the instance name attribute");
-						return false;
-					}
-					
-					// Read textures
-					Node texNode	= (Node)reader.evaluate("Texture", instance, XPathConstants.NODE);
-					int textureId	= -1;
-					if (texNode != null) {
-						String texPath = texNode.getTextContent();
-						if (texPath != null && !texPath.isEmpty()) {
-							textureId = textureManager.createTexture(texPath);
-						}
-					}
-					
-					// Read effects
-					Node vertexNode		= (Node)reader.evaluate("VertexShader", instance, XPathConstants.NODE);
-					Node fragmentNode	= (Node)reader.evaluate("FragmentShader", instance, XPathConstants.NODE);
-					int effectId	= -1;
-					if (vertexNode != null && fragmentNode != null) {
-						String vertexPath = vertexNode.getTextContent();
-						String fragmentPath = fragmentNode.getTextContent();
-						if (vertexPath != null && !vertexPath.isEmpty() &&
-								fragmentPath != null && !fragmentPath.isEmpty()) {
-							
-							effectId = effectManager.createEffect(vertexPath, fragmentPath);
-						}
-					}
+			public int resolveEffect(String vertexFilename, String fragmentFilename) {
+				return effectManager.createEffect(vertexFilename, fragmentFilename);
+			}
+		};
+	}
+	
+	private static Model readMesh(XmlPullParser parser, ValueScanner scanner, ResourceResolver resolver,
+			Hierarchy hierarchy) throws XmlPullParserException, IOException {
+		
+		String name = parser.getAttributeValue(null, "name");
+		if (name == null || name.isEmpty())
+			throw new XmlPullParserException("You have to set the mesh name attribute", parser, null);
+		
+		FloatBuffer vertices	= null;
+		FloatBuffer normals		= null;
+		FloatBuffer colours		= null;
+		FloatBuffer uvs			= null;
+		IntBuffer indices		= null;
+		Model model				= null;
+		
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth)) {
+			String tag = parser.getName();
+			if (tag.equals("Vertices"))
+				vertices = scanner.readFloats(parser);
+			else if (tag.equals("Normals"))
+				normals = scanner.readFloats(parser);
+			else if (tag.equals("Colours"))
+				colours = scanner.readFloats(parser);
+			else if (tag.equals("TexUV"))
+				uvs = scanner.readFloats(parser);
+			else if (tag.equals("Indices"))
+				indices = scanner.readIndices(parser);
+			else if (tag.equals("Instances")) {
+				// Geometry always precedes the instances in the schema
+				if (model == null)
+					model = createModel(parser, name, vertices, normals, colours, uvs, indices);
 				
-					// Read transformations
-					Node transNode	= (Node)reader.evaluate("Translation", instance, XPathConstants.NODE);
-					float[] translation = null;
-					if (transNode != null)
-						translation = valueToFloatArray(transNode.getTextContent());
-					
-					Node rotNode	= (Node)reader.evaluate("Rotation", instance, XPathConstants.NODE);
-					float[] rotation = null;
-					if (rotNode != null)
-						rotation = valueToFloatArray(rotNode.getTextContent());
-					
-					Node scaleNode	= (Node)reader.evaluate("Scale", instance, XPathConstants.NODE);
-					float[] scale = null;
-					if (scaleNode != null)
-						scale = valueToFloatArray(scaleNode.getTextContent());
-					
-					model.createInstance(instName, textureId, effectId, translation, rotation, scale);
+				int instancesDepth = parser.getDepth();
+				while (nextChild(parser, instancesDepth)) {
+					if (parser.getName().equals("Instance"))
+						readInstance(parser, scanner, model, resolver, hierarchy);
+					else
+						skip(parser);
 				}
-
-				// Add it to the list
-				mModels.add(model);
-				
 			}
-		} catch (XPathExpressionException e) {
-			Log.e("data", "Invalid mesh data", e);
+			else
+				skip(parser);
 		}
 		
-		return true;
+		if (model == null)
+			model = createModel(parser, name, vertices, normals, colours, uvs, indices);
+		return model;
 	}
 	
-	private static float[] valueToFloatArray(String value) {
-		value = value.trim();
-		String[] nodeValueArray = value.split("[ \t\r\n]+");
+	private static Model createModel(XmlPullParser parser, String name, FloatBuffer vertices, FloatBuffer normals,
+			FloatBuffer colours, FloatBuffer uvs, IntBuffer indices) throws XmlPullParserException {
 		
-		int length = nodeValueArray.length;
-		float[] converted = new float[length];
-		try {
-			for (int i = 0; i < length; i++) {
-				converted[i] = Float.parseFloat(nodeValueArray[i]);
-			}
-		} catch (NumberFormatException e) {
-			Log.e("data", "Can't convert to float", e);
+		if (vertices == null || indices == null)
+			throw new XmlPullParserException("Mesh " + name + " needs Vertices and Indices", parser, null);
+		return new Model(name, vertices, normals, colours, uvs, indices);
+	}
+	
+	private static void readInstance(XmlPullParser parser, ValueScanner scanner, Model model,
+			ResourceResolver resolver, Hierarchy hierarchy) throws XmlPullParserException, IOException {
+		
+		// Get name
+		String instName = parser.getAttributeValue(null, "name");
+		if (instName == null || instName.isEmpty())
+			throw new XmlPullParserException("You have to set the instance name attribute", parser, null);
+		String parent = parser.getAttributeValue(null, "parent");
+		
+		String texPath		= null;
+		String vertexPath	= null;
+		String fragmentPath	= null;
+		float[] translation	= null;
+		float[] rotation	= null;
+		float[] scale		= null;
+		
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth)) {
+			String tag = parser.getName();
+			if (tag.equals("Texture"))
+				texPath = parser.nextText().trim();
+			else if (tag.equals("VertexShader"))
+				vertexPath = parser.nextText().trim();
+			else if (tag.equals("FragmentShader"))
+				fragmentPath = parser.nextText().trim();
+			else if (tag.equals("Translation"))
+				translation = readVector(parser, scanner);
+			else if (tag.equals("Rotation"))
+				rotation = readVector(parser, scanner);
+			else if (tag.equals("Scale"))
+				scale = readVector(parser, scanner);
+			else
+				skip(parser);
+		}
+		
+		// Read textures
+		int textureId = -1;
+		if (texPath != null && !texPath.isEmpty())
+			textureId = resolver.resolveTexture(texPath);
+		
+		// Read effects
+		int effectId = -1;
+		if (vertexPath != null && !vertexPath.isEmpty() &&
+				fragmentPath != null && !fragmentPath.isEmpty()) {
+			
+			effectId = resolver.resolveEffect(vertexPath, fragmentPath);
 		}
 		
-		return converted;
+		Model.Instance instance = model.createInstance(instName, textureId, effectId, translation, rotation, scale);
+		hierarchy.mInstances.add(instance);
+		hierarchy.mInstanceParents.add(parent);
+		if (parent != null)
+			hierarchy.mLinked = true;
 	}
 	
-	private static short[] valueToShortArray(String value) {
-		value = value.trim();
-		String[] nodeValueArray = value.split("[ \t\r\n]+");
+	/**
+	 * Translation, Rotation or Scale element, exactly x y z.
+	 */
+	private static float[] readVector(XmlPullParser parser, ValueScanner scanner)
+			throws XmlPullParserException, IOException {
 		
-		int length = nodeValueArray.length;
-		short[] converted = new short[length];
-		try {
-			for (int i = 0; i < length; i++) {
-				converted[i] = Short.parseShort(nodeValueArray[i]);
+		String tag = parser.getName();
+		float[] values = scanner.readFloatArray(parser);
+		if (values.length != 3)
+			throw new XmlPullParserException(tag + " needs 3 values, not " + values.length, parser, null);
+		return values;
+	}
+	
+	/**
+	 * Group node, only a transform for its children to follow.
+	 */
+	private static void readNode(XmlPullParser parser, ValueScanner scanner, Hierarchy hierarchy)
+			throws XmlPullParserException, IOException {
+		
+		String name = parser.getAttributeValue(null, "name");
+		if (name == null || name.isEmpty())
+			throw new XmlPullParserException("You have to set the node name attribute", parser, null);
+		String parent = parser.getAttributeValue(null, "parent");
+		
+		float[][] transform = new float[3][];
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth)) {
+			String tag = parser.getName();
+			if (tag.equals("Translation"))
+				transform[0] = readVector(parser, scanner);
+			else if (tag.equals("Rotation"))
+				transform[1] = readVector(parser, scanner);
+			else if (tag.equals("Scale"))
+				transform[2] = readVector(parser, scanner);
+			else
+				skip(parser);
+		}
+		
+		hierarchy.mGroupNames.add(name);
+		hierarchy.mGroupParents.add(parent);
+		hierarchy.mGroupTransforms.add(transform);
+		hierarchy.mLinked = true;
+	}
+	
+	/**
+	 * Only instances with a parent or children join the graph, the others keep the
+	 * cheaper standalone path. Parent names have to be unique.
+	 */
+	private static void buildGraph(XmlPullParser parser, Hierarchy hierarchy) throws XmlPullParserException {
+		HashMap<String, Integer> referenced = new HashMap<String, Integer>();
+		for (String parent : hierarchy.mGroupParents) {
+			if (parent != null)
+				referenced.put(parent, -1);
+		}
+		for (String parent : hierarchy.mInstanceParents) {
+			if (parent != null)
+				referenced.put(parent, -1);
+		}
+		
+		SceneGraph graph = new SceneGraph();
+		int[] groups = new int[hierarchy.mGroupNames.size()];
+		for (int i = 0; i < groups.length; i++) {
+			float[][] transform = hierarchy.mGroupTransforms.get(i);
+			groups[i] = graph.addNode(hierarchy.mGroupNames.get(i), -1, transform[0], transform[1], transform[2]);
+			nameNode(parser, referenced, hierarchy.mGroupNames.get(i), groups[i]);
+		}
+		int[] instances = new int[hierarchy.mInstances.size()];
+		for (int i = 0; i < instances.length; i++) {
+			Model.Instance instance = hierarchy.mInstances.get(i);
+			instances[i] = -1;
+			if (hierarchy.mInstanceParents.get(i) != null || referenced.containsKey(instance.getName())) {
+				instances[i] = graph.addNode(instance, -1);
+				nameNode(parser, referenced, instance.getName(), instances[i]);
 			}
-		} catch (NumberFormatException e) {
-			Log.e("data", "Can't convert to float", e);
 		}
 		
-		return converted;
+		for (int i = 0; i < groups.length; i++)
+			link(parser, graph, referenced, groups[i], hierarchy.mGroupParents.get(i));
+		for (int i = 0; i < instances.length; i++) {
+			if (instances[i] >= 0)
+				link(parser, graph, referenced, instances[i], hierarchy.mInstanceParents.get(i));
+		}
+	}
+	
+	private static void nameNode(XmlPullParser parser, HashMap<String, Integer> referenced, String name, int node)
+			throws XmlPullParserException {
+		
+		Integer previous = referenced.get(name);
+		if (previous == null)
+			return;
+		if (previous >= 0)
+			throw new XmlPullParserException("Parent name " + name + " is used more than once", parser, null);
+		referenced.put(name, node);
+	}
+	
+	private static void link(XmlPullParser parser, SceneGraph graph, HashMap<String, Integer> referenced, int node,
+			String parent) throws XmlPullParserException {
+		
+		if (parent == null)
+			return;
+		int parentNode = referenced.get(parent);
+		if (parentNode < 0)
+			throw new XmlPullParserException("Unknown parent " + parent + " of " + graph.getName(node), parser, null);
+		try {
+			graph.setParent(node, parentNode);
+		} catch (IllegalArgumentException e) {
+			throw new XmlPullParserException(e.getMessage(), parser, e);
+		}
+	}
+	
+	/**
+	 * Advances to the next child element of the element opened at depth.
+	 * Returns false once that element is closed.
+	 */
+	private static boolean nextChild(XmlPullParser parser, int depth) throws XmlPullParserException, IOException {
+		int eventType;
+		while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+			if (eventType == XmlPullParser.START_TAG)
+				return true;
+			if (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth)
+				return false;
+		}
+		return false;
+	}
+	
+	private static void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth))
+			skip(parser);
 	}
 	
 	public ArrayList<Model> getModels() {
@@ -0,0 +1,11 @@
+package com.xyz.resources;
+
+/**
+ * Turns the resource paths referenced by model files into ids.
+ */
+public interface ResourceResolver {
+	
+	public int resolveTexture(String filename);
+	
+	public int resolveEffect(String vertexFilename, String fragmentFilename);
+}
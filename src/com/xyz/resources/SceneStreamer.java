@@ -0,0 +1,352 @@
+package com.xyz.resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.Frustum;
+import com.xyz.graphics.Model;
+import com.xyz.graphics.SceneUpdater;
+
+/**
+ * Keeps the chunks of a ChunkedScene near the camera in the scene and the rest out of
+ * memory, so memory follows what is around the viewer rather than the size of the scene.
+ *
+ * A chunk is wanted while the eye, or where the eye will be after getPrefetchTime at its
+ * current velocity, is within the load distance of its bounds, or while it is in the
+ * frustum within the view distance. Wanted chunks load nearest first on the AssetLoader
+ * and join the scene through SceneUpdater.addModels. Chunks no longer wanted stay until
+ * the resident bytes go over the budget, then the least recently wanted leave through
+ * SceneUpdater.removeModels, which also frees their GPU buffers. Textures and effects are
+ * shared through the managers and stay loaded.
+ *
+ * Call update once per frame from a single thread, the Simulation callback is a good place.
+ */
+public final class SceneStreamer {
+	
+	public static final int UNLOADED	= 0;
+	public static final int LOADING		= 1;
+	public static final int RESIDENT	= 2;
+	public static final int FAILED		= 3;
+	
+	// Loads in flight at once, more only queue up behind each other on the workers
+	private static final int MAX_LOADS = 2;
+	
+	// Weight of the newest frame in the smoothed velocity
+	private static final float VELOCITY_SMOOTHING = 0.25f;
+	
+	private static final class Loaded {
+		final int				mChunk;
+		final ArrayList<Model>	mModels;
+		
+		Loaded(int chunk, ArrayList<Model> models) {
+			mChunk	= chunk;
+			mModels	= models;
+		}
+	}
+	
+	private final ChunkedScene		mScene;
+	private final AssetLoader		mLoader;
+	private final ResourceResolver	mResolver;
+	private final SceneUpdater		mUpdater;
+	private long					mBudget;
+	
+	private float					mLoadDistance;
+	private float					mViewDistance;
+	private float					mPrefetchTime;
+	
+	// Per chunk
+	private final int[]				mStates;
+	private final ArrayList<ArrayList<Model>> mModels;
+	private final long[]			mLastWanted; // Frame
+	private final float[]			mDistances; // To the eye this frame, MAX_VALUE when not wanted
+	
+	private final ConcurrentLinkedQueue<Loaded> mLoaded;
+	private final int[]				mCandidates;
+	private int						mLoading;
+	private long					mResidentBytes;
+	private long					mFrame;
+	
+	private final float[]			mEye;
+	private final float[]			mVelocity; // Units per second
+	private boolean					mHasEye;
+	
+	private int						mLoadCount;
+	private int						mEvictionCount;
+	
+	/**
+	 * loader null loads chunks on the calling thread during update. budgetBytes bounds
+	 * the chunk data kept, wanted chunks are never evicted so it can be exceeded.
+	 */
+	public SceneStreamer(ChunkedScene scene, AssetLoader loader, ResourceResolver resolver, SceneUpdater updater,
+			long budgetBytes) {
+		
+		int count = scene.getChunkCount();
+		mScene			= scene;
+		mLoader			= loader;
+		mResolver		= resolver;
+		mUpdater		= updater;
+		mBudget			= budgetBytes;
+		mLoadDistance	= 50.0f;
+		mViewDistance	= 200.0f;
+		mPrefetchTime	= 1.0f;
+		mStates			= new int[count];
+		mModels			= new ArrayList<ArrayList<Model>>(count);
+		for (int i = 0; i < count; i++)
+			mModels.add(null);
+		mLastWanted		= new long[count];
+		mDistances		= new float[count];
+		mLoaded			= new ConcurrentLinkedQueue<Loaded>();
+		mCandidates		= new int[count];
+		mEye			= new float[3];
+		mVelocity		= new float[3];
+	}
+	
+	/**
+	 * Chunks whose bounds come within distance of the eye, current or predicted, load
+	 * whatever the direction of view.
+	 */
+	public void setLoadDistance(float distance) {
+		mLoadDistance = distance;
+	}
+	
+	public float getLoadDistance() {
+		return mLoadDistance;
+	}
+	
+	/**
+	 * Chunks in the frustum load up to this distance, usually the far plane.
+	 */
+	public void setViewDistance(float distance) {
+		mViewDistance = distance;
+	}
+	
+	public float getViewDistance() {
+		return mViewDistance;
+	}
+	
+	/**
+	 * Seconds ahead the eye position is extrapolated, about how long a chunk takes to
+	 * load and upload.
+	 */
+	public void setPrefetchTime(float seconds) {
+		mPrefetchTime = seconds;
+	}
+	
+	public float getPrefetchTime() {
+		return mPrefetchTime;
+	}
+	
+	public void setBudget(long budgetBytes) {
+		mBudget = budgetBytes;
+	}
+	
+	public long getBudget() {
+		return mBudget;
+	}
+	
+	public ChunkedScene getScene() {
+		return mScene;
+	}
+	
+	public int getState(int chunk) {
+		return mStates[chunk];
+	}
+	
+	/**
+	 * Models of a resident chunk, null otherwise.
+	 */
+	public ArrayList<Model> getModels(int chunk) {
+		return mModels.get(chunk);
+	}
+	
+	public long getResidentBytes() {
+		return mResidentBytes;
+	}
+	
+	public int getResidentCount() {
+		int count = 0;
+		for (int state : mStates) {
+			if (state == RESIDENT)
+				++count;
+		}
+		return count;
+	}
+	
+	public int getLoadingCount() {
+		return mLoading;
+	}
+	
+	/**
+	 * Chunks loaded and evicted since the streamer was created.
+	 */
+	public int getLoadCount() {
+		return mLoadCount;
+	}
+	
+	public int getEvictionCount() {
+		return mEvictionCount;
+	}
+	
+	/**
+	 * Smoothed eye velocity in units per second, the prefetch extrapolates along it.
+	 */
+	public float[] getVelocity() {
+		return mVelocity;
+	}
+	
+	/**
+	 * eye is the camera position, frustum may be null to stream by distance only.
+	 */
+	public void update(float[] eye, Frustum frustum, long elapsedNanos) {
+		++mFrame;
+		takeLoaded();
+		
+		float seconds = elapsedNanos / 1000000000.0f;
+		if (mHasEye && seconds > 0.0f) {
+			for (int k = 0; k < 3; k++) {
+				float velocity = (eye[k] - mEye[k]) / seconds;
+				mVelocity[k] += (velocity - mVelocity[k]) * VELOCITY_SMOOTHING;
+			}
+		}
+		System.arraycopy(eye, 0, mEye, 0, 3);
+		mHasEye = true;
+		
+		float px = eye[0] + mVelocity[0] * mPrefetchTime;
+		float py = eye[1] + mVelocity[1] * mPrefetchTime;
+		float pz = eye[2] + mVelocity[2] * mPrefetchTime;
+		
+		float[] bounds = mScene.getChunkBounds();
+		int candidates = 0;
+		for (int chunk = 0; chunk < mStates.length; chunk++) {
+			int b = chunk * 6;
+			float distance = distance(bounds, b, eye[0], eye[1], eye[2]);
+			boolean wanted = distance <= mLoadDistance ||
+					distance(bounds, b, px, py, pz) <= mLoadDistance ||
+					(distance <= mViewDistance && frustum != null &&
+					frustum.intersectsBox(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4],
+							bounds[b + 5]));
+			mDistances[chunk] = wanted ? distance : Float.MAX_VALUE;
+			if (!wanted)
+				continue;
+			
+			mLastWanted[chunk] = mFrame;
+			if (mStates[chunk] == UNLOADED)
+				mCandidates[candidates++] = chunk;
+		}
+		
+		// Nearest first, selection sort is fine for the few loads per frame
+		for (int i = 0; i < candidates && mLoading < MAX_LOADS; i++) {
+			int nearest = i;
+			for (int j = i + 1; j < candidates; j++) {
+				if (mDistances[mCandidates[j]] < mDistances[mCandidates[nearest]])
+					nearest = j;
+			}
+			int chunk = mCandidates[nearest];
+			mCandidates[nearest] = mCandidates[i];
+			
+			if (!makeRoom(mScene.getChunkSize(chunk)))
+				break;
+			load(chunk);
+		}
+		
+		makeRoom(0);
+	}
+	
+	/**
+	 * Evicts every chunk not wanted in the last update, for low memory warnings.
+	 */
+	public void trim() {
+		for (int chunk = 0; chunk < mStates.length; chunk++) {
+			if (mStates[chunk] == RESIDENT && mLastWanted[chunk] != mFrame)
+				evict(chunk);
+		}
+	}
+	
+	/**
+	 * Evicts chunks not wanted this frame, least recently wanted first, until bytes more
+	 * fit in the budget. Returns false when they don't fit without evicting wanted chunks,
+	 * unless nothing is resident: a chunk larger than the budget still gets loaded alone.
+	 */
+	private boolean makeRoom(long bytes) {
+		while (mResidentBytes + bytes > mBudget) {
+			int oldest = -1;
+			for (int chunk = 0; chunk < mStates.length; chunk++) {
+				if (mStates[chunk] == RESIDENT && mLastWanted[chunk] != mFrame &&
+						(oldest < 0 || mLastWanted[chunk] < mLastWanted[oldest]))
+					oldest = chunk;
+			}
+			if (oldest < 0)
+				return mResidentBytes == 0 && mLoading == 0;
+			evict(oldest);
+		}
+		return true;
+	}
+	
+	private void load(final int chunk) {
+		mStates[chunk] = LOADING;
+		++mLoading;
+		// Counted as soon as it is requested so the budget holds while loads are in flight
+		mResidentBytes += mScene.getChunkSize(chunk);
+		
+		if (mLoader == null) {
+			mLoaded.add(new Loaded(chunk, read(chunk)));
+			takeLoaded();
+			return;
+		}
+		mLoader.execute(new Runnable() {
+			public void run() {
+				mLoaded.add(new Loaded(chunk, read(chunk)));
+			}
+		});
+	}
+	
+	private ArrayList<Model> read(int chunk) {
+		try {
+			return mScene.loadChunk(chunk, mResolver);
+		} catch (IOException e) {
+			ZebraLog.e("finput", "Trouble loading scene chunk " + chunk, e);
+			return null;
+		} catch (RuntimeException e) {
+			// Bad chunk data, still posted as failed or mLoading never comes back down
+			ZebraLog.e("finput", "Invalid scene chunk " + chunk, e);
+			return null;
+		}
+	}
+	
+	private void takeLoaded() {
+		Loaded loaded;
+		while ((loaded = mLoaded.poll()) != null) {
+			int chunk = loaded.mChunk;
+			--mLoading;
+			if (loaded.mModels == null) {
+				mStates[chunk] = FAILED;
+				mResidentBytes -= mScene.getChunkSize(chunk);
+				continue;
+			}
+			mStates[chunk] = RESIDENT;
+			mModels.set(chunk, loaded.mModels);
+			mUpdater.addModels(loaded.mModels);
+			++mLoadCount;
+		}
+	}
+	
+	private void evict(int chunk) {
+		mUpdater.removeModels(mModels.get(chunk));
+		mModels.set(chunk, null);
+		mStates[chunk] = UNLOADED;
+		mResidentBytes -= mScene.getChunkSize(chunk);
+		++mEvictionCount;
+	}
+	
+	/**
+	 * Distance from the point to the box, 0 inside.
+	 */
+	private static float distance(float[] bounds, int b, float x, float y, float z) {
+		float dx = Math.max(0.0f, Math.max(bounds[b] - x, x - bounds[b + 3]));
+		float dy = Math.max(0.0f, Math.max(bounds[b + 1] - y, y - bounds[b + 4]));
+		float dz = Math.max(0.0f, Math.max(bounds[b + 2] - z, z - bounds[b + 5]));
+		return (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+}
@@ -0,0 +1,171 @@
+package com.xyz.resources;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed texture with its precomputed mip chain, written by com.xyz.tools.TextureCompiler.
+ *
+ * ETC1 has no alpha, so textures that need it carry a second ETC1 image per level with
+ * the alpha in all three channels, for shaders to sample separately.
+ *
+ * Layout (big endian):
+ *   header		'XYZT', int version, int GL format, int width, int height, int levels, int flags
+ *   levels		int byte size + data, followed by int byte size + alpha data with FLAG_ALPHA_PLANE
+ */
+public final class TextureContainer {
+	
+	public static final String EXTENSION = ".xyzt";
+	
+	public static final int VERSION				= 1;
+	public static final int FLAG_ALPHA_PLANE	= 1;
+	
+	private static final int MAGIC = ('X' << 24) | ('Y' << 16) | ('Z' << 8) | 'T';
+	
+	private final int mFormat;
+	private final int mWidth;
+	private final int mHeight;
+	private final ByteBuffer[] mLevels;
+	private final ByteBuffer[] mAlphaLevels;
+	
+	/**
+	 * alphaLevels is null for opaque textures.
+	 */
+	public TextureContainer(int format, int width, int height, ByteBuffer[] levels, ByteBuffer[] alphaLevels) {
+		mFormat			= format;
+		mWidth			= width;
+		mHeight			= height;
+		mLevels			= levels;
+		mAlphaLevels	= alphaLevels;
+	}
+	
+	/**
+	 * Swaps the file extension for the container one, images/a.png becomes images/a.xyzt.
+	 */
+	public static String containerName(String filename) {
+		int dot = filename.lastIndexOf('.');
+		int slash = filename.lastIndexOf('/');
+		return (dot > slash ? filename.substring(0, dot) : filename) + EXTENSION;
+	}
+	
+	public static TextureContainer read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a texture container");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported texture container version " + version);
+		
+		int format	= in.readInt();
+		int width	= in.readInt();
+		int height	= in.readInt();
+		int levels	= in.readInt();
+		int flags	= in.readInt();
+		if (width <= 0 || height <= 0 || levels <= 0 || levels > 32)
+			throw new IOException("Invalid texture container header");
+		
+		ByteBuffer[] data = new ByteBuffer[levels];
+		ByteBuffer[] alpha = (flags & FLAG_ALPHA_PLANE) != 0 ? new ByteBuffer[levels] : null;
+		byte[] bytes = new byte[0];
+		for (int i = 0; i < levels; i++) {
+			for (int plane = 0; plane < (alpha != null ? 2 : 1); plane++) {
+				int size = in.readInt();
+				if (size < 0)
+					throw new IOException("Invalid texture level size");
+				if (bytes.length < size)
+					bytes = new byte[size];
+				in.readFully(bytes, 0, size);
+				
+				// GL reads the pixels straight from direct buffers
+				ByteBuffer level = ByteBuffer.allocateDirect(size);
+				level.put(bytes, 0, size);
+				level.position(0);
+				if (plane == 0)
+					data[i] = level;
+				else
+					alpha[i] = level;
+			}
+		}
+		
+		return new TextureContainer(format, width, height, data, alpha);
+	}
+	
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(mFormat);
+		out.writeInt(mWidth);
+		out.writeInt(mHeight);
+		out.writeInt(mLevels.length);
+		out.writeInt(hasAlphaPlane() ? FLAG_ALPHA_PLANE : 0);
+		for (int i = 0; i < mLevels.length; i++) {
+			writeLevel(out, mLevels[i]);
+			if (hasAlphaPlane())
+				writeLevel(out, mAlphaLevels[i]);
+		}
+		out.flush();
+	}
+	
+	private static void writeLevel(DataOutputStream out, ByteBuffer level) throws IOException {
+		ByteBuffer data = level.duplicate();
+		data.position(0);
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	public int getFormat() {
+		return mFormat;
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	public int getLevelCount() {
+		return mLevels.length;
+	}
+	
+	public int getLevelWidth(int level) {
+		return Math.max(1, mWidth >> level);
+	}
+	
+	public int getLevelHeight(int level) {
+		return Math.max(1, mHeight >> level);
+	}
+	
+	public ByteBuffer getLevel(int level) {
+		return mLevels[level];
+	}
+	
+	public boolean hasAlphaPlane() {
+		return mAlphaLevels != null;
+	}
+	
+	public ByteBuffer getAlphaLevel(int level) {
+		return mAlphaLevels[level];
+	}
+	
+	/**
+	 * Bytes of all the levels, alpha planes included.
+	 */
+	public int getByteSize() {
+		int size = 0;
+		for (int i = 0; i < mLevels.length; i++) {
+			size += mLevels[i].capacity();
+			if (mAlphaLevels != null)
+				size += mAlphaLevels[i].capacity();
+		}
+		return size;
+	}
+}
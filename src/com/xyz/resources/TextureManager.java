@@ -1,8 +1,16 @@
 package com.xyz.resources;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -10,35 +18,74 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
-import android.util.Log;
+
+import com.xyz.core.EnvironmentSettings;
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.GLBackend;
+import com.xyz.graphics.GLES20Backend;
 
 public class TextureManager {
 	
 	private final class TextureInfo {
-		@SuppressWarnings("unused")
 		public int mId;
+		public String mFilename;
 		public int mGlId;
-		public Bitmap mBitmap;
+		public int mAlphaGlId;
+		public int mBytes; // GL memory of the uploaded texture, mips included
+		public int mLastUsedFrame;
+		public boolean mLoading;
+		public boolean mFailed;
+		
+		// One of these is set by the decoding thread, and dropped once uploaded
+		public volatile Bitmap mBitmap;
+		public volatile TextureContainer mContainer;
 		
-		public TextureInfo(int id, int glId, Bitmap bitmap) {
-			mId		= id;
-			mGlId	= glId;
-			mBitmap	= bitmap;
+		public TextureInfo(int id, String filename) {
+			mId			= id;
+			mFilename	= filename;
+			mGlId		= -1;
+			mAlphaGlId	= -1;
 		}
 	}
 	
+	public static final int DEFAULT_MEMORY_BUDGET = 24 * 1024 * 1024;
+	
 	private static TextureManager mInstance;
 	
 	public AssetManager mAssetManager;
+	private File mAssetDirectory;
+	private GLBackend mGL;
+	private AssetLoader mLoader;
 	private HashMap<String, Integer> mFileMap; // Filename, tex id (not GL) to avoid repeating loads
 	private HashMap<Integer, TextureInfo> mTextureInfoList;
 	
+	// Decoded and waiting for the GL thread
+	private ConcurrentLinkedQueue<TextureInfo> mReadyList;
+	private int mPlaceholderId;
+	// By texture id, replaced on every change so the update thread reads it unlocked
+	private volatile boolean[] mTranslucent;
+	private boolean mEtc1Supported;
+	private int mTotalBytes;
+	private int mMemoryBudget;
+	
+	// Uploaded textures, least recently used first
+	private LinkedHashMap<Integer, TextureInfo> mResidentList;
+	private int mFrame;
+	private int mHits;
+	private int mMisses;
+	private int mEvictions;
+	
 	private TextureManager(AssetManager assetManager)
 	{
 		mAssetManager		= assetManager;
+		mGL					= new GLES20Backend();
 		mFileMap			= new HashMap<String, Integer>();
 		mTextureInfoList	= new HashMap<Integer, TextureInfo>();
+		mReadyList			= new ConcurrentLinkedQueue<TextureInfo>();
+		mPlaceholderId		= -1;
+		mTranslucent		= new boolean[0];
+		mMemoryBudget		= DEFAULT_MEMORY_BUDGET;
+		mResidentList		= new LinkedHashMap<Integer, TextureInfo>(16, 0.75f, true);
 	}
 	
 	public static TextureManager createInstance(AssetManager assetManager) {
@@ -47,59 +94,417 @@ public class TextureManager {
 		return mInstance;
 	}
 	
-	public int createTexture(String filename) {
+	/**
+	 * Bitmaps are decoded on the loader's workers from then on, without a loader
+	 * createTexture decodes in the calling thread.
+	 */
+	public void setAssetLoader(AssetLoader loader) {
+		mLoader = loader;
+	}
+	
+	/**
+	 * Backend of the GL thread, set before generateTextures.
+	 */
+	public void setBackend(GLBackend gl) {
+		mGL = gl;
+	}
+	
+	/**
+	 * Without an AssetManager, off device, textures are read from this directory.
+	 * Only compressed containers can be decoded there.
+	 */
+	public void setAssetDirectory(File directory) {
+		mAssetDirectory = directory;
+	}
+	
+	private InputStream open(String filename) throws IOException {
+		if (mAssetManager != null)
+			return mAssetManager.open(filename);
+		return new FileInputStream(new File(mAssetDirectory, filename));
+	}
+	
+	/**
+	 * GL memory the textures may use, least recently used textures are evicted above
+	 * it and loaded again when next drawn.
+	 */
+	public void setMemoryBudget(int bytes) {
+		mMemoryBudget = bytes;
+	}
+	
+	public int getMemoryBudget() {
+		return mMemoryBudget;
+	}
+	
+	/**
+	 * Returns the texture id straight away, the placeholder stands in for it until
+	 * the bitmap is decoded and uploaded.
+	 */
+	public synchronized int createTexture(String filename) {
 		Integer id = mFileMap.get(filename);
 		if (id == null) {
-			id = -1;
-			
-			// Add a new texture
-			InputStream stream;
-			try {
-				stream = mAssetManager.open(filename);
-				
-				Bitmap texture = BitmapFactory.decodeStream(stream);
-				if (texture != null) {
-					id = mTextureInfoList.size();
-					mTextureInfoList.put(id, new TextureInfo(id, -1, texture));
-					mFileMap.put(filename, id);
+			id = mTextureInfoList.size();
+			TextureInfo info = new TextureInfo(id, filename);
+			mTextureInfoList.put(id, info);
+			mFileMap.put(filename, id);
+			requestLoad(info);
+		}
+		
+		return id;
+	}
+	
+	private synchronized void requestLoad(final TextureInfo info) {
+		info.mLoading = true;
+		if (mLoader != null) {
+			mLoader.execute(new Runnable() {
+				public void run() {
+					decode(info);
 				}
-				
+			});
+		}
+		else
+			decode(info);
+	}
+	
+	/**
+	 * Prefers a compressed container next to the image, see com.xyz.tools.TextureCompiler.
+	 */
+	private void decode(TextureInfo info) {
+		InputStream stream;
+		String containerName = TextureContainer.containerName(info.mFilename);
+		try {
+			stream = open(containerName);
+			try {
+				info.mContainer = TextureContainer.read(stream);
+				mReadyList.add(info);
+				return;
+			} finally {
 				stream.close();
-			} catch (IOException e) {
-				Log.e("texman", "Failed to open " + filename);
 			}
+		} catch (FileNotFoundException e) {
+			// No compressed version, decode the image itself
+		} catch (IOException e) {
+			ZebraLog.e("texman", "Failed to read " + containerName, e);
 		}
 		
-		return id;
+		try {
+			stream = open(info.mFilename);
+			
+			Bitmap texture = BitmapFactory.decodeStream(stream);
+			stream.close();
+			if (texture != null) {
+				info.mBitmap = texture;
+				mReadyList.add(info);
+				return;
+			}
+			ZebraLog.e("texman", "Failed to decode " + info.mFilename);
+		} catch (IOException e) {
+			ZebraLog.e("texman", "Failed to open " + info.mFilename);
+		}
+		
+		// Keeps the placeholder for good
+		synchronized (this) {
+			info.mLoading = false;
+			info.mFailed = true;
+		}
 	}
 	
+	/**
+	 * Recreates the GL side after a new context, the textures themselves are queued
+	 * again and uploaded by uploadTextures.
+	 */
 	public void generateTextures(GL10 gl) {
-		int[] glTextures = new int[mTextureInfoList.size()];
-		int i = 0;
-		for (TextureInfo info : mTextureInfoList.values()) {
-			if (info.mGlId == -1) {
-				// Generate OpenGl Texture
-				GLES20.glGenTextures(	1, glTextures, i);
-		        
-				GLES20.glBindTexture(	GLES20.GL_TEXTURE_2D, glTextures[i]);
-				GLES20.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
-		        						GLES20.GL_LINEAR);
-				GLES20.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
-		        						GLES20.GL_LINEAR);
-				GLES20.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
-		        						GLES20.GL_REPEAT);
-				GLES20.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
-		        						GLES20.GL_REPEAT);
-		        GLUtils.texImage2D(		GLES20.GL_TEXTURE_2D, 0, info.mBitmap, 0);
-		        
-		        info.mGlId = glTextures[i];
-		        ++i;
+		mEtc1Supported = isEtc1Supported();
+		
+		int[] glTextures = new int[1];
+		mGL.glGenTextures(1, glTextures, 0);
+		mPlaceholderId = glTextures[0];
+		
+		// A single white texel, so untextured looks are still lit and coloured
+		ByteBuffer texel = ByteBuffer.allocateDirect(4);
+		texel.put((byte)0xFF).put((byte)0xFF).put((byte)0xFF).put((byte)0xFF);
+		texel.position(0);
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mPlaceholderId);
+		setParameters(false, true);
+		mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 1, 1, 0, GLES20.GL_RGBA,
+				GLES20.GL_UNSIGNED_BYTE, texel);
+		
+		// The old context took the textures with it, and their pixels were released
+		// after upload, so they are loaded again
+		synchronized (this) {
+			for (TextureInfo info : mResidentList.values()) {
+				info.mGlId = -1;
+				info.mAlphaGlId = -1;
+				info.mBytes = 0;
+				requestLoad(info);
+			}
+			mResidentList.clear();
+			mTotalBytes = 0;
+		}
+	}
+	
+	/**
+	 * Starts a new frame for the least recently used bookkeeping, call before drawing.
+	 */
+	public void beginFrame() {
+		++mFrame;
+	}
+	
+	/**
+	 * Uploads decoded textures until about budget bytes have gone to GL, at least one
+	 * texture is uploaded if any is waiting. Older textures are evicted first when the
+	 * memory budget would be exceeded. Returns the number of bytes uploaded.
+	 */
+	public int uploadTextures(int budget) {
+		makeRoom(0);
+		
+		int uploaded = 0;
+		TextureInfo info;
+		while (uploaded < budget && (info = mReadyList.poll()) != null) {
+			TextureContainer container = info.mContainer;
+			Bitmap bitmap = info.mBitmap;
+			int bytes = 0;
+			if (container != null) {
+				bytes = mEtc1Supported ? container.getByteSize() : container.getWidth() * container.getHeight() *
+						(container.hasAlphaPlane() ? 4 : 2) * 4 / 3;
+			}
+			else if (bitmap != null) {
+				bytes = bitmap.getRowBytes() * bitmap.getHeight();
+				if (isPowerOfTwo(bitmap.getWidth(), bitmap.getHeight()))
+					bytes = bytes * 4 / 3;
+			}
+			
+			if (info.mGlId == -1 && bytes > 0) {
+				makeRoom(bytes);
+				if (container != null) {
+					info.mGlId = uploadContainer(container, false);
+					info.mAlphaGlId = container.hasAlphaPlane() ? uploadContainer(container, true) : -1;
+				}
+				else
+					info.mGlId = uploadBitmap(bitmap);
+				setTranslucent(info.mId, container != null ? container.hasAlphaPlane() : bitmap.hasAlpha());
+				info.mBytes = bytes;
+				info.mLastUsedFrame = mFrame;
+				uploaded += bytes;
+			}
+			
+			// GL has its own copy now
+			if (bitmap != null)
+				bitmap.recycle();
+			info.mBitmap = null;
+			info.mContainer = null;
+			
+			synchronized (this) {
+				info.mLoading = false;
+				if (info.mGlId != -1 && !mResidentList.containsKey(info.mId)) {
+					mResidentList.put(info.mId, info);
+					mTotalBytes += bytes;
+				}
 			}
 		}
+		return uploaded;
 	}
 	
-	public int getGlTextureId(int id) {
+	/**
+	 * Evicts the least recently used textures until bytes more fit in the budget.
+	 * Textures drawn in the last two frames are kept, even if that overshoots it.
+	 */
+	private synchronized void makeRoom(int bytes) {
+		Iterator<TextureInfo> it = mResidentList.values().iterator();
+		while (mTotalBytes + bytes > mMemoryBudget && it.hasNext()) {
+			TextureInfo info = it.next();
+			if (info.mLastUsedFrame >= mFrame - 1)
+				break;
+			
+			int[] glIds = { info.mGlId, info.mAlphaGlId };
+			mGL.glDeleteTextures(info.mAlphaGlId != -1 ? 2 : 1, glIds, 0);
+			if (EnvironmentSettings.DEBUG)
+				ZebraLog.d("texman", "Evicted " + info.mFilename + ", unused for " + (mFrame - info.mLastUsedFrame) +
+						" frames");
+			
+			mTotalBytes -= info.mBytes;
+			info.mGlId = -1;
+			info.mAlphaGlId = -1;
+			info.mBytes = 0;
+			it.remove();
+			++mEvictions;
+		}
+	}
+	
+	private int uploadContainer(TextureContainer container, boolean alpha) {
+		int levels = container.getLevelCount();
+		int glId = genTexture();
+		setParameters(levels > 1, isPowerOfTwo(container.getWidth(), container.getHeight()));
+		
+		for (int level = 0; level < levels; level++) {
+			int width = container.getLevelWidth(level);
+			int height = container.getLevelHeight(level);
+			ByteBuffer data = alpha ? container.getAlphaLevel(level) : container.getLevel(level);
+			if (mEtc1Supported) {
+				mGL.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, level, container.getFormat(), width, height,
+						0, data.capacity(), data);
+			}
+			else {
+				// ETC1 is optional in GLES2, decode it in software instead
+				mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, level, GLES20.GL_RGB, width, height, 0, GLES20.GL_RGB,
+						GLES20.GL_UNSIGNED_SHORT_5_6_5, Etc1Codec.decodeImage565(data, width, height));
+			}
+		}
+		return glId;
+	}
+	
+	/**
+	 * Mipmaps are generated on the GPU, GLES2 only allows them for power of two sizes.
+	 */
+	private int uploadBitmap(Bitmap bitmap) {
+		boolean powerOfTwo = isPowerOfTwo(bitmap.getWidth(), bitmap.getHeight());
+		int glId = genTexture();
+		setParameters(powerOfTwo, powerOfTwo);
+		mGL.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+		if (powerOfTwo)
+			mGL.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+		return glId;
+	}
+	
+	/**
+	 * Same test as ETC1Util.isETC1Supported, through the backend.
+	 */
+	private boolean isEtc1Supported() {
+		int[] count = new int[1];
+		mGL.glGetIntegerv(GLES20.GL_NUM_COMPRESSED_TEXTURE_FORMATS, count, 0);
+		int[] formats = new int[Math.max(count[0], 1)];
+		mGL.glGetIntegerv(GLES20.GL_COMPRESSED_TEXTURE_FORMATS, formats, 0);
+		for (int i = 0; i < count[0]; i++) {
+			if (formats[i] == Etc1Codec.ETC1_RGB8_OES)
+				return true;
+		}
+		return false;
+	}
+	
+	private int genTexture() {
+		int[] glTextures = new int[1];
+		mGL.glGenTextures(	1, glTextures, 0);
+		mGL.glBindTexture(	GLES20.GL_TEXTURE_2D, glTextures[0]);
+		return glTextures[0];
+	}
+	
+	private static boolean isPowerOfTwo(int width, int height) {
+		return (width & (width - 1)) == 0 && (height & (height - 1)) == 0;
+	}
+	
+	/**
+	 * Non power of two textures can't repeat in GLES2.
+	 */
+	private void setParameters(boolean mipmapped, boolean repeat) {
+		mGL.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+								GLES20.GL_LINEAR);
+		mGL.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+								mipmapped ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+		mGL.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+								repeat ? GLES20.GL_REPEAT : GLES20.GL_CLAMP_TO_EDGE);
+		mGL.glTexParameterf(	GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+								repeat ? GLES20.GL_REPEAT : GLES20.GL_CLAMP_TO_EDGE);
+	}
+	
+	/**
+	 * GL texture to draw with this frame, marks the texture as used. An evicted texture
+	 * is loaded again and the placeholder drawn in the meantime.
+	 */
+	public synchronized int useTexture(int id) {
 		TextureInfo info = mTextureInfoList.get(id);
-		return info != null ? info.mGlId : -1;
+		if (info == null)
+			return -1;
+		
+		if (info.mGlId != -1) {
+			// Once per frame is enough to keep the order
+			if (info.mLastUsedFrame != mFrame) {
+				info.mLastUsedFrame = mFrame;
+				mResidentList.get(id);
+			}
+			++mHits;
+			return info.mGlId;
+		}
+		
+		++mMisses;
+		if (!info.mLoading && !info.mFailed)
+			requestLoad(info);
+		return mPlaceholderId;
+	}
+	
+	/**
+	 * Textures still loading, or that failed to, answer with the placeholder.
+	 */
+	public synchronized int getGlTextureId(int id) {
+		TextureInfo info = mTextureInfoList.get(id);
+		if (info == null)
+			return -1;
+		return info.mGlId != -1 ? info.mGlId : mPlaceholderId;
+	}
+	
+	/**
+	 * What the alpha sampler of the texture reads: the separate alpha of a compressed
+	 * texture, otherwise the white placeholder so the alpha of the texture itself counts.
+	 * Call after useTexture.
+	 */
+	public synchronized int getGlAlphaTextureId(int id) {
+		TextureInfo info = mTextureInfoList.get(id);
+		return info != null && info.mGlId != -1 && info.mAlphaGlId != -1 ? info.mAlphaGlId : mPlaceholderId;
+	}
+	
+	/**
+	 * Whether the texture has alpha to blend with, known once it is uploaded.
+	 * Any thread, no locking.
+	 */
+	public boolean isTranslucent(int id) {
+		boolean[] translucent = mTranslucent;
+		return id >= 0 && id < translucent.length && translucent[id];
+	}
+	
+	private synchronized void setTranslucent(int id, boolean translucent) {
+		boolean[] flags = Arrays.copyOf(mTranslucent, Math.max(mTranslucent.length, id + 1));
+		flags[id] = translucent;
+		mTranslucent = flags;
+	}
+	
+	/**
+	 * GL memory used by a texture, 0 until it is uploaded.
+	 */
+	public synchronized int getTextureMemory(int id) {
+		TextureInfo info = mTextureInfoList.get(id);
+		return info != null ? info.mBytes : 0;
+	}
+	
+	public synchronized int getTotalTextureMemory() {
+		return mTotalBytes;
+	}
+	
+	/**
+	 * Lookups through useTexture that found the texture resident.
+	 */
+	public synchronized int getHits() {
+		return mHits;
+	}
+	
+	/**
+	 * Lookups through useTexture that had to fall back to the placeholder.
+	 */
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+	
+	public synchronized int getEvictions() {
+		return mEvictions;
+	}
+	
+	public synchronized void resetStatistics() {
+		mHits		= 0;
+		mMisses		= 0;
+		mEvictions	= 0;
+	}
+	
+	/**
+	 * Whether any decoded texture is still waiting for its upload.
+	 */
+	public boolean hasPendingUploads() {
+		return !mReadyList.isEmpty();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+package com.xyz.resources;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.xyz.graphics.Model;
+
+/**
+ * Parses whitespace separated numbers straight from the parser's character events.
+ * Values are collected in scratch arrays that are reused between elements, so the only
+ * allocation per element is the resulting buffer.
+ */
+public final class ValueScanner {
+	
+	private static final int MODE_FLOAT	= 0;
+	private static final int MODE_SHORT	= 1;
+	private static final int MODE_INDEX	= 2;
+	
+	// Mantissas above this go through Float.parseFloat to keep its rounding
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	private final int[] mHolder;
+	private char[]	mToken;
+	private int		mTokenLength;
+	private float[]	mFloats;
+	private int[]	mInts;
+	private int		mCount;
+	
+	// Location of the token being built, for error reports
+	private int		mMode;
+	private String	mElement;
+	private int		mLine;
+	private int		mTokenLine;
+	
+	public ValueScanner() {
+		mHolder		= new int[2];
+		mToken		= new char[32];
+		mFloats		= new float[1024];
+		mInts		= new int[1024];
+	}
+	
+	/**
+	 * Reads the text of the current element as floats, leaving the parser on its end tag.
+	 */
+	public FloatBuffer readFloats(XmlPullParser parser) throws XmlPullParserException, IOException {
+		scanElement(parser, MODE_FLOAT);
+		FloatBuffer buffer = Model.newFloatBuffer(mCount);
+		buffer.put(mFloats, 0, mCount);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	public float[] readFloatArray(XmlPullParser parser) throws XmlPullParserException, IOException {
+		scanElement(parser, MODE_FLOAT);
+		return Arrays.copyOf(mFloats, mCount);
+	}
+	
+	/**
+	 * Values from -32768 to 65535, the upper half stored as unsigned shorts are.
+	 */
+	public ShortBuffer readShorts(XmlPullParser parser) throws XmlPullParserException, IOException {
+		scanElement(parser, MODE_SHORT);
+		ShortBuffer buffer = Model.newShortBuffer(mCount);
+		for (int i = 0; i < mCount; i++)
+			buffer.put((short)mInts[i]);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	/**
+	 * Non negative ints, for indices of any width.
+	 */
+	public IntBuffer readIndices(XmlPullParser parser) throws XmlPullParserException, IOException {
+		scanElement(parser, MODE_INDEX);
+		IntBuffer buffer = Model.newIntBuffer(mCount);
+		buffer.put(mInts, 0, mCount);
+		buffer.position(0);
+		return buffer;
+	}
+	
+	private void scanElement(XmlPullParser parser, int mode) throws XmlPullParserException, IOException {
+		mMode			= mode;
+		mElement		= parser.getName();
+		mLine			= parser.getLineNumber();
+		mCount			= 0;
+		mTokenLength	= 0;
+		
+		int eventType;
+		while ((eventType = parser.next()) != XmlPullParser.END_TAG) {
+			if (eventType == XmlPullParser.TEXT) {
+				char[] text = parser.getTextCharacters(mHolder);
+				scan(text, mHolder[0], mHolder[1]);
+			}
+			else if (eventType == XmlPullParser.START_TAG || eventType == XmlPullParser.END_DOCUMENT)
+				throw new XmlPullParserException("Unexpected content in <" + mElement + ">", parser, null);
+		}
+		
+		endToken();
+	}
+	
+	/**
+	 * Text may arrive in several events, so a token can span two calls.
+	 */
+	private void scan(char[] text, int start, int length) {
+		int end = start + length;
+		for (int i = start; i < end; i++) {
+			char c = text[i];
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				endToken();
+				if (c == '\n')
+					++mLine;
+			}
+			else {
+				if (mTokenLength == 0)
+					mTokenLine = mLine;
+				if (mTokenLength == mToken.length)
+					mToken = Arrays.copyOf(mToken, mTokenLength * 2);
+				mToken[mTokenLength++] = c;
+			}
+		}
+	}
+	
+	private void endToken() {
+		if (mTokenLength == 0)
+			return;
+		
+		if (mMode == MODE_FLOAT) {
+			if (mCount == mFloats.length)
+				mFloats = Arrays.copyOf(mFloats, mCount * 2);
+			mFloats[mCount] = parseFloat(mToken, mTokenLength);
+		}
+		else {
+			if (mCount == mInts.length)
+				mInts = Arrays.copyOf(mInts, mCount * 2);
+			mInts[mCount] = mMode == MODE_SHORT ? parseInt(mToken, mTokenLength, Short.MIN_VALUE, 0xFFFF, "short") :
+				parseInt(mToken, mTokenLength, 0, Integer.MAX_VALUE, "index");
+		}
+		
+		++mCount;
+		mTokenLength = 0;
+	}
+	
+	private float parseFloat(char[] token, int length) {
+		int i = 0;
+		boolean negative = token[0] == '-';
+		if (negative || token[0] == '+')
+			++i;
+		
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean exact = true;
+		
+		for (; i < length && token[i] >= '0' && token[i] <= '9'; i++, digits++) {
+			mantissa = mantissa * 10 + (token[i] - '0');
+			exact &= mantissa < MAX_EXACT_MANTISSA;
+		}
+		if (i < length && token[i] == '.') {
+			for (++i; i < length && token[i] >= '0' && token[i] <= '9'; i++, digits++) {
+				mantissa = mantissa * 10 + (token[i] - '0');
+				exact &= mantissa < MAX_EXACT_MANTISSA;
+				--exponent;
+			}
+		}
+		if (i < length && digits > 0 && (token[i] == 'e' || token[i] == 'E')) {
+			int j = i + 1;
+			boolean negativeExp = j < length && token[j] == '-';
+			if (negativeExp || (j < length && token[j] == '+'))
+				++j;
+			int exp = 0;
+			int expStart = j;
+			for (; j < length && token[j] >= '0' && token[j] <= '9' && exp < 10000; j++)
+				exp = exp * 10 + (token[j] - '0');
+			if (j > expStart) {
+				exponent += negativeExp ? -exp : exp;
+				i = j;
+			}
+		}
+		
+		if (digits > 0 && i == length && exact && exponent >= -22 && exponent <= 22) {
+			// Both operands are exact doubles, so the double result is correctly rounded.
+			// Narrowing is then exact unless it lands on a float halfway point.
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] :
+				mantissa * POWERS_OF_TEN[exponent];
+			float result = (float)value;
+			if (result == value || !isHalfway(result, value))
+				return negative ? -result : result;
+		}
+		
+		// Uncommon forms (NaN, Infinity, hex, long mantissas) and halfway cases
+		String value = new String(token, 0, length);
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			throw badToken("float", value);
+		}
+	}
+	
+	private static boolean isHalfway(float rounded, double value) {
+		float other = Math.nextAfter(rounded, value);
+		return (value - rounded) == (other - value);
+	}
+	
+	private int parseInt(char[] token, int length, int min, int max, String type) {
+		int i = 0;
+		boolean negative = token[0] == '-';
+		if (negative || token[0] == '+')
+			++i;
+		
+		long value = 0;
+		int start = i;
+		for (; i < length && token[i] >= '0' && token[i] <= '9' && value <= max + 1L; i++)
+			value = value * 10 + (token[i] - '0');
+		
+		if (negative)
+			value = -value;
+		if (i == start || i != length || value < min || value > max)
+			throw badToken(type, new String(token, 0, length));
+		
+		return (int)value;
+	}
+	
+	private NumberFormatException badToken(String type, String token) {
+		return new NumberFormatException("Can't convert '" + token + "' to " + type + " in <" +
+				mElement + "> at line " + mTokenLine + ", value " + mCount);
+	}
+}
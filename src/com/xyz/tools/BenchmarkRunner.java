@@ -0,0 +1,85 @@
+package com.xyz.tools;
+
+/**
+ * Small JMH style harness for the tool benchmarks: every case is calibrated to a batch
+ * of operations taking about ITERATION_TIME, run for a few warm-up batches so the JIT
+ * settles, then timed over several measured batches. Results are consumed into a sink
+ * so the JIT can't drop the work.
+ */
+final class BenchmarkRunner {
+	
+	interface Case {
+		/**
+		 * Runs the operation count times, returns anything derived from the results.
+		 */
+		long run(int count) throws Exception;
+	}
+	
+	private static final long ITERATION_TIME = 200 * 1000 * 1000L;
+	
+	static volatile long sSink;
+	
+	private final int mWarmups;
+	private final int mIterations;
+	private final String mFilter;
+	
+	BenchmarkRunner(int warmups, int iterations, String filter) {
+		mWarmups	= warmups;
+		mIterations	= iterations;
+		mFilter		= filter;
+	}
+	
+	static void printHeader() {
+		System.out.println(String.format("%-40s %12s %10s %12s", "benchmark", "us/op", "error", "ops/s"));
+	}
+	
+	/**
+	 * Prints the mean time per operation with a 99.9% interval over the measured batches
+	 * and returns the mean in microseconds, 0 when filtered out.
+	 */
+	double measure(String name, Case body) throws Exception {
+		if (mFilter != null && !name.contains(mFilter))
+			return 0;
+		
+		// Grow the batch until it takes long enough to time
+		int count = 1;
+		while (true) {
+			long start = System.nanoTime();
+			sSink += body.run(count);
+			long time = System.nanoTime() - start;
+			if (time >= ITERATION_TIME / 4 || count >= 1 << 28) {
+				count = (int)Math.max(1, Math.min(1L << 28, count * ITERATION_TIME / Math.max(time, 1)));
+				break;
+			}
+			count *= 4;
+		}
+		
+		for (int i = 0; i < mWarmups; i++)
+			sSink += body.run(count);
+		
+		double[] times = new double[mIterations];
+		for (int i = 0; i < mIterations; i++) {
+			long start = System.nanoTime();
+			sSink += body.run(count);
+			times[i] = (System.nanoTime() - start) / 1000.0 / count;
+		}
+		
+		double mean = 0;
+		for (double time : times)
+			mean += time;
+		mean /= times.length;
+		double variance = 0;
+		for (double time : times)
+			variance += (time - mean) * (time - mean);
+		double error = times.length > 1 ? STUDENT_999[Math.min(times.length - 2, STUDENT_999.length - 1)] *
+				Math.sqrt(variance / (times.length - 1) / times.length) : 0;
+		
+		System.out.println(String.format("%-40s %12.3f %10.3f %12.0f", name, mean, error, 1e6 / mean));
+		return mean;
+	}
+	
+	// Two sided 99.9% Student t for 1 to 10 degrees of freedom, the normal value past that
+	private static final double[] STUDENT_999 = {
+		636.6, 31.60, 12.92, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 3.291
+	};
+}
@@ -0,0 +1,93 @@
+package com.xyz.tools;
+
+import java.util.Random;
+
+import com.xyz.graphics.Frustum;
+import com.xyz.graphics.SceneIndex;
+
+/**
+ * Compares SceneIndex frustum queries against a flat sphere scan.
+ *
+ * Usage: CullingBenchmark [instances...], defaults to 1000 10000 100000
+ */
+public final class CullingBenchmark {
+	
+	private static final float WORLD_SIZE	= 1000.0f;
+	private static final int ITERATIONS		= 200;
+	
+	private CullingBenchmark() {
+	}
+	
+	public static void main(String[] args) {
+		int[] sizes = { 1000, 10000, 100000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		
+		System.out.println("instances\tvisible\tindexed\tscan us\tindex us\tspeedup");
+		for (int size : sizes)
+			run(size);
+	}
+	
+	private static void run(int count) {
+		Random random = new Random(count);
+		float[] spheres = new float[count * 4];
+		SceneIndex index = new SceneIndex(count);
+		for (int i = 0; i < count; i++) {
+			spheres[i * 4]		= (random.nextFloat() - 0.5f) * WORLD_SIZE;
+			spheres[i * 4 + 1]	= (random.nextFloat() - 0.5f) * WORLD_SIZE;
+			spheres[i * 4 + 2]	= (random.nextFloat() - 0.5f) * WORLD_SIZE;
+			spheres[i * 4 + 3]	= 0.5f + random.nextFloat() * 2.0f;
+			index.add(spheres[i * 4], spheres[i * 4 + 1], spheres[i * 4 + 2], spheres[i * 4 + 3]);
+		}
+		index.build();
+		
+		// Camera at the origin looking down -z with a 60 degree field of view
+		Frustum frustum = new Frustum();
+		frustum.set(perspective(60.0f, 1.5f, 1.0f, WORLD_SIZE * 0.25f));
+		
+		int visible = 0;
+		int indexed = 0;
+		long scanTime = 0;
+		long indexTime = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			// First pass warms up the JIT
+			long start = System.nanoTime();
+			for (int it = 0; it < ITERATIONS; it++) {
+				visible = 0;
+				for (int i = 0; i < count * 4; i += 4) {
+					if (frustum.intersectsSphere(spheres[i], spheres[i + 1], spheres[i + 2], spheres[i + 3]))
+						++visible;
+				}
+			}
+			scanTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int it = 0; it < ITERATIONS; it++)
+				indexed = index.query(frustum);
+			indexTime = System.nanoTime() - start;
+		}
+		
+		double scan = scanTime / 1000.0 / ITERATIONS;
+		double query = indexTime / 1000.0 / ITERATIONS;
+		// The index tests boxes around the spheres, so it may keep a few more
+		System.out.println(String.format("%d\t%d\t%d\t%.1f\t%.1f\t%.1fx", count, visible, indexed, scan, query,
+				scan / query));
+	}
+	
+	/**
+	 * Same layout as android.opengl.Matrix.perspectiveM, which isn't usable off device.
+	 */
+	private static float[] perspective(float fovy, float aspect, float near, float far) {
+		float f = 1.0f / (float)Math.tan(Math.toRadians(fovy) / 2.0);
+		float[] m = new float[16];
+		m[0]	= f / aspect;
+		m[5]	= f;
+		m[10]	= (far + near) / (near - far);
+		m[11]	= -1.0f;
+		m[14]	= 2.0f * far * near / (near - far);
+		return m;
+	}
+}
@@ -0,0 +1,344 @@
+package com.xyz.tools;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.InstanceStore;
+import com.xyz.graphics.MatrixMath;
+import com.xyz.graphics.Model;
+import com.xyz.graphics.RecordingBackend;
+import com.xyz.graphics.ZebraRender;
+import com.xyz.resources.EffectManager;
+import com.xyz.resources.ModelHandler;
+import com.xyz.resources.ResourceResolver;
+import com.xyz.resources.TextureManager;
+import com.xyz.resources.ValueScanner;
+
+/**
+ * Baseline timings of the loading, math and submission hot paths, to compare between
+ * builds on the same machine:
+ *
+ * load:	ModelHandler on generated documents of 10, 100 and 1000 meshes
+ * parse:	ValueScanner floats and shorts
+ * compose:	instance model and MVP matrices, after moves and after camera changes, and
+ *			the same moves on an InstanceStore
+ * update:	SceneUpdater culling, sorting and command list building
+ * submit:	ZebraRender replaying a command list into a RecordingBackend
+ *
+ * Usage: HotPathBenchmark [-quick] [-assets dir] [filter]
+ *
+ * Needs an XmlPullParser implementation (kxml2) on the classpath, like ModelCompiler,
+ * and the assets directory for the shaders and textures used by submit.
+ */
+public final class HotPathBenchmark {
+	
+	private static final int[] SCENE_SIZES		= { 10, 100, 1000 };
+	private static final int[] VALUE_COUNTS		= { 1000, 100000 };
+	private static final int[] INSTANCE_COUNTS	= { 100, 1000, 10000 };
+	
+	private static final String[] TEXTURES = { "images/book.png", "images/cellular.png", "images/texture.png" };
+	
+	private HotPathBenchmark() {
+	}
+	
+	public static void main(String[] args) throws Exception {
+		ZebraLog.useStandardError();
+		boolean quick = false;
+		File assets = new File("assets");
+		String filter = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-quick"))
+				quick = true;
+			else if (args[i].equals("-assets"))
+				assets = new File(args[++i]);
+			else
+				filter = args[i];
+		}
+		
+		BenchmarkRunner runner = quick ? new BenchmarkRunner(2, 3, filter) : new BenchmarkRunner(5, 10, filter);
+		BenchmarkRunner.printHeader();
+		for (int size : SCENE_SIZES)
+			runner.measure("load meshes=" + size, loadCase(size));
+		for (int values : VALUE_COUNTS) {
+			runner.measure("parse floats=" + values, parseCase("Vertices", values));
+			runner.measure("parse shorts=" + values, parseCase("Indices", values));
+		}
+		for (int instances : INSTANCE_COUNTS) {
+			runner.measure("compose moved instances=" + instances, composeMovedCase(instances));
+			runner.measure("compose camera instances=" + instances, composeCameraCase(instances));
+			runner.measure("compose store moved instances=" + instances, composeStoreCase(instances));
+		}
+		for (int instances : INSTANCE_COUNTS) {
+			ZebraRender renderer = renderer(assets, instances);
+			runner.measure("update instances=" + instances, updateCase(renderer));
+			runner.measure("submit instances=" + instances, submitCase(renderer));
+		}
+	}
+	
+	/*
+	 * The cases are built one at a time so the JMH module in benchmarks/ can wrap them
+	 * as they are.
+	 */
+	
+	static BenchmarkRunner.Case loadCase(int meshes) throws Exception {
+		final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		final ResourceResolver resolver = new ResourceResolver() {
+			public int resolveTexture(String filename) {
+				return -1;
+			}
+			
+			public int resolveEffect(String vertexFilename, String fragmentFilename) {
+				return -1;
+			}
+		};
+		final String document = generateDocument(meshes, new Random(meshes));
+		
+		return new BenchmarkRunner.Case() {
+			public long run(int count) throws Exception {
+				long result = 0;
+				for (int i = 0; i < count; i++) {
+					XmlPullParser parser = factory.newPullParser();
+					parser.setInput(new StringReader(document));
+					result += ModelHandler.read(parser, resolver).size();
+				}
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Vertices are read as floats, Indices as shorts.
+	 */
+	static BenchmarkRunner.Case parseCase(final String tag, int values) throws Exception {
+		final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		final ValueScanner scanner = new ValueScanner();
+		final boolean floats = tag.equals("Vertices");
+		Random random = new Random(values);
+		
+		StringBuilder text = new StringBuilder("<" + tag + ">");
+		for (int i = 0; i < values; i++) {
+			if (floats)
+				text.append(' ').append((random.nextInt(2000000) - 1000000) / 10000.0f);
+			else
+				text.append(' ').append(random.nextInt(65536));
+		}
+		final String document = text.append("</" + tag + ">").toString();
+		
+		return new BenchmarkRunner.Case() {
+			public long run(int count) throws Exception {
+				long result = 0;
+				for (int i = 0; i < count; i++) {
+					XmlPullParser parser = factory.newPullParser();
+					parser.setInput(new StringReader(document));
+					parser.nextTag();
+					result += floats ? scanner.readFloats(parser).limit() : scanner.readShorts(parser).limit();
+				}
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Times are per frame: every instance moved and composed once.
+	 */
+	static BenchmarkRunner.Case composeMovedCase(int instances) {
+		final float[] viewProjection = camera();
+		final ArrayList<Model.Instance> list = instances(instances);
+		
+		return new BenchmarkRunner.Case() {
+			private int mVersion;
+			
+			public long run(int count) {
+				long result = 0;
+				for (int i = 0; i < count; i++) {
+					for (int j = 0; j < list.size(); j++) {
+						Model.Instance instance = list.get(j);
+						float[] rotation = instance.getRotation();
+						instance.setRotation(rotation[0], rotation[1] + 1.0f, rotation[2]);
+						result += (long)instance.getMVPMatrix(viewProjection, mVersion)[12];
+					}
+				}
+				return result;
+			}
+		};
+	}
+	
+	static BenchmarkRunner.Case composeCameraCase(int instances) {
+		final float[] viewProjection = camera();
+		final ArrayList<Model.Instance> list = instances(instances);
+		
+		return new BenchmarkRunner.Case() {
+			private int mVersion;
+			
+			public long run(int count) {
+				long result = 0;
+				for (int i = 0; i < count; i++) {
+					++mVersion;
+					for (int j = 0; j < list.size(); j++)
+						result += (long)list.get(j).getMVPMatrix(viewProjection, mVersion)[12];
+				}
+				return result;
+			}
+		};
+	}
+	
+	static BenchmarkRunner.Case composeStoreCase(int instances) {
+		final float[] viewProjection = camera();
+		final InstanceStore store = cube("store").getInstanceStore();
+		for (Model.Instance instance : instances(instances))
+			store.add(-1, -1, instance.getTranslation(), instance.getRotation(), instance.getScale());
+		
+		return new BenchmarkRunner.Case() {
+			private int mVersion;
+			
+			public long run(int count) {
+				float[] transforms = store.getTransforms();
+				for (int i = 0; i < count; i++) {
+					for (int slot = 0; slot < store.size(); slot++) {
+						transforms[slot * InstanceStore.TRANSFORM_STRIDE + InstanceStore.ROTATION + 1] += 1.0f;
+						store.markDirty(slot);
+					}
+					store.update(viewProjection, mVersion);
+				}
+				return (long)store.getMVPMatrices()[12];
+			}
+		};
+	}
+	
+	/**
+	 * Renderer past its first frames on a RecordingBackend, for updateCase and submitCase.
+	 */
+	static ZebraRender renderer(File assets, int instances) {
+		TextureManager textureManager = TextureManager.createInstance(null);
+		EffectManager effectManager = EffectManager.createInstance(null);
+		textureManager.setAssetDirectory(assets);
+		effectManager.setAssetDirectory(assets);
+		
+		// A few models and textures, so sorting and state changes have something to do
+		ArrayList<Model> models = new ArrayList<Model>();
+		Random random = new Random(instances);
+		for (int m = 0; m < 4; m++) {
+			Model model = cube("model" + m);
+			for (String texture : TEXTURES)
+				addInstances(model, instances / 12, textureManager.createTexture(texture), random);
+			models.add(model);
+		}
+		
+		ZebraRender renderer = new ZebraRender(null, models, textureManager, effectManager, new RecordingBackend());
+		renderer.onSurfaceCreated(null, null);
+		renderer.onSurfaceChanged(null, 800, 480);
+		for (int i = 0; i < 8; i++) {
+			renderer.getSceneUpdater().update();
+			renderer.onDrawFrame(null);
+		}
+		return renderer;
+	}
+	
+	static BenchmarkRunner.Case updateCase(final ZebraRender renderer) {
+		return new BenchmarkRunner.Case() {
+			public long run(int count) {
+				for (int i = 0; i < count; i++)
+					renderer.getSceneUpdater().update();
+				return renderer.getDrawCalls();
+			}
+		};
+	}
+	
+	static BenchmarkRunner.Case submitCase(final ZebraRender renderer) {
+		return new BenchmarkRunner.Case() {
+			public long run(int count) {
+				long result = 0;
+				for (int i = 0; i < count; i++) {
+					renderer.onDrawFrame(null);
+					result += renderer.getDrawCalls();
+				}
+				return result;
+			}
+		};
+	}
+	
+	private static ArrayList<Model.Instance> instances(int count) {
+		Model model = cube("compose");
+		addInstances(model, count, -1, new Random(count));
+		ArrayList<Model.Instance> list = new ArrayList<Model.Instance>();
+		for (Model.Instance instance : model.getInstances())
+			list.add(instance);
+		return list;
+	}
+	
+	private static float[] camera() {
+		float[] projection = new float[16];
+		float[] view = new float[16];
+		float[] viewProjection = new float[16];
+		MatrixMath.frustumM(projection, 0, -1.667f, 1.667f, -1, 1, 3, 7);
+		MatrixMath.setLookAtM(view, 0, 0, 0, -5, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+		MatrixMath.multiplyMM(viewProjection, 0, projection, 0, view, 0);
+		return viewProjection;
+	}
+	
+	private static Model cube(String name) {
+		float[] vertices = new float[8 * 3];
+		float[] uvs = new float[8 * 2];
+		for (int v = 0; v < 8; v++) {
+			vertices[v * 3]		= (v & 1) != 0 ? 1.0f : -1.0f;
+			vertices[v * 3 + 1]	= (v & 2) != 0 ? 1.0f : -1.0f;
+			vertices[v * 3 + 2]	= (v & 4) != 0 ? 1.0f : -1.0f;
+			uvs[v * 2]			= v & 1;
+			uvs[v * 2 + 1]		= (v >> 1) & 1;
+		}
+		short[] indices = {
+			0, 2, 1, 1, 2, 3,	4, 5, 6, 5, 7, 6,	0, 1, 4, 1, 5, 4,
+			2, 6, 3, 3, 6, 7,	0, 4, 2, 2, 4, 6,	1, 3, 5, 3, 7, 5
+		};
+		return new Model(name, vertices, null, null, uvs, indices);
+	}
+	
+	/**
+	 * Spread around the camera's view, some of them outside it.
+	 */
+	private static void addInstances(Model model, int count, int texture, Random random) {
+		for (int i = 0; i < count; i++) {
+			float[] translation = {
+				(random.nextFloat() - 0.5f) * 8.0f, (random.nextFloat() - 0.5f) * 4.0f, (random.nextFloat() - 0.5f) * 4.0f
+			};
+			float[] rotation = { random.nextFloat() * 360.0f, random.nextFloat() * 360.0f, 0.0f };
+			model.createInstance("i" + i, texture, -1, translation, rotation, new float[] { 0.05f, 0.05f, 0.05f });
+		}
+	}
+	
+	/**
+	 * Meshes of 24 to 200 vertices with a couple of instances each, in the model file format.
+	 */
+	private static String generateDocument(int meshes, Random random) {
+		StringBuilder text = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<Model>\n<Meshes>\n");
+		for (int m = 0; m < meshes; m++) {
+			int vertices = 24 + random.nextInt(177);
+			text.append("<Mesh name=\"mesh").append(m).append("\">\n<Vertices>");
+			for (int i = 0; i < vertices * 3; i++)
+				text.append(' ').append((random.nextInt(20000) - 10000) / 1000.0f);
+			text.append("</Vertices>\n<Normals>");
+			for (int i = 0; i < vertices * 3; i++)
+				text.append(' ').append((random.nextInt(2000) - 1000) / 1000.0f);
+			text.append("</Normals>\n<TexUV>");
+			for (int i = 0; i < vertices * 2; i++)
+				text.append(' ').append(random.nextInt(1000) / 1000.0f);
+			text.append("</TexUV>\n<Indices>");
+			for (int i = 0; i < (vertices - 2) * 3; i++)
+				text.append(' ').append(random.nextInt(vertices));
+			text.append("</Indices>\n<Instances>\n");
+			for (int i = 0; i < 2; i++) {
+				text.append("<Instance name=\"i").append(i).append("\">");
+				text.append("<Translation>").append(i).append(" 0.0 -8.0</Translation>");
+				text.append("<Rotation>0.0 0.0 0.0</Rotation><Scale>1.0 1.0 1.0</Scale></Instance>\n");
+			}
+			text.append("</Instances>\n</Mesh>\n");
+		}
+		return text.append("</Meshes>\n</Model>\n").toString();
+	}
+}
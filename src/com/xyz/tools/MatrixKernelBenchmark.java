@@ -0,0 +1,143 @@
+package com.xyz.tools;
+
+import java.util.Random;
+
+import com.xyz.graphics.InstanceStore;
+import com.xyz.graphics.MatrixKernel;
+import com.xyz.graphics.MatrixMath;
+import com.xyz.graphics.ScalarMatrixKernel;
+
+/**
+ * Checks the vector MatrixKernel against the scalar one and times both, in millions of
+ * matrices per second for each batch operation.
+ *
+ * Usage: MatrixKernelBenchmark [-quick] [count]
+ *
+ * count matrices per batch, 100000 by default. The vector kernel needs the desktop
+ * build and --add-modules jdk.incubator.vector (see VectorMatrixKernel), without it only
+ * the scalar kernel is timed. Exits with 1 when the kernels disagree by more than
+ * EPSILON, relative to the size of the values.
+ */
+public final class MatrixKernelBenchmark {
+	
+	private static final float EPSILON = 1e-5f;
+	
+	private MatrixKernelBenchmark() {
+	}
+	
+	public static void main(String[] args) throws Exception {
+		boolean quick = false;
+		int count = 100000;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-quick"))
+				quick = true;
+			else
+				count = Integer.parseInt(args[i]);
+		}
+		
+		Random random = new Random(1);
+		float[] transforms = new float[count * InstanceStore.TRANSFORM_STRIDE];
+		for (int i = 0; i < count; i++) {
+			int t = i * InstanceStore.TRANSFORM_STRIDE;
+			for (int axis = 0; axis < 3; axis++) {
+				transforms[t + InstanceStore.TRANSLATION + axis]	= (random.nextFloat() - 0.5f) * 200.0f;
+				transforms[t + InstanceStore.ROTATION + axis]		= (random.nextFloat() - 0.5f) * 720.0f;
+				transforms[t + InstanceStore.SCALE + axis]			= 0.1f + random.nextFloat() * 4.0f;
+			}
+		}
+		float[] viewProjection = new float[16];
+		for (int i = 0; i < 16; i++)
+			viewProjection[i] = (random.nextFloat() - 0.5f) * 2.0f;
+		float[] sphere = { 0.25f, -0.5f, 1.0f, 1.5f };
+		
+		MatrixKernel scalar = new ScalarMatrixKernel();
+		MatrixKernel vector = MatrixMath.loadVectorKernel();
+		System.out.println("selected kernel: " + MatrixMath.getKernel().getName());
+		
+		boolean valid = true;
+		if (vector != null)
+			valid = validate(scalar, vector, transforms, viewProjection, sphere, count);
+		else
+			System.out.println("no vector kernel, validation skipped");
+		
+		BenchmarkRunner runner = quick ? new BenchmarkRunner(2, 3, null) : new BenchmarkRunner(5, 10, null);
+		BenchmarkRunner.printHeader();
+		benchmark(runner, scalar, transforms, viewProjection, sphere, count);
+		if (vector != null)
+			benchmark(runner, vector, transforms, viewProjection, sphere, count);
+		
+		if (!valid)
+			System.exit(1);
+	}
+	
+	private static boolean validate(MatrixKernel expected, MatrixKernel actual, float[] transforms,
+			float[] viewProjection, float[] sphere, int count) {
+		
+		float[] models = new float[count * 16];
+		float[] check = new float[count * 16];
+		expected.composeTRS(transforms, 0, models, 0, count);
+		actual.composeTRS(transforms, 0, check, 0, count);
+		boolean valid = compare("compose", models, check);
+		
+		// The same inputs for both, so only the operation under test is compared
+		float[] result = new float[count * 16];
+		expected.multiplyMM(result, 0, viewProjection, 0, models, 0, count);
+		actual.multiplyMM(check, 0, viewProjection, 0, models, 0, count);
+		valid &= compare("multiply", result, check);
+		
+		result = new float[count * 4];
+		check = new float[count * 4];
+		expected.transformSpheres(sphere, models, 0, result, 0, count);
+		actual.transformSpheres(sphere, models, 0, check, 0, count);
+		valid &= compare("spheres", result, check);
+		return valid;
+	}
+	
+	private static boolean compare(String name, float[] expected, float[] actual) {
+		float worst = 0.0f;
+		int identical = 0;
+		for (int i = 0; i < expected.length; i++) {
+			float error = Math.abs(expected[i] - actual[i]) / Math.max(1.0f, Math.abs(expected[i]));
+			worst = Math.max(worst, error);
+			if (Float.floatToIntBits(expected[i]) == Float.floatToIntBits(actual[i]))
+				++identical;
+		}
+		boolean valid = worst <= EPSILON;
+		System.out.println(String.format("%-10s max relative error %.3g, %.2f%% bit identical, %s", name, worst,
+				identical * 100.0 / expected.length, valid ? "ok" : "FAILED"));
+		return valid;
+	}
+	
+	private static void benchmark(BenchmarkRunner runner, final MatrixKernel kernel, final float[] transforms,
+			final float[] viewProjection, final float[] sphere, final int count) throws Exception {
+		
+		final float[] models = new float[count * 16];
+		final float[] results = new float[count * 16];
+		kernel.composeTRS(transforms, 0, models, 0, count);
+		String suffix = " " + kernel.getName() + " n=" + count;
+		
+		double compose = runner.measure("compose" + suffix, new BenchmarkRunner.Case() {
+			public long run(int batches) {
+				for (int i = 0; i < batches; i++)
+					kernel.composeTRS(transforms, 0, results, 0, count);
+				return (long)results[12];
+			}
+		});
+		double multiply = runner.measure("multiply" + suffix, new BenchmarkRunner.Case() {
+			public long run(int batches) {
+				for (int i = 0; i < batches; i++)
+					kernel.multiplyMM(results, 0, viewProjection, 0, models, 0, count);
+				return (long)results[12];
+			}
+		});
+		double spheres = runner.measure("spheres" + suffix, new BenchmarkRunner.Case() {
+			public long run(int batches) {
+				for (int i = 0; i < batches; i++)
+					kernel.transformSpheres(sphere, models, 0, results, 0, count);
+				return (long)results[3];
+			}
+		});
+		System.out.println(String.format("%s: %.1f compose, %.1f multiply, %.1f spheres M matrices/s",
+				kernel.getName(), count / compose, count / multiply, count / spheres));
+	}
+}
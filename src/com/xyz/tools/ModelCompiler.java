@@ -0,0 +1,370 @@
+package com.xyz.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.InstanceStore;
+import com.xyz.graphics.Model;
+import com.xyz.graphics.SceneGraph;
+import com.xyz.resources.BinaryModelLoader;
+import com.xyz.resources.MeshOptimizer;
+import com.xyz.resources.ModelHandler;
+import com.xyz.resources.ResourceResolver;
+
+/**
+ * Offline converter from .xyz.model files to the binary format read by BinaryModelLoader.
+ *
+ * Usage: ModelCompiler [-big-endian] [-optimize] input.xyz.model [output.xyzb]
+ *
+ * -optimize welds duplicate vertices and reorders triangles and vertices for the vertex
+ * caches (see MeshOptimizer), printing the ACMR of every mesh before and after.
+ *
+ * Runs on a desktop JVM with any XmlPullParser implementation (kxml2, xpp3) on the classpath.
+ */
+public final class ModelCompiler {
+	
+	/**
+	 * Collects resource paths into the string and effect tables instead of loading them.
+	 */
+	static final class Tables implements ResourceResolver {
+		final ArrayList<String> mStrings			= new ArrayList<String>();
+		final HashMap<String, Integer> mStringMap	= new HashMap<String, Integer>();
+		final ArrayList<int[]> mEffects				= new ArrayList<int[]>();
+		final HashMap<String, Integer> mEffectMap	= new HashMap<String, Integer>();
+		
+		int string(String value) {
+			Integer index = mStringMap.get(value);
+			if (index == null) {
+				index = mStrings.size();
+				mStrings.add(value);
+				mStringMap.put(value, index);
+			}
+			return index;
+		}
+		
+		public int resolveTexture(String filename) {
+			return string(filename);
+		}
+		
+		public int resolveEffect(String vertexFilename, String fragmentFilename) {
+			String key = vertexFilename + '\n' + fragmentFilename;
+			Integer index = mEffectMap.get(key);
+			if (index == null) {
+				index = mEffects.size();
+				mEffects.add(new int[] { string(vertexFilename), string(fragmentFilename) });
+				mEffectMap.put(key, index);
+			}
+			return index;
+		}
+	}
+	
+	private ModelCompiler() {
+	}
+	
+	public static void main(String[] args) throws Exception {
+		ZebraLog.useStandardError();
+		ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+		boolean optimize = false;
+		int arg = 0;
+		for (; arg < args.length && args[arg].startsWith("-"); arg++) {
+			if (args[arg].equals("-big-endian"))
+				order = ByteOrder.BIG_ENDIAN;
+			else if (args[arg].equals("-optimize"))
+				optimize = true;
+			else
+				break;
+		}
+		
+		if (args.length - arg < 1 || args.length - arg > 2 || args[arg].startsWith("-")) {
+			System.err.println("Usage: ModelCompiler [-big-endian] [-optimize] input.xyz.model [output.xyzb]");
+			System.exit(1);
+		}
+		
+		String input = args[arg];
+		String output;
+		if (args.length - arg == 2)
+			output = args[arg + 1];
+		else if (input.endsWith(".xyz.model"))
+			output = input.substring(0, input.length() - ".xyz.model".length()) + BinaryModelLoader.EXTENSION;
+		else
+			output = input + BinaryModelLoader.EXTENSION;
+		
+		InputStream in = new FileInputStream(input);
+		OutputStream out = new FileOutputStream(output);
+		try {
+			int meshes = compile(in, out, order, optimize);
+			System.out.println("Wrote " + meshes + " meshes to " + output);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+	
+	public static int compile(InputStream in, OutputStream out, ByteOrder order)
+			throws XmlPullParserException, IOException {
+		
+		return compile(in, out, order, false);
+	}
+	
+	/**
+	 * Returns the number of meshes written.
+	 */
+	public static int compile(InputStream in, OutputStream out, ByteOrder order, boolean optimize)
+			throws XmlPullParserException, IOException {
+		
+		XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+		parser.setInput(in, null);
+		
+		Tables tables = new Tables();
+		ArrayList<Model> models = ModelHandler.read(parser, tables);
+		
+		// Optimizing copies the instances, so graph nodes are found by position
+		SceneGraph graph = null;
+		IdentityHashMap<Model.Instance, int[]> positions = new IdentityHashMap<Model.Instance, int[]>();
+		for (int i = 0; i < models.size(); i++) {
+			int j = 0;
+			for (Model.Instance instance : models.get(i).getInstances()) {
+				positions.put(instance, new int[] { i, j++ });
+				if (instance.getSceneGraph() != null)
+					graph = instance.getSceneGraph();
+			}
+		}
+		if (optimize)
+			optimize(models);
+		
+		out.write(encode(models, tables, order, graph, positions));
+		return models.size();
+	}
+	
+	/**
+	 * Replaces every model with its MeshOptimizer version, printing the statistics.
+	 */
+	static void optimize(ArrayList<Model> models) {
+		for (int i = 0; i < models.size(); i++) {
+			Model model = models.get(i);
+			Model optimized = MeshOptimizer.optimize(model);
+			System.out.println(String.format("%s: %d -> %d vertices, %d -> %d triangles, ACMR %.3f -> %.3f",
+					model.getName(), model.getVertexCount(), optimized.getVertexCount(),
+					model.getIndexCount() / 3, optimized.getIndexCount() / 3, MeshOptimizer.getAcmr(model),
+					MeshOptimizer.getAcmr(optimized)));
+			models.set(i, optimized);
+		}
+	}
+	
+	/**
+	 * The binary file of models, whose texture and effect ids index tables. graph may be
+	 * null, otherwise positions gives the mesh and instance index of every instance node.
+	 */
+	static byte[] encode(ArrayList<Model> models, Tables tables, ByteOrder order, SceneGraph graph,
+			IdentityHashMap<Model.Instance, int[]> positions) throws XmlPullParserException, UnsupportedEncodingException {
+		
+		int[] nodes = graph != null ? parentsFirst(graph) : new int[0];
+		int[] nodeNames = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			nodeNames[i] = tables.string(graph.getName(nodes[i]));
+		
+		// Mesh and instance names go into the string table too
+		int[] meshNames = new int[models.size()];
+		ArrayList<int[]> instanceNames = new ArrayList<int[]>();
+		for (int i = 0; i < models.size(); i++) {
+			Model model = models.get(i);
+			meshNames[i] = tables.string(model.getName());
+			
+			ArrayList<Model.Instance> instances = list(model.getInstances());
+			int[] names = new int[instances.size()];
+			for (int j = 0; j < names.length; j++)
+				names[j] = tables.string(instances.get(j).getName());
+			instanceNames.add(names);
+		}
+		
+		// Table sizes
+		int size = BinaryModelLoader.HEADER_SIZE;
+		byte[][] encoded = new byte[tables.mStrings.size()][];
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = utf8(tables.mStrings.get(i));
+			size += 2 + encoded[i].length;
+		}
+		size += tables.mEffects.size() * 8;
+		size += models.size() * BinaryModelLoader.MESH_RECORD_SIZE;
+		size += 4 + nodes.length * BinaryModelLoader.NODE_SIZE;
+		int instanceStart = size;
+		for (int[] names : instanceNames)
+			size += names.length * BinaryModelLoader.INSTANCE_SIZE;
+		
+		// Stream offsets, each aligned so the mapped views can be used directly
+		int[][] offsets = new int[models.size()][BinaryModelLoader.STREAM_COUNT];
+		for (int i = 0; i < models.size(); i++) {
+			Buffer[] streams = streams(models.get(i));
+			for (int s = 0; s < streams.length; s++) {
+				if (streams[s] == null)
+					continue;
+				size = align(size);
+				offsets[i][s] = size;
+				size += streams[s].limit() * (streams[s] instanceof ShortBuffer ? 2 : 4);
+			}
+		}
+		
+		ByteBuffer data = ByteBuffer.allocate(size).order(order);
+		BinaryModelLoader.writeMagic(data);
+		data.putInt(BinaryModelLoader.VERSION);
+		data.putInt(BinaryModelLoader.ORDER_MARKER);
+		data.putInt(encoded.length);
+		data.putInt(tables.mEffects.size());
+		data.putInt(models.size());
+		
+		for (byte[] bytes : encoded) {
+			data.putShort((short)bytes.length);
+			data.put(bytes);
+		}
+		for (int[] effect : tables.mEffects) {
+			data.putInt(effect[0]);
+			data.putInt(effect[1]);
+		}
+		
+		int instanceOffset = instanceStart;
+		for (int i = 0; i < models.size(); i++) {
+			Buffer[] streams = streams(models.get(i));
+			data.putInt(meshNames[i]);
+			for (int s = 0; s < streams.length; s++) {
+				data.putInt(streams[s] != null ? streams[s].limit() : 0);
+				data.putInt(offsets[i][s]);
+			}
+			int instances = instanceNames.get(i).length;
+			data.putInt(instances);
+			data.putInt(instanceOffset);
+			data.putInt(models.get(i).hasIntIndices() ? 4 : 2);
+			instanceOffset += instances * BinaryModelLoader.INSTANCE_SIZE;
+		}
+		
+		int[] tableIndices = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			tableIndices[nodes[i]] = i;
+		data.putInt(nodes.length);
+		for (int i = 0; i < nodes.length; i++) {
+			int node = nodes[i];
+			int parent = graph.getParent(node);
+			Model.Instance instance = graph.getInstance(node);
+			int[] position = instance != null ? positions.get(instance) : new int[] { -1, -1 };
+			data.putInt(nodeNames[i]);
+			data.putInt(parent >= 0 ? tableIndices[parent] : -1);
+			data.putInt(position[0]);
+			data.putInt(position[1]);
+			float[] transforms = graph.getTransforms();
+			for (int k = 0; k < InstanceStore.TRANSFORM_STRIDE; k++)
+				data.putFloat(instance != null ? 0.0f : transforms[node * InstanceStore.TRANSFORM_STRIDE + k]);
+		}
+		
+		for (int i = 0; i < models.size(); i++) {
+			int j = 0;
+			for (Model.Instance instance : models.get(i).getInstances()) {
+				data.putInt(instanceNames.get(i)[j++]);
+				data.putInt(instance.getTextureId());
+				data.putInt(instance.getEffectId());
+				putFloats(data, instance, "Translation", instance.getTranslation());
+				putFloats(data, instance, "Rotation", instance.getRotation());
+				putFloats(data, instance, "Scale", instance.getScale());
+			}
+		}
+		
+		for (int i = 0; i < models.size(); i++) {
+			Buffer[] streams = streams(models.get(i));
+			for (int s = 0; s < streams.length; s++) {
+				if (streams[s] == null)
+					continue;
+				data.position(offsets[i][s]);
+				if (streams[s] instanceof ShortBuffer)
+					data.asShortBuffer().put(((ShortBuffer)streams[s]).duplicate());
+				else if (streams[s] instanceof IntBuffer)
+					data.asIntBuffer().put(((IntBuffer)streams[s]).duplicate());
+				else
+					data.asFloatBuffer().put(((FloatBuffer)streams[s]).duplicate());
+			}
+		}
+		
+		return data.array();
+	}
+	
+	/**
+	 * Node ids with every parent before its children, as the loader links them in order.
+	 */
+	private static int[] parentsFirst(SceneGraph graph) {
+		int count = graph.getNodeCount();
+		int[] order = new int[count];
+		boolean[] placed = new boolean[count];
+		int[] chain = new int[count];
+		int placedCount = 0;
+		for (int node = 0; node < count; node++) {
+			int length = 0;
+			for (int n = node; n >= 0 && !placed[n]; n = graph.getParent(n))
+				chain[length++] = n;
+			while (length > 0) {
+				int n = chain[--length];
+				placed[n] = true;
+				order[placedCount++] = n;
+			}
+		}
+		return order;
+	}
+	
+	private static Buffer[] streams(Model model) {
+		Buffer[] streams = new Buffer[BinaryModelLoader.STREAM_COUNT];
+		streams[BinaryModelLoader.STREAM_VERTICES]	= model.getVertexBuffer();
+		streams[BinaryModelLoader.STREAM_NORMALS]	= model.getNormalBuffer();
+		streams[BinaryModelLoader.STREAM_COLOURS]	= model.getColourBuffer();
+		streams[BinaryModelLoader.STREAM_UVS]		= model.getUVBuffer();
+		streams[BinaryModelLoader.STREAM_INDICES]	= model.getIndexBuffer();
+		return streams;
+	}
+	
+	private static int align(int offset) {
+		int alignment = BinaryModelLoader.STREAM_ALIGNMENT;
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+	
+	/**
+	 * Instance records have a fixed size, a transform of any other length would shift
+	 * every record after it.
+	 */
+	private static void putFloats(ByteBuffer data, Model.Instance instance, String element, float[] values)
+			throws XmlPullParserException {
+		
+		if (values.length != 3) {
+			throw new XmlPullParserException(element + " of instance " + instance.getName() + " needs 3 values, not " +
+					values.length);
+		}
+		for (float value : values)
+			data.putFloat(value);
+	}
+	
+	private static byte[] utf8(String value) throws UnsupportedEncodingException {
+		byte[] bytes = value.getBytes("UTF-8");
+		if (bytes.length > 0xFFFF)
+			throw new UnsupportedEncodingException("String too long for the string table");
+		return bytes;
+	}
+	
+	private static <T> ArrayList<T> list(Iterable<T> values) {
+		ArrayList<T> result = new ArrayList<T>();
+		for (T value : values)
+			result.add(value);
+		return result;
+	}
+}
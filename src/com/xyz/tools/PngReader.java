@@ -0,0 +1,218 @@
+package com.xyz.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal PNG decoder for the offline tools, so they only need java.util.zip.
+ * Handles every colour type and bit depth, but not interlaced images.
+ */
+final class PngReader {
+	
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	
+	private static final int COLOUR_GREY		= 0;
+	private static final int COLOUR_RGB			= 2;
+	private static final int COLOUR_PALETTE		= 3;
+	private static final int COLOUR_GREY_ALPHA	= 4;
+	private static final int COLOUR_RGBA		= 6;
+	
+	final int mWidth;
+	final int mHeight;
+	final int[] mPixels; // ARGB
+	
+	private PngReader(int width, int height, int[] pixels) {
+		mWidth	= width;
+		mHeight	= height;
+		mPixels	= pixels;
+	}
+	
+	static PngReader read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readLong() != SIGNATURE)
+			throw new IOException("Not a PNG file");
+		
+		int width = 0, height = 0, depth = 0, colour = 0;
+		int[] palette = new int[256];
+		int transparent = -1; // Grey or RGB value marked transparent by tRNS
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		
+		while (true) {
+			int length = in.readInt();
+			int type = in.readInt();
+			byte[] data = new byte[length];
+			in.readFully(data);
+			in.readInt(); // CRC
+			
+			if (type == chunk("IHDR")) {
+				width	= readInt(data, 0);
+				height	= readInt(data, 4);
+				depth	= data[8];
+				colour	= data[9];
+				if (data[12] != 0)
+					throw new IOException("Interlaced PNGs aren't supported");
+			}
+			else if (type == chunk("PLTE")) {
+				for (int i = 0; i < length / 3; i++)
+					palette[i] = 0xFF000000 | ((data[i * 3] & 0xFF) << 16) | ((data[i * 3 + 1] & 0xFF) << 8) |
+						(data[i * 3 + 2] & 0xFF);
+			}
+			else if (type == chunk("tRNS")) {
+				if (colour == COLOUR_PALETTE) {
+					for (int i = 0; i < length; i++)
+						palette[i] = (palette[i] & 0x00FFFFFF) | ((data[i] & 0xFF) << 24);
+				}
+				else if (colour == COLOUR_GREY)
+					transparent = scale(((data[0] & 0xFF) << 8) | (data[1] & 0xFF), depth) * 0x010101;
+				else if (colour == COLOUR_RGB)
+					transparent = (scale(((data[0] & 0xFF) << 8) | (data[1] & 0xFF), depth) << 16) |
+						(scale(((data[2] & 0xFF) << 8) | (data[3] & 0xFF), depth) << 8) |
+						scale(((data[4] & 0xFF) << 8) | (data[5] & 0xFF), depth);
+			}
+			else if (type == chunk("IDAT"))
+				compressed.write(data);
+			else if (type == chunk("IEND"))
+				break;
+		}
+		
+		int channels;
+		switch (colour) {
+		case COLOUR_GREY:
+		case COLOUR_PALETTE:	channels = 1; break;
+		case COLOUR_GREY_ALPHA:	channels = 2; break;
+		case COLOUR_RGB:		channels = 3; break;
+		case COLOUR_RGBA:		channels = 4; break;
+		default:
+			throw new IOException("Unknown PNG colour type " + colour);
+		}
+		
+		int bitsPerPixel = channels * depth;
+		int stride = (width * bitsPerPixel + 7) / 8;
+		int pixelBytes = Math.max(1, bitsPerPixel / 8);
+		byte[] raw = inflate(compressed.toByteArray(), (stride + 1) * height);
+		
+		int[] pixels = new int[width * height];
+		byte[] previous = new byte[stride];
+		byte[] row = new byte[stride];
+		for (int y = 0; y < height; y++) {
+			int offset = y * (stride + 1);
+			unfilter(raw[offset], raw, offset + 1, row, previous, pixelBytes);
+			
+			for (int x = 0; x < width; x++) {
+				int pixel;
+				if (colour == COLOUR_PALETTE)
+					pixel = palette[sample(row, x, depth)];
+				else if (colour == COLOUR_GREY || colour == COLOUR_GREY_ALPHA) {
+					int grey = scale(sample(row, x * channels, depth), depth);
+					int alpha = colour == COLOUR_GREY_ALPHA ? scale(sample(row, x * channels + 1, depth), depth) : 255;
+					pixel = (alpha << 24) | (grey * 0x010101);
+				}
+				else {
+					int r = scale(sample(row, x * channels, depth), depth);
+					int g = scale(sample(row, x * channels + 1, depth), depth);
+					int b = scale(sample(row, x * channels + 2, depth), depth);
+					int alpha = colour == COLOUR_RGBA ? scale(sample(row, x * channels + 3, depth), depth) : 255;
+					pixel = (alpha << 24) | (r << 16) | (g << 8) | b;
+				}
+				if (transparent >= 0 && (pixel & 0x00FFFFFF) == transparent)
+					pixel &= 0x00FFFFFF;
+				pixels[y * width + x] = pixel;
+			}
+			
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		
+		return new PngReader(width, height, pixels);
+	}
+	
+	private static int chunk(String name) {
+		return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+	}
+	
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+			((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+	
+	private static byte[] inflate(byte[] data, int size) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		byte[] raw = new byte[size];
+		try {
+			int read = 0;
+			while (read < size && !inflater.finished()) {
+				int n = inflater.inflate(raw, read, size - read);
+				if (n == 0 && inflater.needsInput())
+					break;
+				read += n;
+			}
+			if (read < size)
+				throw new IOException("Truncated PNG data");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt PNG data");
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+	
+	private static void unfilter(int filter, byte[] raw, int offset, byte[] row, byte[] previous, int bpp)
+			throws IOException {
+		
+		for (int i = 0; i < row.length; i++) {
+			int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+			int b = previous[i] & 0xFF;
+			int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+			int value = raw[offset + i] & 0xFF;
+			switch (filter) {
+			case 0: break;
+			case 1: value += a; break;
+			case 2: value += b; break;
+			case 3: value += (a + b) >> 1; break;
+			case 4: value += paeth(a, b, c); break;
+			default:
+				throw new IOException("Unknown PNG filter " + filter);
+			}
+			row[i] = (byte)value;
+		}
+	}
+	
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+	
+	/**
+	 * The n-th sample of a row, samples can be 1 to 16 bits wide.
+	 */
+	private static int sample(byte[] row, int n, int depth) {
+		if (depth == 8)
+			return row[n] & 0xFF;
+		if (depth == 16)
+			return ((row[n * 2] & 0xFF) << 8) | (row[n * 2 + 1] & 0xFF);
+		int bit = n * depth;
+		return ((row[bit >> 3] & 0xFF) >> (8 - depth - (bit & 7))) & ((1 << depth) - 1);
+	}
+	
+	/**
+	 * Expands a sample to 8 bits.
+	 */
+	private static int scale(int value, int depth) {
+		if (depth == 16)
+			return value >> 8;
+		if (depth == 8)
+			return value;
+		return value * 255 / ((1 << depth) - 1);
+	}
+}
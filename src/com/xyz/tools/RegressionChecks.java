@@ -0,0 +1,138 @@
+package com.xyz.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.Model;
+import com.xyz.graphics.RecordingBackend;
+import com.xyz.graphics.SceneGraph;
+import com.xyz.graphics.ZebraRender;
+import com.xyz.resources.BinaryModelLoader;
+import com.xyz.resources.EffectManager;
+import com.xyz.resources.ModelHandler;
+import com.xyz.resources.TextureManager;
+
+/**
+ * Headless checks of renderer behaviour that has broken before, each drives a scene
+ * through a RecordingBackend. Runs on a plain JVM with android.jar on the classpath
+ * and exits with status 1 when any check fails.
+ *
+ * Usage: RegressionChecks assets
+ */
+public final class RegressionChecks {
+	
+	private static final float[] TRIANGLE = { -1.0f, -1.0f, 0.0f, 1.0f, -1.0f, 0.0f, 0.0f, 1.0f, 0.0f };
+	
+	// RenderStats -copies 20 assets models/newplane.xyzb, first frame then a later one.
+	// Update these when a change is meant to alter them.
+	private static final String	COUNTS_MODEL			= "models/newplane.xyzb";
+	private static final int	COUNTS_COPIES			= 20;
+	private static final int[]	EXPECTED_DRAW_CALLS		= { 2, 2 };
+	private static final int[]	EXPECTED_STATE_CHANGES	= { 26, 0 };
+	
+	private static File sAssets;
+	private static int sFailures;
+	
+	private RegressionChecks() {
+	}
+	
+	public static void main(String[] args) throws IOException {
+		ZebraLog.useStandardError();
+		if (args.length != 1) {
+			System.err.println("Usage: RegressionChecks assets");
+			System.exit(1);
+		}
+		sAssets = new File(args[0]);
+		
+		checkMovedGraph(false);
+		checkMovedGraph(true);
+		checkRenderCounts();
+		
+		if (sFailures > 0) {
+			System.err.println(sFailures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+	
+	/**
+	 * A parent and child instance moved out of view together must both be culled,
+	 * whichever model is indexed first.
+	 */
+	private static void checkMovedGraph(boolean childFirst) {
+		SceneGraph graph = new SceneGraph();
+		int car = graph.addNode("car", -1, null, null, null);
+		Model body = new Model("body", TRIANGLE, null, null, null, new short[] { 0, 1, 2 });
+		Model wheel = new Model("wheel", TRIANGLE, null, null, null, new short[] { 0, 1, 2 });
+		int bodyNode = graph.addNode(body.createInstance("body", -1, -1, null, null, null), car);
+		graph.addNode(wheel.createInstance("wheel", -1, -1, new float[] { 1.0f, 0.0f, 0.0f }, null, null), bodyNode);
+		
+		ArrayList<Model> models = new ArrayList<Model>();
+		models.add(childFirst ? wheel : body);
+		models.add(childFirst ? body : wheel);
+		ZebraRender renderer = render(models, new RecordingBackend());
+		String name = "moved graph" + (childFirst ? ", child first" : "");
+		expect(name + ", in view", 0, renderer.getCulledInstances());
+		
+		graph.setTranslation(car, 1000.0f, 0.0f, 0.0f);
+		renderer.getSceneUpdater().update();
+		renderer.onDrawFrame(null);
+		expect(name + ", moved away", 2, renderer.getCulledInstances());
+	}
+	
+	/**
+	 * Draw calls and state changes must not move without the expected values moving
+	 * with them.
+	 */
+	private static void checkRenderCounts() throws IOException {
+		TextureManager textureManager = TextureManager.createInstance(null);
+		EffectManager effectManager = EffectManager.createInstance(null);
+		textureManager.setAssetDirectory(sAssets);
+		effectManager.setAssetDirectory(sAssets);
+		ArrayList<Model> models = BinaryModelLoader.load(new File(sAssets, COUNTS_MODEL),
+				ModelHandler.managerResolver(textureManager, effectManager));
+		for (Model model : models)
+			RenderStats.addCopies(model, COUNTS_COPIES);
+		
+		RecordingBackend gl = new RecordingBackend();
+		ZebraRender renderer = render(models, gl);
+		for (int frame = 0; frame < EXPECTED_DRAW_CALLS.length; frame++) {
+			if (frame > 0) {
+				gl.reset();
+				renderer.getSceneUpdater().update();
+				renderer.onDrawFrame(null);
+			}
+			expect("draw calls, frame " + (frame + 1), EXPECTED_DRAW_CALLS[frame], gl.getDrawCalls());
+			expect("state changes, frame " + (frame + 1), EXPECTED_STATE_CHANGES[frame], gl.getStateChanges());
+		}
+	}
+	
+	/**
+	 * Renderer that has drawn its first frame, the assets hold the default shaders.
+	 * Setup calls are cleared from the backend so it holds the first frame only.
+	 */
+	private static ZebraRender render(ArrayList<Model> models, RecordingBackend gl) {
+		TextureManager textureManager = TextureManager.createInstance(null);
+		EffectManager effectManager = EffectManager.createInstance(null);
+		textureManager.setAssetDirectory(sAssets);
+		effectManager.setAssetDirectory(sAssets);
+		ZebraRender renderer = new ZebraRender(null, models, textureManager, effectManager, gl);
+		renderer.onSurfaceCreated(null, null);
+		renderer.onSurfaceChanged(null, 800, 480);
+		gl.reset();
+		renderer.getSceneUpdater().update();
+		renderer.onDrawFrame(null);
+		return renderer;
+	}
+	
+	private static void expect(String check, int expected, int actual) {
+		if (expected == actual) {
+			System.out.println("ok: " + check);
+			return;
+		}
+		System.out.println("FAILED: " + check + ", expected " + expected + " but got " + actual);
+		++sFailures;
+	}
+}
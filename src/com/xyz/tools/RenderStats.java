@@ -0,0 +1,128 @@
+package com.xyz.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.Model;
+import com.xyz.graphics.OcclusionCuller;
+import com.xyz.graphics.RecordingBackend;
+import com.xyz.graphics.ZebraRender;
+import com.xyz.resources.BinaryModelLoader;
+import com.xyz.resources.EffectManager;
+import com.xyz.resources.ModelHandler;
+import com.xyz.resources.TextureManager;
+
+/**
+ * Renders a scene off device through a RecordingBackend and prints what each frame
+ * asked of GL: draw calls, state changes, uniforms and bytes uploaded. Runs on a plain
+ * JVM with android.jar on the classpath for the framework interfaces, so the numbers
+ * can be compared between builds.
+ *
+ * Usage: RenderStats [-frames n] [-copies n] [-occluders mesh,...] assets model.xyzb...
+ *
+ * Models are compiled ones (see ModelCompiler), relative to the assets directory.
+ * The vertex memory of every model is printed first.
+ * -copies adds that many instances of every model on a grid in front of the camera.
+ * -occluders turns on occlusion culling with the named meshes as occluders, rasterized
+ * on the main thread so the numbers repeat.
+ */
+public final class RenderStats {
+	
+	private RenderStats() {
+	}
+	
+	public static void main(String[] args) throws IOException {
+		ZebraLog.useStandardError();
+		int frames = 10;
+		int copies = 0;
+		String occluders = null;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-frames"))
+				frames = Integer.parseInt(args[++arg]);
+			else if (args[arg].equals("-copies"))
+				copies = Integer.parseInt(args[++arg]);
+			else if (args[arg].equals("-occluders"))
+				occluders = "," + args[++arg] + ",";
+			else
+				usage();
+			++arg;
+		}
+		if (args.length - arg < 2)
+			usage();
+		
+		File assets = new File(args[arg++]);
+		TextureManager textureManager = TextureManager.createInstance(null);
+		EffectManager effectManager = EffectManager.createInstance(null);
+		textureManager.setAssetDirectory(assets);
+		effectManager.setAssetDirectory(assets);
+		
+		ArrayList<Model> models = new ArrayList<Model>();
+		for (; arg < args.length; arg++) {
+			models.addAll(BinaryModelLoader.load(new File(assets, args[arg]),
+					ModelHandler.managerResolver(textureManager, effectManager)));
+		}
+		for (Model model : models) {
+			addCopies(model, copies);
+			printVertexMemory(model);
+			if (occluders != null && occluders.contains("," + model.getName() + ","))
+				model.setOccluder(true);
+		}
+		
+		RecordingBackend gl = new RecordingBackend();
+		ZebraRender renderer = new ZebraRender(null, models, textureManager, effectManager, gl);
+		renderer.onSurfaceCreated(null, null);
+		renderer.onSurfaceChanged(null, 800, 480);
+		System.out.println("setup: " + gl.getSummary());
+		OcclusionCuller occlusion = null;
+		if (occluders != null) {
+			occlusion = new OcclusionCuller(OcclusionCuller.DEFAULT_WIDTH, OcclusionCuller.DEFAULT_HEIGHT, false);
+			renderer.getSceneUpdater().setOcclusionCuller(occlusion);
+		}
+		
+		// Updates run in step with the frames, so every run gives the same numbers
+		for (int frame = 1; frame <= frames; frame++) {
+			gl.reset();
+			renderer.getSceneUpdater().update();
+			renderer.onDrawFrame(null);
+			String occluded = occlusion == null ? "" : ", " + renderer.getOccludedInstances() + " occluded by " +
+					occlusion.getTriangleCount() + " triangles in " + occlusion.getRasterTime() / 1000 + "us";
+			System.out.println("frame " + frame + ": " + gl.getSummary() + ", " + renderer.getCulledInstances() +
+					" culled" + occluded + ", " + renderer.getDrawCallsSaved() + " draws saved, " +
+					renderer.getSkippedStateChanges() + " redundant changes skipped");
+		}
+	}
+	
+	private static void printVertexMemory(Model model) {
+		int packed = model.getVertexBytes();
+		int unpacked = model.getUnpackedVertexBytes();
+		System.out.println(model.getName() + ": " + model.getVertexFormat() + ", " + packed + " vertex bytes, " +
+				(unpacked - packed) + " saved over separate float streams (" + (unpacked - packed) * 100 / unpacked +
+				"%)");
+	}
+	
+	/**
+	 * Copies on a grid in front of the camera, each with the first instance's texture
+	 * and effect.
+	 */
+	static void addCopies(Model model, int copies) {
+		Model.Instance first = model.getInstances().iterator().hasNext() ?
+				model.getInstances().iterator().next() : null;
+		int texture = first != null ? first.getTextureId() : -1;
+		int effect = first != null ? first.getEffectId() : -1;
+		for (int i = 0; i < copies; i++) {
+			float x = (i % 8 - 3.5f) * 0.75f;
+			float y = ((i / 8) % 6 - 2.5f) * 0.5f;
+			float z = (i / 48) * 0.5f;
+			model.createInstance("copy" + i, texture, effect, new float[] { x, y, z }, null, new float[] {
+				0.1f, 0.1f, 0.1f });
+		}
+	}
+	
+	private static void usage() {
+		System.err.println("Usage: RenderStats [-frames n] [-copies n] [-occluders mesh,...] assets model.xyzb...");
+		System.exit(1);
+	}
+}
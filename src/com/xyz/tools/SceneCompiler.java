@@ -0,0 +1,239 @@
+package com.xyz.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.xyz.core.ZebraLog;
+import com.xyz.graphics.Model;
+import com.xyz.resources.BinaryModelLoader;
+import com.xyz.resources.ChunkedScene;
+import com.xyz.resources.ModelHandler;
+
+/**
+ * Offline converter from .xyz.model files to the chunked scene format read by ChunkedScene.
+ *
+ * Usage: SceneCompiler [-big-endian] [-optimize] [-cell size] input.xyz.model [output.xyzs]
+ *
+ * Meshes are grouped by the grid cell, of size world units (DEFAULT_CELL_SIZE), holding
+ * the centre of their instances' bounds, so a mesh instanced all over the world ends up
+ * in one large chunk; split such meshes in the source file. Scene graphs aren't supported,
+ * a hierarchy can't be spread over chunks that load separately.
+ */
+public final class SceneCompiler {
+	
+	public static final float DEFAULT_CELL_SIZE = 64.0f;
+	
+	private SceneCompiler() {
+	}
+	
+	public static void main(String[] args) throws Exception {
+		ZebraLog.useStandardError();
+		ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+		boolean optimize = false;
+		float cellSize = DEFAULT_CELL_SIZE;
+		int arg = 0;
+		for (; arg < args.length && args[arg].startsWith("-"); arg++) {
+			if (args[arg].equals("-big-endian"))
+				order = ByteOrder.BIG_ENDIAN;
+			else if (args[arg].equals("-optimize"))
+				optimize = true;
+			else if (args[arg].equals("-cell") && arg + 1 < args.length)
+				cellSize = Float.parseFloat(args[++arg]);
+			else
+				break;
+		}
+		
+		if (args.length - arg < 1 || args.length - arg > 2 || args[arg].startsWith("-") || !(cellSize > 0.0f)) {
+			System.err.println("Usage: SceneCompiler [-big-endian] [-optimize] [-cell size] input.xyz.model " +
+					"[output.xyzs]");
+			System.exit(1);
+		}
+		
+		String input = args[arg];
+		String output;
+		if (args.length - arg == 2)
+			output = args[arg + 1];
+		else if (input.endsWith(".xyz.model"))
+			output = input.substring(0, input.length() - ".xyz.model".length()) + ChunkedScene.EXTENSION;
+		else
+			output = input + ChunkedScene.EXTENSION;
+		
+		InputStream in = new FileInputStream(input);
+		OutputStream out = new FileOutputStream(output);
+		try {
+			int chunks = compile(in, out, order, optimize, cellSize);
+			System.out.println("Wrote " + chunks + " chunks to " + output);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Returns the number of chunks written.
+	 */
+	public static int compile(InputStream in, OutputStream out, ByteOrder order, boolean optimize, float cellSize)
+			throws XmlPullParserException, IOException {
+		
+		XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+		parser.setInput(in, null);
+		
+		ModelCompiler.Tables tables = new ModelCompiler.Tables();
+		ArrayList<Model> models = ModelHandler.read(parser, tables);
+		for (Model model : models) {
+			for (Model.Instance instance : model.getInstances()) {
+				if (instance.getSceneGraph() != null)
+					throw new XmlPullParserException("Scene graphs can't be split into chunks");
+			}
+		}
+		if (optimize)
+			ModelCompiler.optimize(models);
+		
+		// Every chunk carries the whole string table, names included, so ids match across chunks
+		for (Model model : models) {
+			tables.string(model.getName());
+			for (Model.Instance instance : model.getInstances())
+				tables.string(instance.getName());
+		}
+		
+		LinkedHashMap<String, ArrayList<Integer>> cells = new LinkedHashMap<String, ArrayList<Integer>>();
+		float[] meshBounds = new float[models.size() * 6];
+		for (int i = 0; i < models.size(); i++) {
+			getWorldBounds(models.get(i), meshBounds, i * 6);
+			String cell = cell(meshBounds, i * 6, cellSize);
+			ArrayList<Integer> meshes = cells.get(cell);
+			if (meshes == null) {
+				meshes = new ArrayList<Integer>();
+				cells.put(cell, meshes);
+			}
+			meshes.add(i);
+		}
+		
+		// Meshes renumbered chunk by chunk
+		int chunkCount = cells.size();
+		byte[][] blobs = new byte[chunkCount][];
+		float[] chunkBounds = new float[chunkCount * 6];
+		int[] meshOrder = new int[models.size()];
+		int[] firstMeshes = new int[chunkCount];
+		int chunk = 0;
+		int next = 0;
+		for (ArrayList<Integer> meshes : cells.values()) {
+			ArrayList<Model> chunkModels = new ArrayList<Model>();
+			firstMeshes[chunk] = next;
+			for (int k = 0; k < 6; k++)
+				chunkBounds[chunk * 6 + k] = k < 3 ? Float.MAX_VALUE : -Float.MAX_VALUE;
+			for (int mesh : meshes) {
+				meshOrder[next++] = mesh;
+				chunkModels.add(models.get(mesh));
+				for (int k = 0; k < 3; k++) {
+					chunkBounds[chunk * 6 + k] = Math.min(chunkBounds[chunk * 6 + k], meshBounds[mesh * 6 + k]);
+					chunkBounds[chunk * 6 + 3 + k] = Math.max(chunkBounds[chunk * 6 + 3 + k],
+							meshBounds[mesh * 6 + 3 + k]);
+				}
+			}
+			blobs[chunk++] = ModelCompiler.encode(chunkModels, tables, order, null, null);
+		}
+		
+		byte[][] names = new byte[models.size()][];
+		int size = ChunkedScene.HEADER_SIZE + chunkCount * ChunkedScene.CHUNK_RECORD_SIZE +
+				models.size() * ChunkedScene.MESH_RECORD_SIZE;
+		for (int i = 0; i < names.length; i++) {
+			names[i] = utf8(models.get(meshOrder[i]).getName());
+			size += 2 + names[i].length;
+		}
+		int[] offsets = new int[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			size = align(size);
+			offsets[i] = size;
+			size += blobs[i].length;
+		}
+		
+		ByteBuffer data = ByteBuffer.allocate(size).order(order);
+		ChunkedScene.writeMagic(data);
+		data.putInt(ChunkedScene.VERSION);
+		data.putInt(BinaryModelLoader.ORDER_MARKER);
+		data.putInt(chunkCount);
+		data.putInt(models.size());
+		
+		for (int i = 0; i < chunkCount; i++) {
+			for (int k = 0; k < 6; k++)
+				data.putFloat(chunkBounds[i * 6 + k]);
+			data.putInt(offsets[i]);
+			data.putInt(blobs[i].length);
+			data.putInt(firstMeshes[i]);
+			data.putInt((i + 1 < chunkCount ? firstMeshes[i + 1] : models.size()) - firstMeshes[i]);
+		}
+		chunk = 0;
+		for (int i = 0; i < meshOrder.length; i++) {
+			while (chunk + 1 < chunkCount && firstMeshes[chunk + 1] <= i)
+				++chunk;
+			data.putInt(chunk);
+			for (int k = 0; k < 6; k++)
+				data.putFloat(meshBounds[meshOrder[i] * 6 + k]);
+		}
+		for (byte[] name : names) {
+			data.putShort((short)name.length);
+			data.put(name);
+		}
+		for (int i = 0; i < chunkCount; i++) {
+			data.position(offsets[i]);
+			data.put(blobs[i]);
+		}
+		
+		out.write(data.array());
+		return chunkCount;
+	}
+	
+	/**
+	 * Box around the world spheres of the instances, the mesh's own bounds without any.
+	 */
+	private static void getWorldBounds(Model model, float[] bounds, int offset) {
+		boolean empty = true;
+		for (Model.Instance instance : model.getInstances()) {
+			float[] sphere = instance.getWorldSphere();
+			for (int k = 0; k < 3; k++) {
+				float min = sphere[k] - sphere[3], max = sphere[k] + sphere[3];
+				bounds[offset + k]		= empty ? min : Math.min(bounds[offset + k], min);
+				bounds[offset + 3 + k]	= empty ? max : Math.max(bounds[offset + 3 + k], max);
+			}
+			empty = false;
+		}
+		if (empty) {
+			System.arraycopy(model.getBoundsMin(), 0, bounds, offset, 3);
+			System.arraycopy(model.getBoundsMax(), 0, bounds, offset + 3, 3);
+		}
+	}
+	
+	private static String cell(float[] bounds, int offset, float cellSize) {
+		StringBuilder key = new StringBuilder();
+		for (int k = 0; k < 3; k++) {
+			float centre = (bounds[offset + k] + bounds[offset + 3 + k]) * 0.5f;
+			key.append((long)Math.floor(centre / cellSize)).append(',');
+		}
+		return key.toString();
+	}
+	
+	private static int align(int offset) {
+		int alignment = BinaryModelLoader.STREAM_ALIGNMENT;
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+	
+	private static byte[] utf8(String value) throws UnsupportedEncodingException {
+		byte[] bytes = value.getBytes("UTF-8");
+		if (bytes.length > 0xFFFF)
+			throw new UnsupportedEncodingException("Mesh name too long");
+		return bytes;
+	}
+}
@@ -0,0 +1,155 @@
+package com.xyz.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.xyz.resources.Etc1Codec;
+import com.xyz.resources.TextureContainer;
+
+/**
+ * Offline converter from PNG images to ETC1 texture containers with a full mip chain.
+ * Images with any translucent pixel get a separate ETC1 alpha plane.
+ *
+ * Usage: TextureCompiler [-no-mips] input.png...
+ *
+ * Each input is written next to itself with the container extension, TextureManager
+ * prefers that file over the PNG.
+ */
+public final class TextureCompiler {
+	
+	private TextureCompiler() {
+	}
+	
+	public static void main(String[] args) throws IOException {
+		boolean mips = true;
+		int arg = 0;
+		if (args.length > 0 && args[0].equals("-no-mips")) {
+			mips = false;
+			++arg;
+		}
+		
+		if (arg == args.length) {
+			System.err.println("Usage: TextureCompiler [-no-mips] input.png...");
+			System.exit(1);
+		}
+		
+		for (; arg < args.length; arg++) {
+			String input = args[arg];
+			String output = TextureContainer.containerName(input);
+			
+			InputStream in = new FileInputStream(input);
+			PngReader image;
+			try {
+				image = PngReader.read(in);
+			} finally {
+				in.close();
+			}
+			
+			TextureContainer container = compile(image.mPixels, image.mWidth, image.mHeight, mips);
+			OutputStream out = new FileOutputStream(output);
+			try {
+				container.write(out);
+			} finally {
+				out.close();
+			}
+			
+			// What the uncompressed RGBA upload would have cost, mips included
+			int rawSize = 0;
+			for (int i = 0; i < container.getLevelCount(); i++)
+				rawSize += container.getLevelWidth(i) * container.getLevelHeight(i) * 4;
+			
+			int[] decoded = new int[image.mWidth * image.mHeight];
+			Etc1Codec.decodeImage(container.getLevel(0), image.mWidth, image.mHeight, decoded);
+			System.out.println(output + ": " + image.mWidth + "x" + image.mHeight + ", " +
+					container.getLevelCount() + " levels" + (container.hasAlphaPlane() ? " + alpha" : "") +
+					", " + container.getByteSize() + " bytes (RGBA " + rawSize + "), PSNR " +
+					String.format("%.1f", psnr(image.mPixels, decoded)) + "dB");
+		}
+	}
+	
+	public static TextureContainer compile(int[] pixels, int width, int height, boolean mips) {
+		// GLES2 only mipmaps power of two textures
+		boolean powerOfTwo = (width & (width - 1)) == 0 && (height & (height - 1)) == 0;
+		if (mips && !powerOfTwo) {
+			System.err.println("Not a power of two, writing the base level only");
+			mips = false;
+		}
+		
+		int levels = 1;
+		if (mips) {
+			while ((width >> levels) > 0 || (height >> levels) > 0)
+				++levels;
+		}
+		
+		boolean alpha = false;
+		for (int pixel : pixels)
+			alpha |= (pixel >>> 24) != 0xFF;
+		
+		ByteBuffer[] data = new ByteBuffer[levels];
+		ByteBuffer[] alphaData = alpha ? new ByteBuffer[levels] : null;
+		int[] level = pixels;
+		int w = width;
+		int h = height;
+		for (int i = 0; i < levels; i++) {
+			if (i > 0) {
+				level = downsample(level, w, h);
+				w = Math.max(1, w >> 1);
+				h = Math.max(1, h >> 1);
+			}
+			data[i] = Etc1Codec.encodeImage(level, w, h);
+			if (alpha) {
+				int[] plane = new int[level.length];
+				for (int p = 0; p < level.length; p++)
+					plane[p] = (level[p] >>> 24) * 0x010101;
+				alphaData[i] = Etc1Codec.encodeImage(plane, w, h);
+			}
+		}
+		
+		return new TextureContainer(Etc1Codec.ETC1_RGB8_OES, width, height, data, alphaData);
+	}
+	
+	/**
+	 * Box filter to the next level, a dimension already at 1 stays 1.
+	 */
+	private static int[] downsample(int[] pixels, int width, int height) {
+		int w = Math.max(1, width >> 1);
+		int h = Math.max(1, height >> 1);
+		int[] result = new int[w * h];
+		for (int y = 0; y < h; y++) {
+			int y0 = Math.min(y * 2, height - 1);
+			int y1 = Math.min(y * 2 + 1, height - 1);
+			for (int x = 0; x < w; x++) {
+				int x0 = Math.min(x * 2, width - 1);
+				int x1 = Math.min(x * 2 + 1, width - 1);
+				int p0 = pixels[y0 * width + x0];
+				int p1 = pixels[y0 * width + x1];
+				int p2 = pixels[y1 * width + x0];
+				int p3 = pixels[y1 * width + x1];
+				int value = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+					int sum = ((p0 >>> shift) & 0xFF) + ((p1 >>> shift) & 0xFF) + ((p2 >>> shift) & 0xFF) +
+							((p3 >>> shift) & 0xFF);
+					value |= ((sum + 2) >> 2) << shift;
+				}
+				result[y * w + x] = value;
+			}
+		}
+		return result;
+	}
+	
+	private static double psnr(int[] original, int[] decoded) {
+		double error = 0;
+		for (int i = 0; i < original.length; i++) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				int d = ((original[i] >> shift) & 0xFF) - ((decoded[i] >> shift) & 0xFF);
+				error += d * d;
+			}
+		}
+		error /= original.length * 3;
+		return error == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / error);
+	}
+}